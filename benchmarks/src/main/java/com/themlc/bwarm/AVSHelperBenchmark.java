@@ -0,0 +1,114 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups per second in the largest Allowed Value Set, on Strings and on
+ * buffer slices, for single values and '|' separated lists.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AVSHelperBenchmark {
+
+	static final int VALUES = 1024;
+
+	@Param({ "0", "0.25" })
+	public double missRate;
+
+	private AVSHelper territories;
+	private String[] strings;
+	private ByteBuffer buffer;
+	private int[] starts;
+	private int[] ends;
+	private ByteBuffer lists;
+	private int[] listStarts;
+	private int[] listEnds;
+
+	@Setup
+	public void setup() {
+		territories = AVSBundle.shared().get("avs:Territories");
+		List<String> values = territories.getValues();
+		Random random = new Random(42);
+
+		strings = new String[VALUES];
+		String[] multi = new String[VALUES];
+		for (int i = 0; i < VALUES; i++) {
+			strings[i] = random.nextDouble() < missRate ? "X" + random.nextInt(100) : values.get(random.nextInt(values.size()));
+			multi[i] = values.get(random.nextInt(values.size())) + "|" + values.get(random.nextInt(values.size())) + "|" + strings[i];
+		}
+		starts = new int[VALUES];
+		ends = new int[VALUES];
+		buffer = slices(strings, starts, ends);
+		listStarts = new int[VALUES];
+		listEnds = new int[VALUES];
+		lists = slices(multi, listStarts, listEnds);
+	}
+
+	private static ByteBuffer slices(String[] values, int[] starts, int[] ends) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			starts[i] = text.length();
+			text.append(values[i]);
+			ends[i] = text.length();
+			text.append('\t');
+		}
+		return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int containsString() {
+		int found = 0;
+		for (String value : strings) {
+			if (territories.contains(value)) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int containsSlice() {
+		int found = 0;
+		for (int i = 0; i < VALUES; i++) {
+			if (territories.contains(buffer, starts[i], ends[i])) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int containsAll() {
+		int found = 0;
+		for (int i = 0; i < VALUES; i++) {
+			if (territories.containsAll(lists, listStarts[i], listEnds[i])) {
+				found++;
+			}
+		}
+		return found;
+	}
+}
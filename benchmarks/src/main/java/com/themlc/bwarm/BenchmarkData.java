@@ -0,0 +1,34 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Rows of one file type from the {@link SnapshotGenerator}, parsed into
+ * records over a single buffer.
+ */
+final class BenchmarkData {
+
+	private BenchmarkData() {
+	}
+
+	static TsvRecord[] records(BWARMValidator validator, String logType, int rows, double errorRate, long seed) {
+		StringBuilder text = new StringBuilder();
+		new SnapshotGenerator(validator).setErrorRate(errorRate).appendRows(text, logType, rows, new SplittableRandom(seed));
+		ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+		List<TsvRecord> records = new ArrayList<TsvRecord>();
+		int lineStart = 0;
+		for (int i = 0; i < buffer.limit(); i++) {
+			if (buffer.get(i) == '\n') {
+				TsvRecord record = new TsvRecord();
+				record.reset(buffer, lineStart, i);
+				records.add(record);
+				lineStart = i + 1;
+			}
+		}
+		return records.toArray(new TsvRecord[records.size()]);
+	}
+}
@@ -0,0 +1,123 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Values per second of the number, duration and date scanners, on valid
+ * values and on a mix with invalid ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatScannerBenchmark {
+
+	static final int VALUES = 1024;
+
+	private static final String[] NUMBERS = { "12.5", "100", "0.333", "-7", "1E3", "12,5", "1e", "--3" };
+	private static final String[] DURATIONS = { "PT192S", "PT3.5S", "PT0S", "PT12345S", "3 min", "PT3M", "P1D", "PTS" };
+	private static final String[] DATES = { "2020-01-31", "2021-06-30T12:00:00", "2019-W05-3", "2020-123", "31/01/2020", "2020-13-01", "20200131", "2020-02-30" };
+
+	@Param({ "0", "0.25" })
+	public double errorRate;
+
+	private ByteBuffer numbers;
+	private ByteBuffer durations;
+	private ByteBuffer dates;
+	private int[][] bounds = new int[3][];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		numbers = slices(NUMBERS, 0, random);
+		durations = slices(DURATIONS, 1, random);
+		dates = slices(DATES, 2, random);
+	}
+
+	/**
+	 * Picks from the first half of <code>values</code> (valid) or, at the
+	 * error rate, from the second half (invalid).
+	 */
+	private ByteBuffer slices(String[] values, int kind, Random random) {
+		int half = values.length / 2;
+		int[] b = new int[VALUES * 2];
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < VALUES; i++) {
+			String value = random.nextDouble() < errorRate ? values[half + random.nextInt(half)] : values[random.nextInt(half)];
+			b[i * 2] = text.length();
+			text.append(value);
+			b[i * 2 + 1] = text.length();
+			text.append('\t');
+		}
+		bounds[kind] = b;
+		return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int isNumber() {
+		int valid = 0;
+		int[] b = bounds[0];
+		for (int i = 0; i < b.length; i += 2) {
+			if (FormatScanner.isNumber(numbers, b[i], b[i + 1])) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int isDuration() {
+		int valid = 0;
+		int[] b = bounds[1];
+		for (int i = 0; i < b.length; i += 2) {
+			if (FormatScanner.isDuration(durations, b[i], b[i + 1])) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int isDate() {
+		int valid = 0;
+		int[] b = bounds[2];
+		for (int i = 0; i < b.length; i += 2) {
+			if (FormatScanner.isDate(dates, b[i], b[i + 1])) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public long parseDate() {
+		long sum = 0;
+		int[] b = bounds[2];
+		for (int i = 0; i < b.length; i += 2) {
+			sum += FormatScanner.parseDate(dates, b[i], b[i + 1]);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,73 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end validation of a snapshot from the {@link SnapshotGenerator}.
+ * The <code>rows</code> counter gives rows per second over all files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({ "10000" })
+	public long works;
+
+	@Param({ "0", "0.25" })
+	public double errorRate;
+
+	private Path base;
+	private BWARMValidator validator;
+	private long rows;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Rows {
+		public long rows;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		base = Files.createTempDirectory("bwarm-benchmark");
+		validator = new BWARMValidator(base.toString() + "/");
+		SnapshotGenerator generator = new SnapshotGenerator(validator).setWorks(works).setErrorRate(errorRate).setSeed(42);
+		generator.generate(base.resolve("snapshot"), ForkJoinPool.commonPool());
+		rows = generator.totalRows();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		validator.shutdown();
+		FileUtils.deleteDirectory(base.toFile());
+	}
+
+	@Benchmark
+	public void validate(Rows counter) throws IOException {
+		validator.validate("snapshot");
+		counter.rows += rows;
+	}
+}
@@ -0,0 +1,71 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rows per second of the per column checks of one file type. Findings go to
+ * an {@link ErrorSink} that discards its output, so error heavy data measures
+ * building the messages but not the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidateAllBenchmark {
+
+	static final int ROWS = 1024;
+
+	@Param({ "works", "workalternativetitles", "workidentifiers", "parties", "workrightshares", "recordings", "recordingalternativetitles", "recordingidentifiers", "releases", "releaseidentifiers", "worksrecordings", "unclaimedworkrightshares" })
+	public String logType;
+
+	@Param({ "0", "0.25" })
+	public double errorRate;
+
+	private BWARMValidator validator;
+	private Schema schema;
+	private TsvRecord[] records;
+
+	@Setup
+	public void setup() throws IOException {
+		validator = new BWARMValidator(System.getProperty("java.io.tmpdir"), 1);
+		validator.setErrorSink(new ErrorSink(FindingOutput.create(FindingOutput.Format.TSV, new NullOutputStream(), "benchmark", validator.getMessages()), new NullWriter()));
+		schema = validator.getSchema(logType);
+		records = BenchmarkData.records(validator, logType, ROWS, errorRate, 42);
+	}
+
+	@TearDown
+	public void tearDown() {
+		validator.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int validateAll() {
+		int valid = 0;
+		for (int i = 0; i < records.length; i++) {
+			if (validator.validateAll("benchmark", i + 1, records[i], schema)) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+}
@@ -0,0 +1,255 @@
+package com.themlc.bwarm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * All Allowed Value Sets in one binary file, avs.bin, compiled from the TSV
+ * resources in the process-classes phase of the build. The file
+ * is memory mapped once per JVM and every {@link AVSHelper} looks values up
+ * in the mapped hash tables, so validators share the sets and nothing is
+ * parsed at startup. Without avs.bin on the class path the bundle is compiled
+ * in memory from the TSV resources, once as well.
+ *
+ * <pre>
+ * int magic, int version, int sets, int[sets] offset of each set
+ * set: (int length, UTF-8 name), (int length, UTF-8 value name),
+ *      long fingerprint of the values, int hash seed, int slot mask,
+ *      int values, int offset of the slots, int offset of the first value
+ * slots: int[mask + 1] offset of the value in the slot, -1 if empty
+ * values: in file order, (short length, UTF-8 value)
+ * </pre>
+ */
+public final class AVSBundle {
+
+	static final String RESOURCE = "avs.bin";
+	static final int MAGIC = 0x42574156;
+	static final int VERSION = 1;
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	// name used by the schemas, resource and name of the value in messages
+	static final String[][] SETS = {
+			{ "avs:PartyRoles", "PartyRoles.tsv", "PartyRole" },
+			{ "avs:RightShareTypes", "RightShareTypes.tsv", "RightShareType" },
+			{ "avs:RightTypes", "RightTypes.tsv", "RightType" },
+			{ "avs:Territories", "Territories.tsv", "Territory" },
+			{ "avs:TitleTypes", "TitleTypes.tsv", "TitleType" },
+			{ "avs:UseTypes", "UseTypes.tsv", "UseType" }
+	};
+
+	private static Map<String, AVSHelper> shared;
+
+	private AVSBundle() {
+	}
+
+	/**
+	 * The Allowed Value Sets of this JVM by name, loaded on first use.
+	 */
+	public static synchronized Map<String, AVSHelper> shared() {
+		if (shared == null) {
+			try {
+				shared = Collections.unmodifiableMap(read(load()));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return shared;
+	}
+
+	private static ByteBuffer load() throws IOException {
+		URL url = AVSBundle.class.getClassLoader().getResource(RESOURCE);
+		if (url == null) {
+			LOGGER.info("No {} on the class path, compiling the Allowed Value Sets", RESOURCE);
+			return compile(SETS);
+		}
+		if ("file".equals(url.getProtocol())) {
+			try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+		// a resource in a jar can not be mapped, it is read into one direct buffer
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream in = url.openStream()) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+		}
+		ByteBuffer data = ByteBuffer.allocateDirect(bytes.size());
+		data.put(bytes.toByteArray()).flip();
+		return data;
+	}
+
+	/**
+	 * The sets of a bundle by name.
+	 */
+	static Map<String, AVSHelper> read(ByteBuffer data) throws IOException {
+		if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+			throw new IOException("Not an Allowed Value Set bundle of version " + VERSION);
+		}
+		HashMap<String, AVSHelper> sets = new HashMap<String, AVSHelper>();
+		int count = data.getInt(8);
+		for (int i = 0; i < count; i++) {
+			AVSHelper set = new AVSHelper(data, data.getInt(12 + i * 4));
+			sets.put(set.getName(), set);
+		}
+		return sets;
+	}
+
+	/**
+	 * Compiles the TSV resources of <code>sets</code>, given as name,
+	 * resource and value name, into a bundle.
+	 */
+	static ByteBuffer compile(String[][] sets) throws IOException {
+		return compile(sets, null);
+	}
+
+	/**
+	 * Compiles the sets from the TSV files in <code>directory</code>, or from
+	 * the resources for files it does not have.
+	 */
+	static ByteBuffer compile(String[][] sets, Path directory) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(sets.length);
+		for (int i = 0; i < sets.length; i++) {
+			out.writeInt(0);
+		}
+		int[] offsets = new int[sets.length];
+		for (int i = 0; i < sets.length; i++) {
+			offsets[i] = out.size();
+			writeSet(out, sets[i][0], sets[i][2], readValues(directory, sets[i][1]));
+		}
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		for (int i = 0; i < sets.length; i++) {
+			data.putInt(12 + i * 4, offsets[i]);
+		}
+		return data;
+	}
+
+	private static List<String> readValues(Path directory, String resource) throws IOException {
+		InputStream in = directory != null && Files.isRegularFile(directory.resolve(resource)) ? Files.newInputStream(directory.resolve(resource)) : AVSBundle.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException("Missing Allowed Value Set " + resource);
+		}
+		ArrayList<String> values = new ArrayList<String>();
+		try (Scanner s = new Scanner(in, StandardCharsets.UTF_8.name())) {
+			while (s.hasNext()) {
+				values.add(s.next());
+			}
+		}
+		return values;
+	}
+
+	private static void writeSet(DataOutputStream out, String name, String valueName, List<String> values) throws IOException {
+		byte[][] encoded = new byte[values.size()][];
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+		}
+		// a perfect hash: the seed is chosen so that no two values share a slot
+		int size = Integer.highestOneBit(Math.max(encoded.length, 1) * 2 - 1) * 2;
+		int[] slots = null;
+		int seed = 0;
+		while (slots == null) {
+			for (int candidate = 1; candidate <= 1024 && slots == null; candidate++) {
+				slots = place(encoded, size, candidate);
+				seed = candidate;
+			}
+			if (slots == null) {
+				size *= 2;
+			}
+		}
+		LOGGER.debug("{} values in {} slots with seed {}", encoded.length, size, seed);
+
+		writeString(out, name);
+		writeString(out, valueName);
+		out.writeLong(Fingerprint.of(values.toString()));
+		out.writeInt(seed);
+		out.writeInt(size - 1);
+		out.writeInt(encoded.length);
+		int slotsOffset = out.size() + 8;
+		int valuesOffset = slotsOffset + size * 4;
+		out.writeInt(slotsOffset);
+		out.writeInt(valuesOffset);
+		int[] valueOffsets = new int[encoded.length];
+		int at = valuesOffset;
+		for (int i = 0; i < encoded.length; i++) {
+			valueOffsets[i] = at;
+			at += 2 + encoded[i].length;
+		}
+		for (int slot : slots) {
+			out.writeInt(slot < 0 ? -1 : valueOffsets[slot]);
+		}
+		for (byte[] value : encoded) {
+			out.writeShort(value.length);
+			out.write(value);
+		}
+	}
+
+	/**
+	 * The index of the value in each slot, -1 if empty, or null if two
+	 * different values share a slot.
+	 */
+	private static int[] place(byte[][] values, int size, int seed) {
+		int[] slots = new int[size];
+		Arrays.fill(slots, -1);
+		for (int i = 0; i < values.length; i++) {
+			int slot = AVSHelper.hash(seed, values[i]) & (size - 1);
+			if (slots[slot] < 0) {
+				slots[slot] = i;
+			} else if (!Arrays.equals(values[slots[slot]], values[i])) {
+				return null;
+			}
+		}
+		return slots;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes the bundle of the TSV resources on the class path to the file
+	 * given as argument, run by the build.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: AVSBundle <output file>");
+			System.exit(2);
+		}
+		Path file = Paths.get(args[0]);
+		ByteBuffer data = compile(SETS);
+		Files.write(file, data.array());
+		LOGGER.info("Wrote {} Allowed Value Sets to {}", SETS.length, file);
+	}
+}
@@ -1,32 +1,174 @@
 package com.themlc.bwarm;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Scanner;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Allowed Value Set, a view on the hash table of the set in an
+ * {@link AVSBundle}. The table is a perfect hash: the seed of the hash
+ * function is chosen when the bundle is compiled so that no two values share a
+ * slot, so a lookup is one hash, one slot and one byte comparison. Values can
+ * be tested directly on a slice of a mapped TSV file without building a
+ * String.
+ */
 public class AVSHelper {
 
-	private ArrayList<String> avsValues = new ArrayList<String>();
-
-	private final Logger LOGGER = LogManager.getLogger();
+	private final ByteBuffer data;
+	private final String name;
+	private final String valueName;
+	private final long fingerprint;
+	private final int seed;
+	private final int mask;
+	private final int valueCount;
+	private final int slots;
+	private final int values;
+	private List<String> avsValues;
 
 	public AVSHelper(String avsFile) {
-		InputStream resource = getClass().getClassLoader().getResourceAsStream(avsFile);
+		this(avsFile, avsFile.replaceFirst("\\.tsv$", ""));
+	}
+
+	/**
+	 * A set of its own compiled from a class path resource, validators use
+	 * the sets of {@link AVSBundle#shared()} instead.
+	 */
+	public AVSHelper(String avsFile, String valueName) {
+		// the only set follows the header and the offset of the set
+		this(compile(avsFile, valueName), 16);
+	}
+
+	private static ByteBuffer compile(String avsFile, String valueName) {
+		try {
+			return AVSBundle.compile(new String[][] { { avsFile, avsFile, valueName } });
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The set at <code>at</code> in a bundle, only read with absolute gets so
+	 * the bundle can be shared.
+	 */
+	AVSHelper(ByteBuffer data, int at) {
+		this.data = data;
+		this.name = readString(data, at);
+		at += 4 + data.getInt(at);
+		this.valueName = readString(data, at);
+		at += 4 + data.getInt(at);
+		this.fingerprint = data.getLong(at);
+		this.seed = data.getInt(at + 8);
+		this.mask = data.getInt(at + 12);
+		this.valueCount = data.getInt(at + 16);
+		this.slots = data.getInt(at + 20);
+		this.values = data.getInt(at + 24);
+	}
+
+	private static String readString(ByteBuffer data, int at) {
+		byte[] bytes = new byte[data.getInt(at)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = data.get(at + 4 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static int hash(int seed, byte[] value) {
+		int h = seed;
+		for (int i = 0; i < value.length; i++) {
+			h = (h ^ value[i]) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
 
-		Scanner s;
-		s = new Scanner(resource);
-		while (s.hasNext()) {
-			avsValues.add(s.next());
+	private static int hash(int seed, ByteBuffer buffer, int start, int end) {
+		int h = seed;
+		for (int i = start; i < end; i++) {
+			h = (h ^ buffer.get(i)) * 0x01000193;
 		}
-		s.close();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The name the schemas refer to the set by, e.g. avs:Territories.
+	 */
+	String getName() {
+		return name;
+	}
 
-		LOGGER.info(avsValues);
+	public String getValueName() {
+		return valueName;
+	}
+
+	/**
+	 * The values in the order of the resource, decoded on first use.
+	 */
+	public synchronized List<String> getValues() {
+		if (avsValues == null) {
+			ArrayList<String> decoded = new ArrayList<String>(valueCount);
+			int at = values;
+			for (int i = 0; i < valueCount; i++) {
+				int length = data.getShort(at) & 0xFFFF;
+				byte[] bytes = new byte[length];
+				for (int k = 0; k < length; k++) {
+					bytes[k] = data.get(at + 2 + k);
+				}
+				decoded.add(new String(bytes, StandardCharsets.UTF_8));
+				at += 2 + length;
+			}
+			avsValues = Collections.unmodifiableList(decoded);
+		}
+		return avsValues;
+	}
+
+	/**
+	 * Identifies the values of the set, for data that depends on them.
+	 */
+	public long fingerprint() {
+		return fingerprint;
 	}
 
 	public boolean contains(String value) {
-		return avsValues.contains(value);
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return contains(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * Tests the bytes between <code>start</code> (inclusive) and
+	 * <code>end</code> (exclusive) of the buffer.
+	 */
+	public boolean contains(ByteBuffer buffer, int start, int end) {
+		int at = data.getInt(slots + (hash(seed, buffer, start, end) & mask) * 4);
+		if (at < 0 || (data.getShort(at) & 0xFFFF) != end - start)
+			return false;
+		at += 2;
+		for (int i = start; i < end; i++) {
+			if (data.get(at++) != buffer.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tests every '|' separated value between <code>start</code> and
+	 * <code>end</code>. Like String.split, trailing empty values are ignored.
+	 */
+	public boolean containsAll(ByteBuffer buffer, int start, int end) {
+		int valueStart = start;
+		boolean emptyValue = false;
+		for (int i = start; i <= end; i++) {
+			if (i == end || buffer.get(i) == '|') {
+				if (i == valueStart) {
+					emptyValue = true;
+				} else if (emptyValue || !contains(buffer, valueStart, i)) {
+					return false;
+				}
+				valueStart = i + 1;
+			}
+		}
+		return true;
 	}
 }
@@ -0,0 +1,167 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Allowed Value Sets of several versions of the standard, kept outside the
+ * jar in a directory with one folder per version, e.g.
+ * <code>avs/1.0.1/Territories.tsv</code>. A version folder only needs the
+ * sets that differ from the built-in ones.
+ *
+ * Each version is compiled into an {@link AVSBundle} once and cached. Every
+ * lookup compares the modification time and size of the files of the version
+ * with those it was compiled from, and a changed version is compiled again
+ * and swapped into the cache. Lookups do not lock: a validator keeps the sets
+ * it was created with, so a snapshot is validated with one version
+ * throughout, and the snapshots started after a swap get the new sets.
+ */
+public class AVSVersions {
+
+	/**
+	 * The file of a snapshot declaring the version of the standard it
+	 * follows, on its first line.
+	 */
+	public static final String VERSION_FILE = "version.txt";
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final Pattern VERSION = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+	private final Path directory;
+	private final String defaultVersion;
+	private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+
+	private static final class Version {
+		final long stamp;
+		final Map<String, AVSHelper> sets;
+
+		Version(long stamp, Map<String, AVSHelper> sets) {
+			this.stamp = stamp;
+			this.sets = sets;
+		}
+	}
+
+	/**
+	 * @param defaultVersion the version of snapshots that declare none or an
+	 *                       unknown one, the built-in sets if null
+	 */
+	public AVSVersions(Path directory, String defaultVersion) {
+		this.directory = directory;
+		this.defaultVersion = defaultVersion;
+	}
+
+	/**
+	 * The sets of <code>version</code>, or of the default version if it is
+	 * null or has no folder.
+	 */
+	public Map<String, AVSHelper> get(String version) {
+		Path folder = folder(version);
+		if (folder == null) {
+			if (version != null) {
+				LOGGER.warn("No Allowed Value Sets of version {} in {}, using {}", version, directory, defaultVersion != null ? defaultVersion : "the built-in sets");
+			}
+			folder = folder(defaultVersion);
+			if (folder == null) {
+				return AVSBundle.shared();
+			}
+			version = defaultVersion;
+		}
+		try {
+			long stamp = stamp(folder);
+			Version cached = versions.get(version);
+			if (cached != null && cached.stamp == stamp) {
+				return cached.sets;
+			}
+			// compiled outside of any lock, a concurrent change at worst compiles twice
+			Map<String, AVSHelper> sets = Collections.unmodifiableMap(AVSBundle.read(AVSBundle.compile(AVSBundle.SETS, folder)));
+			versions.put(version, new Version(stamp, sets));
+			LOGGER.info("{} Allowed Value Sets of version {} from {}", cached == null ? "Loaded" : "Reloaded", version, folder);
+			return sets;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The sets of the version a snapshot declares, see {@link #VERSION_FILE}.
+	 */
+	public Map<String, AVSHelper> forSnapshot(String base, String snapshot) {
+		return get(declaredVersion(base, snapshot));
+	}
+
+	private Path folder(String version) {
+		if (version == null || !VERSION.matcher(version).matches()) {
+			return null;
+		}
+		Path folder = directory.resolve(version);
+		return Files.isDirectory(folder) ? folder : null;
+	}
+
+	/**
+	 * Changes whenever a set file of the folder is added, removed or written.
+	 */
+	private static long stamp(Path folder) throws IOException {
+		long stamp = 0;
+		for (String[] set : AVSBundle.SETS) {
+			Path file = folder.resolve(set[1]);
+			long value = 0;
+			if (Files.isRegularFile(file)) {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				value = attributes.lastModifiedTime().toMillis() * 31 + attributes.size();
+			}
+			stamp = Fingerprint.mix(stamp * 0x9E3779B97F4A7C15L ^ value);
+		}
+		return stamp;
+	}
+
+	/**
+	 * The first line of the version file of a snapshot folder or of
+	 * <code>&lt;snapshot&gt;.zip</code>, null if there is none.
+	 */
+	static String declaredVersion(String base, String snapshot) {
+		try {
+			Path file = Paths.get(base + snapshot, VERSION_FILE);
+			if (Files.isRegularFile(file)) {
+				try (InputStream in = Files.newInputStream(file)) {
+					return firstLine(in);
+				}
+			}
+			Path zipped = Paths.get(base + snapshot + ".zip");
+			if (Files.isRegularFile(zipped)) {
+				try (ZipFile archive = new ZipFile(zipped.toFile())) {
+					ZipEntry entry = archive.getEntry(VERSION_FILE);
+					if (entry != null) {
+						try (InputStream in = archive.getInputStream(entry)) {
+							return firstLine(in);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not read the version of {} {}", snapshot, e.toString());
+		}
+		return null;
+	}
+
+	private static String firstLine(InputStream in) throws IOException {
+		String line = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine();
+		return line == null || line.trim().isEmpty() ? null : line.trim();
+	}
+}
@@ -1,18 +1,30 @@
 package com.themlc.bwarm;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -23,17 +35,11 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 
 public class BWARMValidator {
 
 	private String BASE_LOCATION = "";
-	private HashMap<String, Integer> recurringMessages = new HashMap<String, Integer>();
-	BufferedWriter logger = null;
-	BufferedWriter summary = null;
+	ErrorSink errors = null;
 
 	AVSHelper PartyRoles = null;
 	AVSHelper RightShareTypes = null;
@@ -42,6 +48,29 @@ public class BWARMValidator {
 	AVSHelper TitleTypes = null;
 	AVSHelper UseTypes = null;
 
+	private final ForkJoinPool pool;
+	private long chunkSize = TsvSplitter.DEFAULT_CHUNK_SIZE;
+	private long indexMemory = Runtime.getRuntime().maxMemory() / 2;
+	private Path spillDirectory;
+	private MemoryBudget indexBudget;
+	private MemoryBudget sharedBudget;
+	private ZipFile archive;
+	private Path cacheDirectory;
+	private final long rulesFingerprint;
+	// findings of the segment the current thread validates for the cache
+	private final ThreadLocal<ValidationCache.Findings> recording = new ThreadLocal<ValidationCache.Findings>();
+	private long maxErrors;
+	private long maxListed;
+	private boolean failFast;
+	private ErrorBudget budget;
+	private long sampleSize;
+	private double maxErrorRate = 0.01;
+	private SampleEstimate estimate;
+	private FindingOutput.Format outputFormat = FindingOutput.Format.TSV;
+	private final ValidationMetrics metrics = ValidationMetrics.shared();
+	// counters of the findings in the metrics by message code, copied when a code is added
+	private volatile LongAdder[] findingCounters = new LongAdder[0];
+
 	private final Logger LOGGER = LogManager.getLogger();
 
 	private String[][] Works = {
@@ -100,7 +129,7 @@ public class BWARMValidator {
 			{ "ValidityStartDate", "false", "date" },
 			{ "ValidityEndDate", "false", "date" },
 			{ "FeedProvidersParentWorkRightShareId", "false", "string" },
-			{ "TerritoryCode", "false", "avs:TerritoryCodes", "true" },
+			{ "TerritoryCode", "false", "avs:Territories", "true" },
 			{ "UseType", "false", "avs:UseTypes", "true" }
 	};
 
@@ -179,824 +208,1268 @@ public class BWARMValidator {
 			{ "PercentileForPrioritisation", "false", "number" }
 	};
 
+	private String[][] References = {
+			{ "workalternativetitles", "FeedProvidersWorkId", "works" },
+			{ "workidentifiers", "FeedProvidersWorkId", "works" },
+			{ "workrightshares", "FeedProvidersWorkId", "works" },
+			{ "workrightshares", "FeedProvidersPartyId", "parties" },
+			{ "recordings", "FeedProvidersReleaseId", "releases" },
+			{ "recordingalternativetitles", "FeedProvidersRecordingId", "recordings" },
+			{ "recordingidentifiers", "FeedProvidersRecordingId", "recordings" },
+			{ "releaseidentifiers", "FeedProvidersReleaseId", "releases" },
+			{ "worksrecordings", "FeedProvidersWorkId", "works" },
+			{ "worksrecordings", "FeedProvidersRecordingId", "recordings" },
+			{ "unclaimedworkrightshares", "FeedProvidersRecordingId", "recordings" },
+			{ "unclaimedworkrightshares", "FeedProvidersWorkId", "works" }
+	};
+
+	private final LinkedHashMap<String, Schema> schemas = new LinkedHashMap<String, Schema>();
+	private final HashMap<Schema, IdIndex> primaryKeys = new HashMap<Schema, IdIndex>();
+	private final HashMap<Schema, CompletableFuture<Void>> files = new HashMap<Schema, CompletableFuture<Void>>();
+	private final Set<Schema> unavailable = ConcurrentHashMap.newKeySet();
+	private final HashMap<Schema, Function<String, CompletableFuture<Void>>> fileValidators = new HashMap<Schema, Function<String, CompletableFuture<Void>>>();
+
+	private Schema WorksSchema;
+	private Schema AlternativeWorkTitlesSchema;
+	private Schema WorkIdentifiersSchema;
+	private Schema PartiesSchema;
+	private Schema WorkRightSharesSchema;
+	private Schema RecordingsSchema;
+	private Schema AlternativeRecordingTitlesSchema;
+	private Schema RecordingIdentifiersSchema;
+	private Schema ReleasesSchema;
+	private Schema ReleaseIdentifiersSchema;
+	private Schema WorkRecordingsSchema;
+	private Schema UnclaimedWorksSchema;
+
+	private final Messages messages = new Messages();
+	private int worksCondition;
+	private int partiesCondition;
+	private int workRightSharesCondition;
+	private int workRightSharesDates;
+	private int recordingsCondition;
+	private int releasesCondition;
+	private int unclaimedWorksCondition;
+	private int workRightSharesTotal;
+	private int workRightSharesParent;
+	private int workRightSharesOverParent;
+	private int workRightSharesCycle;
+
 	public BWARMValidator(String base) {
-		BASE_LOCATION = base;
-		PartyRoles = new AVSHelper("PartyRoles.tsv");
-		RightShareTypes = new AVSHelper("RightShareTypes.tsv");
-		RightTypes = new AVSHelper("RightTypes.tsv");
-		Territories = new AVSHelper("Territories.tsv");
-		TitleTypes = new AVSHelper("TitleTypes.tsv");
-		UseTypes = new AVSHelper("UseTypes.tsv");
+		this(base, Runtime.getRuntime().availableProcessors());
 	}
 
-	private void initLogger(String snapshot) throws IOException {
-		String loggerLocation = BASE_LOCATION + System.getProperty("file.separator") + snapshot + System.getProperty("file.separator") + "validator.tsv";
-		Path p = Paths.get(loggerLocation);
-		if (p.toFile().exists()) {
-			logger = Files.newBufferedWriter(p, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
-		} else {
-			logger = Files.newBufferedWriter(p, StandardCharsets.UTF_8, StandardOpenOption.CREATE);
-		}
-		log("Snapshot", "File", "Record Id", "Line Number", "Error Message");
+	public BWARMValidator(String base, int parallelism) {
+		this(base, new ForkJoinPool(parallelism), loadAllowedValueSets());
+	}
 
-		String summaryLocation = BASE_LOCATION + System.getProperty("file.separator") + snapshot + System.getProperty("file.separator") + "validator_summary.tsv";
-		p = Paths.get(summaryLocation);
-		if (p.toFile().exists()) {
-			summary = Files.newBufferedWriter(p, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
-		} else {
-			summary = Files.newBufferedWriter(p, StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+	/**
+	 * Validator on a pool and Allowed Value Sets shared with other validators,
+	 * see {@link BatchValidator}.
+	 */
+	BWARMValidator(String base, ForkJoinPool pool, Map<String, AVSHelper> avsSets) {
+		BASE_LOCATION = base;
+		this.pool = pool;
+		metrics.pool(pool);
+		PartyRoles = avsSets.get("avs:PartyRoles");
+		RightShareTypes = avsSets.get("avs:RightShareTypes");
+		RightTypes = avsSets.get("avs:RightTypes");
+		Territories = avsSets.get("avs:Territories");
+		TitleTypes = avsSets.get("avs:TitleTypes");
+		UseTypes = avsSets.get("avs:UseTypes");
+
+		WorksSchema = Schema.compile("works.tsv", "works", Works, avsSets, messages);
+		AlternativeWorkTitlesSchema = Schema.compile("workalternativetitles.tsv", "workalternativetitles", AlternativeWorkTitles, avsSets, messages);
+		WorkIdentifiersSchema = Schema.compile("workidentifiers.tsv", "workidentifiers", WorkIdentifiers, avsSets, messages);
+		PartiesSchema = Schema.compile("parties.tsv", "parties", Parties, avsSets, messages);
+		WorkRightSharesSchema = Schema.compile("workrightshares.tsv", "workrightshares", WorkRightShares, avsSets, messages);
+		RecordingsSchema = Schema.compile("recordings.tsv", "recordings", Recordings, avsSets, messages);
+		AlternativeRecordingTitlesSchema = Schema.compile("recordingalternativetitles.tsv", "recordingalternativetitles", AlternativeRecordingTitles, avsSets, messages);
+		RecordingIdentifiersSchema = Schema.compile("recordingidentifiers.tsv", "recordingidentifiers", RecordingIdentifiers, avsSets, messages);
+		ReleasesSchema = Schema.compile("releases.tsv", "releases", Releases, avsSets, messages);
+		ReleaseIdentifiersSchema = Schema.compile("releaseidentifiers.tsv", "releaseidentifiers", ReleaseIdentifiers, avsSets, messages);
+		WorkRecordingsSchema = Schema.compile("worksrecordings.tsv", "worksrecordings", WorkRecordings, avsSets, messages);
+		UnclaimedWorksSchema = Schema.compile("unclaimedworkrightshares.tsv", "unclaimedworkrightshares", UnclaimedWorks, avsSets, messages);
+
+		for (Schema schema : new Schema[] { WorksSchema, AlternativeWorkTitlesSchema, WorkIdentifiersSchema, PartiesSchema, WorkRightSharesSchema, RecordingsSchema, AlternativeRecordingTitlesSchema, RecordingIdentifiersSchema, ReleasesSchema, ReleaseIdentifiersSchema, WorkRecordingsSchema, UnclaimedWorksSchema }) {
+			schemas.put(schema.getLogType(), schema);
+		}
+		for (String[] reference : References) {
+			schemas.get(reference[0]).addReference(reference[1], schemas.get(reference[2]));
 		}
 
-		summary.write("Snapshot");
-		summary.write("\t");
-		summary.write("File");
-		summary.write("\t");
-		summary.write("Record Id");
-		summary.write("\t");
-		summary.write("Error Message");
-		summary.write("\t");
-		summary.write("Count");
-		summary.write("\n");
+		fileValidators.put(WorksSchema, this::validateWorks);
+		fileValidators.put(AlternativeWorkTitlesSchema, this::validateAlternativeWorkTitles);
+		fileValidators.put(WorkIdentifiersSchema, this::validateWorkIdentifiers);
+		fileValidators.put(PartiesSchema, this::validateParties);
+		fileValidators.put(WorkRightSharesSchema, this::validateWorkRightShares);
+		fileValidators.put(RecordingsSchema, this::validateRecordings);
+		fileValidators.put(AlternativeRecordingTitlesSchema, this::validateAlternativeRecordingTitles);
+		fileValidators.put(RecordingIdentifiersSchema, this::validateRecordingIdentifiers);
+		fileValidators.put(ReleasesSchema, this::validateReleases);
+		fileValidators.put(ReleaseIdentifiersSchema, this::validateReleaseIdentifiers);
+		fileValidators.put(WorkRecordingsSchema, this::validateWorkRecordings);
+		fileValidators.put(UnclaimedWorksSchema, this::validateAUnclaimedWorks);
+
+		worksCondition = messages.register("works", "Condition not fulfilled for " + Works[10][0]);
+		partiesCondition = messages.register("parties", "Condition not fulfilled for " + Parties[13][0]);
+		workRightSharesCondition = messages.register("workrightshares", "Condition not fulfilled for " + WorkRightShares[7][0] + " and " + WorkRightShares[8][0]);
+		workRightSharesDates = messages.register("workrightshares", WorkRightShares[8][0] + " before " + WorkRightShares[7][0]);
+		recordingsCondition = messages.register("recordings", "Condition not fulfilled for " + Recordings[13][0]);
+		releasesCondition = messages.register("releases", "Condition not fulfilled for " + Releases[10][0]);
+		workRightSharesTotal = messages.register("workrightshares", "RightSharePercentage total over 100: ", "");
+		workRightSharesParent = messages.register("workrightshares", "Referenced " + WorkRightShares[9][0] + " not found in workrightshares '", "'");
+		workRightSharesOverParent = messages.register("workrightshares", "RightSharePercentage over the percentage of the parent share: ", "");
+		workRightSharesCycle = messages.register("workrightshares", WorkRightShares[9][0] + " part of a cycle, right shares on the cycle: ", "");
+		unclaimedWorksCondition = messages.register("unclaimedworkrightshares", "Condition not fulfilled for (" + UnclaimedWorks[1][0] + ", " + UnclaimedWorks[5][0] + ", " + UnclaimedWorks[8][0] + ")");
+
+		StringBuilder rules = new StringBuilder();
+		for (String[][] definition : new String[][][] { Works, AlternativeWorkTitles, WorkIdentifiers, Parties, WorkRightShares, Recordings, AlternativeRecordingTitles, RecordingIdentifiers, Releases, ReleaseIdentifiers, WorkRecordings, UnclaimedWorks, References }) {
+			rules.append(Arrays.deepToString(definition));
+		}
+		for (AVSHelper avs : new AVSHelper[] { PartyRoles, RightShareTypes, RightTypes, Territories, TitleTypes, UseTypes }) {
+			rules.append(avs.getValueName()).append(avs.fingerprint());
+		}
+		// cached findings refer to message codes
+		rules.append(messages.fingerprint());
+		rulesFingerprint = Fingerprint.of(rules.toString());
+	}
 
+	/**
+	 * The Allowed Value Sets shared by all validators of the JVM, see
+	 * {@link AVSBundle}.
+	 */
+	static Map<String, AVSHelper> loadAllowedValueSets() {
+		return AVSBundle.shared();
 	}
 
-	public void finish() throws IOException {
-		logger.flush();
-		logger.close();
-		summary.flush();
-		summary.close();
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
 	}
 
-	private synchronized void log(String snapshot, String logType, String id, String lineNumber, String msg) {
-		try {
+	/**
+	 * Bytes the identifier indexes of a snapshot may hold before they spill to
+	 * sorted runs on disk.
+	 */
+	public void setIndexMemory(long indexMemory) {
+		this.indexMemory = indexMemory;
+	}
 
-			logger.write(snapshot);
-			logger.write("\t");
-			logger.write(logType);
-			logger.write("\t");
-			logger.write(id);
-			logger.write("\t");
-			logger.write(lineNumber);
-			logger.write("\t");
-			logger.write(msg);
-			logger.write("\n");
-		} catch (IOException e) {
-			LOGGER.error(e);
-			LOGGER.error("200={} 202={} 204={} 206={}", snapshot, logType, lineNumber, msg);
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Budget shared with other validators, replaces the index memory.
+	 */
+	void setIndexBudget(MemoryBudget budget) {
+		this.sharedBudget = budget;
+	}
 
-		if (!"Snapshot".equals(snapshot)) {
-			String key = snapshot + "\t" + logType + "\t" + msg;
-			int count = 0;
-			if (recurringMessages.containsKey(key)) {
-				count = recurringMessages.get(key);
-			}
-			count++;
-			recurringMessages.put(key, count);
-		}
+	public void setSpillDirectory(Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
 
+	/**
+	 * Enables the {@link ValidationCache}, kept per feed provider in
+	 * <code>cacheDirectory</code>.
+	 */
+	public void setCacheDirectory(Path cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
 	}
 
-	private boolean checMandatory(String data, boolean isMandatory) {
-		if (!isMandatory)
-			return true;
+	/**
+	 * Lists at most <code>maxListed</code> findings of each kind of message per
+	 * file and stops validating a file with <code>maxErrors</code> findings,
+	 * or with <code>failFast</code> the whole snapshot, see {@link ErrorBudget}.
+	 */
+	public void setErrorBudget(long maxErrors, long maxListed, boolean failFast) {
+		this.maxErrors = maxErrors;
+		this.maxListed = maxListed;
+		this.failFast = failFast;
+	}
 
-		if (data == null)
-			return false;
-		if (data.equals(""))
-			return false;
+	/**
+	 * Whether the last snapshot was stopped by the fail-fast limit.
+	 */
+	public boolean isRejected() {
+		return budget != null && budget.isRejected();
+	}
 
-		return true;
+	/**
+	 * Checks only about <code>lines</code> lines of each file, read at random
+	 * positions, and estimates the error rates, see {@link SampleEstimate}.
+	 * Identifiers and references are not checked. 0 validates every line.
+	 */
+	public void setSample(long lines, double maxErrorRate) {
+		this.sampleSize = lines;
+		this.maxErrorRate = maxErrorRate;
 	}
 
-	private boolean checkBoolean(String data) {
-		if (!data.toLowerCase().equals("true") && !data.toLowerCase().equals("false"))
-			return false;
+	/**
+	 * GO, NO-GO or UNDECIDED for the last sampled snapshot, null without a
+	 * sample.
+	 */
+	public String getSampleDecision() {
+		return estimate != null ? estimate.decision() : null;
+	}
 
-		return true;
+	Schema getSchema(String logType) {
+		return schemas.get(logType);
 	}
 
-	private boolean checNumber(String data) {
-		try {
-			new BigDecimal(data);
-		} catch (NumberFormatException nfe) {
-			LOGGER.debug(nfe);
-			return false;
-		}
-		return true;
+	Messages getMessages() {
+		return messages;
 	}
 
-	private boolean checkDuration(String data) {
-		try {
-			Duration.parse(data);
-		} catch (DateTimeParseException | IllegalArgumentException e) {
-			return false;
-		}
-		return true;
+	/**
+	 * Format of the findings, the summary is always TSV.
+	 */
+	public void setOutputFormat(FindingOutput.Format outputFormat) {
+		this.outputFormat = outputFormat;
+	}
 
+	void setErrorSink(ErrorSink errors) {
+		this.errors = errors;
 	}
 
-	private boolean checkDate(String data) {
-		try {
-			DateTimeFormatter parser2 = ISODateTimeFormat.localDateOptionalTimeParser();
-			parser2.parseDateTime(data);
-		} catch (UnsupportedOperationException | IllegalArgumentException e) {
-			LOGGER.debug(e);
-			return false;
+	private void initLogger(String snapshot) throws IOException {
+		String loggerLocation = BASE_LOCATION + System.getProperty("file.separator") + snapshot + System.getProperty("file.separator") + outputFormat.getFileName();
+		String summaryLocation = BASE_LOCATION + System.getProperty("file.separator") + snapshot + System.getProperty("file.separator") + "validator_summary.tsv";
+		Files.createDirectories(Paths.get(loggerLocation).getParent());
+		// findings of an earlier run in another format would look current
+		for (FindingOutput.Format format : FindingOutput.Format.values()) {
+			if (format != outputFormat) {
+				Files.deleteIfExists(Paths.get(loggerLocation).resolveSibling(format.getFileName()));
+			}
 		}
-		return true;
+		errors = new ErrorSink(snapshot, messages, Paths.get(loggerLocation), outputFormat, Paths.get(summaryLocation));
+	}
 
+	public void finish() throws IOException {
+		errors.close();
 	}
 
-	private boolean checkAVS(String value, AVSHelper helper) {
-		return helper.contains(value);
+	/**
+	 * Logs a finding on a record, with the field <code>valueField</code> as the
+	 * value of its message unless it is {@link FindingBuffer#NO_VALUE}.
+	 */
+	private void log(int code, long lineNumber, TsvRecord rec, int valueField) {
+		if (valueField == FindingBuffer.NO_VALUE) {
+			log(code, lineNumber, rec.buffer(), rec.start(0), rec.end(0), FindingBuffer.NO_VALUE, 0);
+		} else {
+			log(code, lineNumber, rec.buffer(), rec.start(0), rec.end(0), rec.start(valueField), rec.end(valueField));
+		}
 	}
 
-	private DateTime getDate(String data) {
-		try {
-			DateTimeFormatter parser2 = ISODateTimeFormat.dateTimeNoMillis();
-			return parser2.parseDateTime(data);
-		} catch (UnsupportedOperationException | IllegalArgumentException e) {
-			return null;
+	private void log(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, int valueStart, int valueEnd) {
+		if (listed(code)) {
+			errors.log(code, estimate != null ? -1 : lineNumber, buffer, idStart, idEnd, valueStart, valueEnd);
 		}
+		ValidationCache.Findings findings = recording.get();
+		if (findings != null) {
+			findings.add(code, lineNumber, buffer, idStart, idEnd, valueStart, valueEnd);
+		}
+		checkBudget(code);
+	}
 
+	/**
+	 * Logs a finding on a record with a number as the value of its message.
+	 */
+	private void logNumber(int code, long lineNumber, TsvRecord rec, long value) {
+		if (listed(code)) {
+			errors.log(code, estimate != null ? -1 : lineNumber, rec.buffer(), rec.start(0), rec.end(0), value);
+		}
+		ValidationCache.Findings findings = recording.get();
+		if (findings != null) {
+			findings.add(code, lineNumber, rec.buffer(), rec.start(0), rec.end(0), value);
+		}
+		checkBudget(code);
 	}
 
-	private boolean validateAll(String snapshot, int lineNumber, String recrd[], String logType, String[][] schema) {
-		boolean valid = true;
-		if (recrd.length != schema.length) {
+	private void log(int code, long lineNumber, String id, String value) {
+		if (listed(code)) {
+			errors.log(code, estimate != null ? -1 : lineNumber, id, value);
+		}
+		ValidationCache.Findings findings = recording.get();
+		if (findings != null) {
+			findings.add(code, lineNumber, id, value);
+		}
+		checkBudget(code);
+	}
 
-			log(snapshot, logType, recrd[0], "" + lineNumber, "Incorrect Number of records: expected " + schema.length + " found " + recrd.length);
-			valid = false;
+	/**
+	 * Counts a finding in the sample and the error budget, false if it is
+	 * only counted in the summary.
+	 */
+	private boolean listed(int code) {
+		LongAdder[] counters = findingCounters;
+		if (code < counters.length && counters[code] != null) {
+			counters[code].increment();
 		} else {
-			for (int i = 0; i < schema.length; i++) {
-
-				String[] field = schema[i];
-
-				if (!checMandatory(recrd[i], field[1].equals("true"))) {
-					log(snapshot, logType, recrd[0], "" + lineNumber, "Missing Mandatory Field " + field[0]);
-				} else {
-					if (!"".equals(recrd[i])) {
-						switch (field[2]) {
-						case "boolean":
-							if (!checkBoolean(recrd[i])) {
-								log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid boolean field " + field[0]);
-								LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-								valid = false;
-							}
-							break;
-						case "number":
-							if (!checNumber(recrd[i])) {
-								log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid number field " + field[0]);
-								LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-								valid = false;
-							}
-							break;
-						case "duration":
-							if (!checkDuration(recrd[i])) {
-								log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid duration field " + field[0]);
-								LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-								valid = false;
-							}
-							break;
-						case "date":
-							if (!checkDate(recrd[i])) {
-								log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid date field " + field[0]);
-								LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-								valid = false;
-							}
-							break;
-
-						case "avs:PartyRoles":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], PartyRoles)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS PartyRole Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], PartyRoles)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS PartyRole Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						case "avs:RightShareTypes":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], RightShareTypes)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS RightShareType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value=( {} --> {} ) fields={}", field[2], logType, i, recrd[i], values, field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], RightShareTypes)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS RightShareType Value field  '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						case "avs:RightTypes":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], RightTypes)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS RightType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value=( {} --> {} ) fields={}", field[2], logType, i, recrd[i], values, field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], RightTypes)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS RightType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						case "avs:Territories":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], Territories)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS Territory Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value=( {} --> {} ) fields={}", field[2], logType, i, recrd[i], values, field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], Territories)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS Territory Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						case "avs:TitleTypes":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], TitleTypes)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS TitleType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value=( {} --> {} ) fields={}", field[2], logType, i, recrd[i], values, field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], TitleTypes)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS TitleType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						case "avs:UseTypes":
-							if (field.length == 4 && field[3].equals("true")) {
-								String[] values = recrd[i].split("\\|");
-								boolean invalid = false;
-								for (int valIdx = 0; valIdx < values.length && !invalid; valIdx++) {
-									if (!checkAVS(values[valIdx], UseTypes)) {
-										invalid = true;
-									}
-								}
-								if (invalid) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS UseType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value=( {} --> {} ) fields={}", field[2], logType, i, recrd[i], values, field);
-									valid = false;
-								}
-							} else {
-								if (!checkAVS(recrd[i], UseTypes)) {
-									log(snapshot, logType, recrd[0], "" + lineNumber, "Invalid AVS UseType Value field '" + recrd[i] + "'");
-									LOGGER.debug("{}   {}  i={}  value={}  fields={}", field[2], logType, i, recrd[i], field);
-									valid = false;
-								}
-							}
-							break;
-
-						}
-					}
-				}
-			}
-
+			findingCounter(code).increment();
 		}
-		return valid;
-
+		if (estimate != null) {
+			// sampled lines are found by their offset, their number is not known
+			estimate.file(messages.get(code).getLogType()).finding(code);
+		}
+		if (budget == null || budget.count(code)) {
+			return true;
+		}
+		errors.count(code);
+		return false;
 	}
 
-	int workLineNumber = 0;
-
-	private void validateWorks(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "works");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/works.tsv"), StandardCharsets.UTF_8)) {
-
-			workLineNumber = 0;
-
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
-					workLineNumber++;
-					boolean valid = validateAll(snapshot, workLineNumber, rec, "works", Works);
-					if (valid) {
-						// check conditional fields
-						if (!rec[9].equals("") && rec[10].equals("")) {
-							log(snapshot, "works", rec[0], "" + workLineNumber, "Condition not fulfilled for " + Works[10][0]);
-						}
-					}
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "works", e);
-		} finally {
-
-			LOGGER.debug("End {} {} processed={}", snapshot, "works", workLineNumber);
-			size--;
+	private synchronized LongAdder findingCounter(int code) {
+		LongAdder[] counters = findingCounters;
+		if (code >= counters.length || counters[code] == null) {
+			counters = Arrays.copyOf(counters, Math.max(counters.length, code + 1));
+			Messages.Message message = messages.get(code);
+			counters[code] = metrics.file(message.getLogType()).findings(message.summaryText());
+			findingCounters = counters;
 		}
+		return counters[code];
 	}
 
-	int alternativeworktitlesLineNumber = 0;
-
-	private void validateAlternativeWorkTitles(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "alternativeworktitles");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/workalternativetitles.tsv"), StandardCharsets.UTF_8)) {
-
-			alternativeworktitlesLineNumber = 0;
+	private void checkBudget(int code) {
+		if (budget != null && budget.file(messages.get(code).getLogType()).isStopped()) {
+			throw ValidationStopped.INSTANCE;
+		}
+	}
 
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
-					alternativeworktitlesLineNumber++;
-					validateAll(snapshot, alternativeworktitlesLineNumber, rec, "workalternativetitles", AlternativeWorkTitles);
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "alternativeworktitles", e);
-		} finally {
+	/**
+	 * Unwinds the workers of a file once its error budget is spent.
+	 */
+	private static final class ValidationStopped extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final ValidationStopped INSTANCE = new ValidationStopped();
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "alternativeworktitles", alternativeworktitlesLineNumber);
-			size--;
+		private ValidationStopped() {
+			super("Validation stopped", null, false, false);
 		}
 	}
 
-	int workidentifiersLineNumber = 0;
+	boolean validateAll(String snapshot, long lineNumber, TsvRecord recrd, Schema schema) {
+		ColumnValidator[] columns = schema.getColumns();
+		if (recrd.fieldCount() != columns.length) {
+			logNumber(schema.getFieldCountCode(), lineNumber, recrd, recrd.fieldCount());
+			return false;
+		}
 
-	private void validateWorkIdentifiers(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "workidentifiers");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/workidentifiers.tsv"), StandardCharsets.UTF_8)) {
+		// the checks of one line in ValidationMetrics.SAMPLE_LINES are timed
+		ValidationMetrics.FileMetrics timed = ValidationMetrics.isTimed(lineNumber) ? metrics.file(schema.getLogType()) : null;
+		boolean valid = true;
+		for (int i = 0; i < columns.length; i++) {
+			ColumnValidator column = columns[i];
+			if (recrd.isEmpty(i)) {
+				if (column.isMandatory()) {
+					log(column.getMissingCode(), lineNumber, recrd, FindingBuffer.NO_VALUE);
+				}
+			} else if (!(timed == null ? column.check(recrd) : timedCheck(timed, column, recrd))) {
+				log(column.getInvalidCode(), lineNumber, recrd, messages.get(column.getInvalidCode()).hasValue() ? i : FindingBuffer.NO_VALUE);
+				if (LOGGER.isDebugEnabled()) {
+					LOGGER.debug("{}   {}  i={}  value={}", column, schema.getLogType(), i, recrd.field(i));
+				}
+				valid = false;
+			}
+		}
+		return valid;
+	}
 
-			workidentifiersLineNumber = 0;
+	private static boolean timedCheck(ValidationMetrics.FileMetrics timed, ColumnValidator column, TsvRecord recrd) {
+		long start = System.nanoTime();
+		boolean valid = column.check(recrd);
+		timed.check(column.getType(), System.nanoTime() - start);
+		return valid;
+	}
 
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
+	private interface RecordCheck {
+		void check(String snapshot, long lineNumber, TsvRecord rec);
+	}
 
-					workidentifiersLineNumber++;
-					validateAll(snapshot, workidentifiersLineNumber, rec, "workidentifiers", WorkIdentifiers);
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "workidentifiers", e);
-		} finally {
+	/**
+	 * A check over all lines of a file. It is given every line while the file
+	 * is read, from several threads, and reports once the file is done.
+	 */
+	private interface FileCheck extends Closeable {
+		void line(long lineNumber, long offset, TsvRecord rec);
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "workidentifiers", workidentifiersLineNumber);
-			size--;
-		}
+		void report(TsvInput input) throws IOException;
 	}
 
-	int partiesLineNumber = 0;
+	private CompletableFuture<Void> validateFile(String snapshot, Schema schema, RecordCheck conditions) {
+		return validateFile(snapshot, schema, conditions, null);
+	}
 
-	private void validateParties(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "parties");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/parties.tsv"), StandardCharsets.UTF_8)) {
+	/**
+	 * @param fileCheck creates the check over all lines, if any, which is
+	 *                  skipped when sampling
+	 */
+	private CompletableFuture<Void> validateFile(String snapshot, Schema schema, RecordCheck conditions, Supplier<FileCheck> fileCheck) {
+		String logType = schema.getLogType();
+		if (estimate != null) {
+			return sampleFile(snapshot, schema, conditions);
+		}
 
-			partiesLineNumber = 0;
+		// files referring to other files start once the primary keys of those are indexed
+		List<ForeignKey> references = schema.getReferences();
+		CompletableFuture<?>[] parents = new CompletableFuture<?>[references.size()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = files.get(references.get(i).getParent());
+			if (parents[i] == null) {
+				throw new IllegalStateException(logType + " scheduled before " + references.get(i).getParent().getLogType());
+			}
+		}
 
-			lines.forEach(line ->
+		CompletableFuture<Void> file = CompletableFuture.allOf(parents).thenCompose(v ->
+			{
+				if (budget != null && budget.isRejected()) {
+					throw ValidationStopped.INSTANCE;
+				}
+				LOGGER.debug("Start {} {} ", snapshot, logType);
+				TsvInput input;
+				try {
+					input = TsvInput.open(Paths.get(BASE_LOCATION + snapshot), archive, schema.getFileName());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return input.prepare(chunkSize, pool).thenCompose(p -> validateInput(snapshot, input, schema, conditions, fileCheck)).whenComplete((c, e) -> closeAll(input));
+			}).handle((chunks, e) ->
 				{
-					String rec[] = line.split("\t", -1);
-
-					partiesLineNumber++;
-					boolean valid = validateAll(snapshot, partiesLineNumber, rec, "parties", Parties);
-
-					if (valid) {
-						// check conditional fields
-						if (rec[9].equals("") && rec[10].equals("") && rec[11].equals("") && !rec[13].equals("")) {
-							log(snapshot, "parties", rec[0], "" + partiesLineNumber, "Condition not fulfilled for " + Parties[13][0]);
+					reportUnlisted(snapshot, logType);
+					if (e != null) {
+						Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+						if (cause instanceof ValidationStopped) {
+							// an incomplete file can not be used to check the references to it
+							long found = budget.file(logType).getErrors();
+							int reason = found >= maxErrors ? messages.register(logType, "Validation stopped after ", " errors") : messages.register(logType, "Validation stopped, snapshot rejected");
+							String value = found >= maxErrors ? String.valueOf(found) : null;
+							LOGGER.warn("{} {} {}", messages.get(reason).text(value), snapshot, logType);
+							errors.log(reason, -1, "", value);
+							unavailable.add(schema);
+							return null;
+						}
+						if (!(cause instanceof UncheckedIOException)) {
+							throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
 						}
+						LOGGER.error("Error {} {} {}", snapshot, logType, cause.getCause());
+						unavailable.add(schema);
+						return null;
+					}
+					long processed = 0;
+					for (TsvChunk chunk : chunks) {
+						processed += chunk.getLineCount();
 					}
+					LOGGER.debug("End {} {} processed={}", snapshot, logType, processed);
+					return null;
 				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "parties", e);
-		} finally {
+		files.put(schema, file);
+		return file;
+	}
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "parties", partiesLineNumber);
-			size--;
+	private CompletableFuture<Void> sampleFile(String snapshot, Schema schema, RecordCheck conditions) {
+		TsvInput input;
+		try {
+			input = TsvInput.open(Paths.get(BASE_LOCATION + snapshot), archive, schema.getFileName());
+		} catch (IOException e) {
+			LOGGER.error("Error {} {} {}", snapshot, schema.getLogType(), e);
+			return CompletableFuture.completedFuture(null);
 		}
+		// prepared compressed files know their exact size if they can be split
+		return input.prepare(chunkSize, pool).thenRunAsync(() ->
+			{
+				SampleEstimate.FileSample sample = estimate.file(schema.getLogType());
+				try {
+					long size = input.estimateSize();
+					long[] positions = SampleEstimate.positions(size, sampleSize, new Random(schema.getFileName().hashCode()));
+					sample.setSize(size);
+					input.sampleRecords(positions, positions.length, (offset, rec) ->
+						{
+							sample.line(rec);
+							if (validateAll(snapshot, 0, rec, schema) && conditions != null) {
+								conditions.check(snapshot, 0, rec);
+							}
+							sample.endLine();
+						});
+				} catch (IOException e) {
+					LOGGER.error("Error {} {} {}", snapshot, schema.getLogType(), e);
+				}
+			}, pool).whenComplete((v, e) -> closeAll(input));
 	}
 
-	int workrightsharesLineNumber = 0;
+	private void reportUnlisted(String snapshot, String logType) {
+		if (budget != null) {
+			budget.file(logType).getUnlisted().forEach((code, count) -> errors.log(messages.register(logType, "", " more errors not listed: " + messages.get(code).summaryText()), -1, "", String.valueOf(count)));
+		}
+	}
 
-	private void validateWorkRightShares(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "workrightshares");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/workrightshares.tsv"), StandardCharsets.UTF_8)) {
+	private CompletableFuture<List<TsvChunk>> validateInput(String snapshot, TsvInput input, Schema schema, RecordCheck conditions, Supplier<FileCheck> fileCheck) {
+		IdIndex primaryKey = primaryKeys.get(schema);
+		ArrayList<ForeignKey> checked = new ArrayList<ForeignKey>();
+		ArrayList<IdIndex> checkedIndexes = new ArrayList<IdIndex>();
+		for (ForeignKey reference : schema.getReferences()) {
+			if (unavailable.contains(reference.getParent())) {
+				LOGGER.warn("Skipping check of {} {} against missing {}", schema.getLogType(), reference.getColumnName(), reference.getParent().getLogType());
+			} else {
+				checked.add(reference);
+				checkedIndexes.add(primaryKeys.get(reference.getParent()));
+			}
+		}
+		ForeignKey[] foreignKeys = checked.toArray(new ForeignKey[checked.size()]);
+		IdIndex[] foreignKeyIndexes = checkedIndexes.toArray(new IdIndex[checkedIndexes.size()]);
 
-			workrightsharesLineNumber = 0;
+		// references to a spilled index are joined once the whole file is read
+		DeferredReferences[] deferred = new DeferredReferences[foreignKeys.length];
+		try {
+			for (int i = 0; i < foreignKeys.length; i++) {
+				if (foreignKeyIndexes[i].isSpilled()) {
+					deferred[i] = new DeferredReferences(indexBudget, spillDirectory);
+				}
+			}
+		} catch (IOException e) {
+			closeAll(deferred);
+			throw new UncheckedIOException(e);
+		}
 
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
-
-					workrightsharesLineNumber++;
-					boolean valid = validateAll(snapshot, workrightsharesLineNumber, rec, "workrightshares", WorkRightShares);
-					if (valid) {
-						// check conditional fields
-						if (rec[7].equals("") && rec[8].equals("")) {
-							log(snapshot, "workrightshares", rec[0], "" + workrightsharesLineNumber, "Condition not fulfilled for " + WorkRightShares[7][0] + " and " + WorkRightShares[8][0]);
-							// String key = snapshot + "\t" + rec[0] + "\t" + "\t" + "Condition not fulfilled for " + WorkRightShares[7][0] + " and " + WorkRightShares[8][0];
-							// int count = 0;
-							// if (recurringMessages.containsKey(key)) {
-							// count = recurringMessages.get(key);
-							// } else {
-							// LOGGER.debug("LENGTH linenumber:{} {} recrd={}", workrightsharesLineNumber, rec[0], rec);
-							// LOGGER.debug("LENGTH linenumber:{} {} schema={}", rec[0], WorkRightShares.length);
-							// }
-							// recurringMessages.put(key, count);
+		// the cache of a feed provider is shared by its snapshots, named <provider>_<timestamp>
+		ValidationCache cache = null;
+		if (cacheDirectory != null) {
+			try {
+				cache = new ValidationCache(cacheDirectory.resolve(snapshot.replaceFirst("_\\d+$", "")), schema.getLogType(), rulesFingerprint);
+			} catch (IOException e) {
+				closeAll(deferred);
+				throw new UncheckedIOException(e);
+			}
+		}
+		ValidationCache validationCache = cache;
+
+		DuplicateKeys duplicates = new DuplicateKeys(input.estimateLines(), indexBudget, spillDirectory);
+		FileCheck check = fileCheck != null ? fileCheck.get() : null;
+
+		return input.forEachChunk(pool, chunk -> validateChunk(snapshot, chunk, schema, conditions, primaryKey, duplicates, foreignKeys, foreignKeyIndexes, deferred, validationCache, check))
+				.thenCompose(chunks -> findDuplicates(snapshot, input, schema, duplicates).thenApply(v -> chunks)).thenApply(chunks ->
+					{
+						try {
+							if (validationCache != null) {
+								validationCache.commit();
+								LOGGER.info("Reused cached findings of {} of {} lines {} {}", validationCache.getReusedLines(), validationCache.getLines(), snapshot, schema.getLogType());
+							}
+							if (primaryKey != null) {
+								primaryKey.seal();
+							}
+							for (int i = 0; i < deferred.length; i++) {
+								if (deferred[i] != null) {
+									joinReferences(snapshot, input, schema, foreignKeys[i], foreignKeyIndexes[i], deferred[i]);
+								}
+							}
+							if (check != null) {
+								check.report(input);
+							}
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						return chunks;
+					}).whenComplete((c, e) ->
+						{
+							closeAll(deferred);
+							closeAll(duplicates, validationCache, check);
+						});
+	}
 
+	private void validateChunk(String snapshot, TsvChunk chunk, Schema schema, RecordCheck conditions, IdIndex primaryKey, DuplicateKeys duplicates, ForeignKey[] foreignKeys, IdIndex[] foreignKeyIndexes, DeferredReferences[] deferred, ValidationCache cache, FileCheck check) {
+		LOGGER.debug("Chunk {} {}", snapshot, chunk);
+		ValidationMetrics.FileMetrics fileMetrics = metrics.file(schema.getLogType());
+		fileMetrics.startChunk();
+		long chunkStart = System.nanoTime();
+		ErrorBudget.FileBudget fileBudget = budget != null ? budget.file(schema.getLogType()) : null;
+		DeferredReferences.Collector[] collectors = new DeferredReferences.Collector[deferred.length];
+		for (int i = 0; i < deferred.length; i++) {
+			if (deferred[i] != null) {
+				collectors[i] = deferred[i].collector();
+			}
+		}
+		// checks of a line on its own, which the cache can replace
+		TsvReader.RecordHandler columns = (lineNumber, rec) ->
+			{
+				boolean valid = validateAll(snapshot, lineNumber, rec, schema);
+				if (valid && conditions != null) {
+					if (ValidationMetrics.isTimed(lineNumber)) {
+						long start = System.nanoTime();
+						conditions.check(snapshot, lineNumber, rec);
+						fileMetrics.check(ValidationMetrics.CONDITIONS, System.nanoTime() - start);
+					} else {
+						conditions.check(snapshot, lineNumber, rec);
+					}
+				}
+			};
+		TsvReader.RecordHandler identifiers = (lineNumber, rec) ->
+			{
+				if (fileBudget != null && fileBudget.isStopped()) {
+					throw ValidationStopped.INSTANCE;
+				}
+				boolean timed = ValidationMetrics.isTimed(lineNumber);
+				long start = timed ? System.nanoTime() : 0;
+				if (!rec.isEmpty(0)) {
+					long key = Fingerprint.of(rec.buffer(), rec.start(0), rec.end(0));
+					duplicates.add(key);
+					if (primaryKey != null) {
+						primaryKey.add(key);
+					}
+				}
+				if (rec.fieldCount() == schema.size()) {
+					if (check != null) {
+						long checkStart = timed ? System.nanoTime() : 0;
+						check.line(lineNumber, chunk.getStart() + rec.start(0), rec);
+						if (timed) {
+							long checkNanos = System.nanoTime() - checkStart;
+							fileMetrics.check(ValidationMetrics.FILE_CHECK, checkNanos);
+							// not counted as time of the keys
+							start += checkNanos;
 						}
-						if (!rec[7].equals("") && !rec[8].equals("")) {
-							DateTime start = getDate(rec[7]);
-							DateTime end = getDate(rec[7]);
-							if (!end.isAfter(start)) {
-								log(snapshot, "workrightshares", rec[0], "" + workrightsharesLineNumber, WorkRightShares[8][0] + " before " + WorkRightShares[7][0]);
-							}
+					}
+					for (int i = 0; i < foreignKeys.length; i++) {
+						int column = foreignKeys[i].getColumn();
+						if (rec.isEmpty(column)) {
+							continue;
+						}
+						if (collectors[i] != null) {
+							collectors[i].add(Fingerprint.of(rec.buffer(), rec.start(column), rec.end(column)), chunk.getStart() + rec.start(0), lineNumber);
+						} else if (!foreignKeyIndexes[i].contains(rec.buffer(), rec.start(column), rec.end(column))) {
+							log(foreignKeys[i].getMissingCode(), lineNumber, rec, column);
 						}
 					}
-				});
+				}
+				if (timed) {
+					fileMetrics.check(ValidationMetrics.KEYS, System.nanoTime() - start);
+				}
+			};
+		try {
+			if (cache == null) {
+				TsvReader.forEachRecord(chunk, (lineNumber, rec) ->
+					{
+						identifiers.record(lineNumber, rec);
+						columns.record(lineNumber, rec);
+					});
+			} else {
+				TsvReader.withBuffer(chunk, (buffer, length) ->
+					{
+						ValidationCache.Segmenter segments = new ValidationCache.Segmenter(buffer, chunk.getFirstLineNumber(), (start, end, firstLineNumber, lineCount, hash) ->
+							{
+								if (!cache.replay(hash, lineCount, firstLineNumber, (code, lineNumber, data, idStart, idEnd, valueStart, valueEnd) -> log(code, lineNumber, data, idStart, idEnd, valueStart, valueEnd))) {
+									ValidationCache.Findings findings = new ValidationCache.Findings(firstLineNumber, lineCount);
+									recording.set(findings);
+									try {
+										TsvReader.forEachRecord(buffer, start, end, firstLineNumber, columns);
+									} finally {
+										recording.remove();
+									}
+									cache.store(hash, findings);
+								}
+							});
+						TsvReader.forEachRecord(buffer, 0, length, chunk.getFirstLineNumber(), (lineNumber, rec) ->
+							{
+								segments.line(rec);
+								identifiers.record(lineNumber, rec);
+							});
+						segments.finish(length);
+					});
+			}
+			for (DeferredReferences.Collector collector : collectors) {
+				if (collector != null) {
+					collector.flush();
+				}
+			}
 		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "workrightshares", e);
+			throw new UncheckedIOException(e);
 		} finally {
-
-			LOGGER.debug("End {} {} processed={}", snapshot, "workrightshares", workrightsharesLineNumber);
-			size--;
+			fileMetrics.endChunk(chunk.getLineCount(), chunk.getLength(), System.nanoTime() - chunkStart);
 		}
 	}
 
-	int recordingsLineNumber = 0;
-
-	private void validateRecordings(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "recordings");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/recordings.tsv"), StandardCharsets.UTF_8)) {
-
-			recordingsLineNumber = 0;
-
-			lines.forEach(line ->
+	/**
+	 * Second pass of the duplicate key check, only over files with candidates.
+	 */
+	private CompletableFuture<Void> findDuplicates(String snapshot, TsvInput input, Schema schema, DuplicateKeys duplicates) {
+		if (!duplicates.hasCandidates()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		LOGGER.debug("Confirm {} duplicate candidates {} {}", duplicates.candidateCount(), snapshot, schema.getLogType());
+		return input.forEachChunk(pool, chunk ->
+			{
+				try {
+					TsvReader.forEachRecord(chunk, (lineNumber, rec) ->
+						{
+							if (!rec.isEmpty(0)) {
+								duplicates.addOccurrence(Fingerprint.of(rec.buffer(), rec.start(0), rec.end(0)), chunk.getStart() + rec.start(0), lineNumber);
+							}
+						});
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).thenRun(() ->
 				{
-					String rec[] = line.split("\t", -1);
-
-					recordingsLineNumber++;
-					boolean valid = validateAll(snapshot, recordingsLineNumber, rec, "recordings", Recordings);
-					if (valid) {
-						// check conditional fields
-						if ((!rec[10].equals("") || rec[11].equals("")) && rec[13].equals("")) {
-							log(snapshot, "recordings", rec[0], "" + recordingsLineNumber, "Condition not fulfilled for " + Recordings[13][0]);
-						}
+					try {
+						duplicates.report(input, (lineNumber, key, firstLineNumber) -> log(schema.getDuplicateCode(), lineNumber, key, String.valueOf(firstLineNumber)));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
 					}
 				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "recordings", e);
-		} finally {
+	}
+
+	private void joinReferences(String snapshot, TsvInput input, Schema schema, ForeignKey foreignKey, IdIndex parent, DeferredReferences references) throws IOException {
+		LOGGER.debug("Join {} {} with {}", snapshot, schema.getLogType(), foreignKey.getParent().getLogType());
+		MissingLines missing = new MissingLines(input, (lineNumber, rec) -> log(foreignKey.getMissingCode(), lineNumber, rec, foreignKey.getColumn()));
+		references.join(parent.getSortedIds(), missing);
+		missing.flush();
+	}
+
+	/**
+	 * Lines reported in key order by a join, read back in batches in file
+	 * order so a compressed file is streamed once per batch.
+	 */
+	private static final class MissingLines implements DeferredReferences.MissingHandler {
+		private static final int BATCH = 1 << 22;
+
+		private final TsvInput input;
+		private final TsvReader.RecordHandler handler;
+		private long[] lines = new long[1024 * 2];
+		private int count;
+
+		MissingLines(TsvInput input, TsvReader.RecordHandler handler) {
+			this.input = input;
+			this.handler = handler;
+		}
+
+		@Override
+		public void missing(long offset, long lineNumber) throws IOException {
+			if (count * 2 == lines.length) {
+				lines = Arrays.copyOf(lines, lines.length * 2);
+			}
+			lines[count * 2] = offset;
+			lines[count * 2 + 1] = lineNumber;
+			if (++count == BATCH) {
+				flush();
+			}
+		}
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "recordings", recordingsLineNumber);
-			size--;
+		void flush() throws IOException {
+			LongRecordRuns.sort(lines, count, 2);
+			long[] offsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				offsets[i] = lines[i * 2];
+			}
+			int[] next = { 0 };
+			input.readRecords(offsets, count, (offset, rec) -> handler.record(lines[next[0]++ * 2 + 1], rec));
+			count = 0;
 		}
 	}
 
-	int alternativerecordingtitlesLineNumber = 0;
+	private void closeAll(Closeable... closeables) {
+		for (Closeable closeable : closeables) {
+			if (closeable != null) {
+				try {
+					closeable.close();
+				} catch (IOException e) {
+					LOGGER.warn("Could not remove spill files {}", e.getMessage());
+				}
+			}
+		}
+	}
 
-	private void validateAlternativeRecordingTitles(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "recordingalternativetitles");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/recordingalternativetitles.tsv"), StandardCharsets.UTF_8)) {
+	private CompletableFuture<Void> validateWorks(String snapshot) {
+		return validateFile(snapshot, WorksSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if (!rec.isEmpty(9) && rec.isEmpty(10)) {
+					log(worksCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+			});
+	}
 
-			alternativerecordingtitlesLineNumber = 0;
+	private CompletableFuture<Void> validateAlternativeWorkTitles(String snapshot) {
+		return validateFile(snapshot, AlternativeWorkTitlesSchema, null);
+	}
 
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
+	private CompletableFuture<Void> validateWorkIdentifiers(String snapshot) {
+		return validateFile(snapshot, WorkIdentifiersSchema, null);
+	}
 
-					alternativerecordingtitlesLineNumber++;
-					validateAll(snapshot, alternativerecordingtitlesLineNumber, rec, "recordingalternativetitles", AlternativeRecordingTitles);
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "recordingalternativetitles", e);
-		} finally {
+	private CompletableFuture<Void> validateParties(String snapshot) {
+		return validateFile(snapshot, PartiesSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if (rec.isEmpty(9) && rec.isEmpty(10) && rec.isEmpty(11) && !rec.isEmpty(13)) {
+					log(partiesCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+			});
+	}
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "recordingalternativetitles", alternativerecordingtitlesLineNumber);
-			size--;
-		}
+	private CompletableFuture<Void> validateWorkRightShares(String snapshot) {
+		return validateFile(snapshot, WorkRightSharesSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if (rec.isEmpty(7) && rec.isEmpty(8)) {
+					log(workRightSharesCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+				if (!rec.isEmpty(7) && !rec.isEmpty(8)) {
+					long start = FormatScanner.parseDate(rec.buffer(), rec.start(7), rec.end(7));
+					long end = FormatScanner.parseDate(rec.buffer(), rec.start(8), rec.end(8));
+					if (end <= start) {
+						log(workRightSharesDates, lineNumber, rec, FindingBuffer.NO_VALUE);
+					}
+				}
+			}, () -> new FileChecks(new ShareTotals(), new ShareHierarchy()));
 	}
 
-	int recordingidentifiersLineNumber = 0;
+	/**
+	 * Several checks over the lines of one file.
+	 */
+	private final class FileChecks implements FileCheck {
+		private final FileCheck[] checks;
 
-	private void validateRecordingIdentifiers(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "recordingidentifiers");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/recordingidentifiers.tsv"), StandardCharsets.UTF_8)) {
+		FileChecks(FileCheck... checks) {
+			this.checks = checks;
+		}
 
-			recordingidentifiersLineNumber = 0;
+		@Override
+		public void line(long lineNumber, long offset, TsvRecord rec) {
+			for (FileCheck check : checks) {
+				check.line(lineNumber, offset, rec);
+			}
+		}
 
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
+		@Override
+		public void report(TsvInput input) throws IOException {
+			for (FileCheck check : checks) {
+				check.report(input);
+			}
+		}
 
-					recordingidentifiersLineNumber++;
-					validateAll(snapshot, recordingidentifiersLineNumber, rec, "recordingidentifiers", RecordingIdentifiers);
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "recordingidentifiers", e);
-		} finally {
-			LOGGER.debug("End {} {} processed={}", snapshot, "recordingidentifiers", recordingidentifiersLineNumber);
-			size--;
+		@Override
+		public void close() throws IOException {
+			closeAll(checks);
 		}
 	}
 
-	int releasesLineNumber = 0;
+	/**
+	 * Lines to report once a file is done, with two longs each, read back in
+	 * batches in file order like {@link MissingLines}.
+	 */
+	private static final class PendingLines {
+		private static final int BATCH = 1 << 22;
+
+		private final TsvInput input;
+		private final PendingHandler handler;
+		// offset, line number and the two longs of each line
+		private long[] lines = new long[4 * 64];
+		private int count;
+
+		interface PendingHandler {
+			void line(TsvRecord rec, long lineNumber, long a, long b);
+		}
 
-	private void validateReleases(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "releases");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/releases.tsv"), StandardCharsets.UTF_8)) {
+		PendingLines(TsvInput input, PendingHandler handler) {
+			this.input = input;
+			this.handler = handler;
+		}
 
-			releasesLineNumber = 0;
+		void add(long offset, long lineNumber, long a, long b) throws IOException {
+			if ((count + 1) * 4 > lines.length) {
+				lines = Arrays.copyOf(lines, lines.length * 2);
+			}
+			int i = count++ * 4;
+			lines[i] = offset;
+			lines[i + 1] = lineNumber;
+			lines[i + 2] = a;
+			lines[i + 3] = b;
+			if (count == BATCH) {
+				flush();
+			}
+		}
 
-			lines.forEach(line ->
+		void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			LongRecordRuns.sort(lines, count, 4);
+			long[] offsets = new long[count];
+			int distinct = 0;
+			for (int i = 0; i < count; i++) {
+				if (distinct == 0 || offsets[distinct - 1] != lines[i * 4]) {
+					offsets[distinct++] = lines[i * 4];
+				}
+			}
+			int[] next = { 0 };
+			input.readRecords(offsets, distinct, (offset, rec) ->
 				{
-					String rec[] = line.split("\t", -1);
-
-					releasesLineNumber++;
-					boolean valid = validateAll(snapshot, releasesLineNumber, rec, "releases", Releases);
-					if (valid) {
-						// check conditional fields
-						if ((!rec[8].equals("") || rec[9].equals("")) && rec[10].equals("")) {
-							log(snapshot, "releases", rec[0], "" + releasesLineNumber, "Condition not fulfilled for " + Releases[10][0]);
-						}
+					for (; next[0] < count && lines[next[0] * 4] == offset; next[0]++) {
+						int i = next[0] * 4;
+						handler.line(rec, lines[i + 1], lines[i + 2], lines[i + 3]);
 					}
 				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "releases", e);
-		} finally {
-
-			LOGGER.debug("End {} {} processed={}", snapshot, "releases", releasesLineNumber);
-			size--;
+			count = 0;
 		}
 	}
 
-	int releaseidentifiersLineNumber = 0;
-
-	private void validateReleaseIdentifiers(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "releaseidentifiers");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/releaseidentifiers.tsv"), StandardCharsets.UTF_8)) {
-
-			releaseidentifiersLineNumber = 0;
-
-			lines.forEach(line ->
-				{
-					String rec[] = line.split("\t", -1);
+	private static String percentage(double value) {
+		return BigDecimal.valueOf(value).setScale(6, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+	}
 
-					releaseidentifiersLineNumber++;
-					validateAll(snapshot, releaseidentifiersLineNumber, rec, "releaseidentifiers", ReleaseIdentifiers);
-				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "releaseidentifiers", e);
-		} finally {
+	/**
+	 * Sums the RightSharePercentage of the shares of each work that are not
+	 * part of another share, per RightShareType, RightsType, TerritoryCode,
+	 * UseType and validity window as written. A share with several values in
+	 * one of these columns counts for each of them. Totals over 100 are
+	 * reported on the first line of the group.
+	 */
+	private final class ShareTotals implements FileCheck {
+		private final int[] dimensions = { 5, 6, 10, 11 };
+		private final GroupAggregator groups = new GroupAggregator(indexBudget, spillDirectory);
+
+		@Override
+		public void line(long lineNumber, long offset, TsvRecord rec) {
+			if (rec.isEmpty(1) || rec.isEmpty(4) || !rec.isEmpty(9)) {
+				return;
+			}
+			double percentage = FormatScanner.parseNumber(rec.buffer(), rec.start(4), rec.end(4));
+			if (Double.isNaN(percentage)) {
+				return;
+			}
+			long key = Fingerprint.of(rec.buffer(), rec.start(1), rec.end(1));
+			key = combine(key, Fingerprint.of(rec.buffer(), rec.start(7), rec.end(7)));
+			key = combine(key, Fingerprint.of(rec.buffer(), rec.start(8), rec.end(8)));
+			add(rec, 0, key, 0, percentage, lineNumber, offset);
+		}
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "releaseidentifiers", releaseidentifiersLineNumber);
-			size--;
+		/**
+		 * Adds the share to the group of every combination of the values of
+		 * the multi-valued columns, the tag holds the index of each value.
+		 */
+		private void add(TsvRecord rec, int dimension, long key, long tag, double percentage, long lineNumber, long offset) {
+			if (dimension == dimensions.length) {
+				groups.add(key == 0 ? 1 : key, percentage, lineNumber, offset, tag);
+				return;
+			}
+			int field = dimensions[dimension];
+			int end = rec.end(field);
+			int valueStart = rec.start(field);
+			long index = 0;
+			for (int i = valueStart; i <= end; i++) {
+				if (i == end || rec.buffer().get(i) == '|') {
+					if (!repeats(rec.buffer(), rec.start(field), valueStart, i)) {
+						add(rec, dimension + 1, combine(key, Fingerprint.of(rec.buffer(), valueStart, i)), tag | Math.min(index, 0xFFFF) << (16 * dimension), percentage, lineNumber, offset);
+					}
+					index++;
+					valueStart = i + 1;
+				}
+			}
 		}
-	}
 
-	int worksrecordingsLineNumber = 0;
+		/**
+		 * Whether the value between <code>valueStart</code> and
+		 * <code>valueEnd</code> is also one of the values before it, a share
+		 * counts once per group.
+		 */
+		private boolean repeats(ByteBuffer buffer, int fieldStart, int valueStart, int valueEnd) {
+			int length = valueEnd - valueStart;
+			int start = fieldStart;
+			for (int i = fieldStart; i < valueStart; i++) {
+				if (buffer.get(i) == '|') {
+					if (i - start == length && equals(buffer, start, valueStart, length)) {
+						return true;
+					}
+					start = i + 1;
+				}
+			}
+			return false;
+		}
 
-	private void validateWorkRecordings(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "worksrecordings");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/worksrecordings.tsv"), StandardCharsets.UTF_8)) {
+		private boolean equals(ByteBuffer buffer, int a, int b, int length) {
+			for (int i = 0; i < length; i++) {
+				if (buffer.get(a + i) != buffer.get(b + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
 
-			worksrecordingsLineNumber = 0;
+		private long combine(long key, long value) {
+			return Fingerprint.mix(key * 0x9E3779B97F4A7C15L ^ value);
+		}
 
-			lines.forEach(line ->
+		@Override
+		public void report(TsvInput input) throws IOException {
+			// tag and total of the groups over 100
+			PendingLines over = new PendingLines(input, (rec, lineNumber, tag, sum) -> log(workRightSharesTotal, lineNumber, rec.field(0), percentage(Double.longBitsToDouble(sum)) + " (" + describe(rec, tag) + ")"));
+			groups.forEach((key, sum, count, lineNumber, offset, tag) ->
 				{
-					String rec[] = line.split("\t", -1);
-
-					worksrecordingsLineNumber++;
-					validateAll(snapshot, worksrecordingsLineNumber, rec, "worksrecordings", WorkRecordings);
+					// totals of decimal percentages are not exact
+					if (sum > 100.000001) {
+						over.add(offset, lineNumber, tag, Double.doubleToRawLongBits(sum));
+					}
 				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "worksrecordings", e);
-		} finally {
+			over.flush();
+		}
 
-			LOGGER.debug("End {} {} processed={}", snapshot, "worksrecordings", worksrecordingsLineNumber);
-			size--;
+		/**
+		 * The work and the values of the group a line was tagged with.
+		 */
+		private String describe(TsvRecord rec, long tag) {
+			StringBuilder group = new StringBuilder(WorkRightShares[1][0]).append(' ').append(rec.field(1));
+			for (int d = 0; d < dimensions.length; d++) {
+				String value = rec.field(dimensions[d]).split("\\|", -1)[(int) (tag >>> (16 * d) & 0xFFFF)];
+				if (!value.isEmpty()) {
+					group.append(", ").append(WorkRightShares[dimensions[d]][0]).append(' ').append(value);
+				}
+			}
+			for (int field = 7; field <= 8; field++) {
+				if (!rec.isEmpty(field)) {
+					group.append(", ").append(WorkRightShares[field][0]).append(' ').append(rec.field(field));
+				}
+			}
+			return group.toString();
 		}
-	}
 
-	int unclaimedworksLineNumber = 0;
+		@Override
+		public void close() throws IOException {
+			groups.close();
+		}
+	}
 
-	private void validateAUnclaimedWorks(String snapshot) {
-		LOGGER.debug("Start {} {} ", snapshot, "unclaimedworkrightshares");
-		try (Stream<String> lines = Files.lines(Paths.get(BASE_LOCATION + snapshot + "/unclaimedworkrightshares.tsv"), StandardCharsets.UTF_8)) {
-			// List<String[]> records = lines.map(line -> pattern.split(line)).collect(Collectors.toList());
-			unclaimedworksLineNumber = 0;
+	/**
+	 * Resolves FeedProvidersParentWorkRightShareId within the file: the parent
+	 * share must exist, a share may not have a higher RightSharePercentage
+	 * than its parent and parents may not form a cycle, see
+	 * {@link ParentLinks}.
+	 */
+	private final class ShareHierarchy implements FileCheck {
+		private final ParentLinks links = new ParentLinks(indexBudget, spillDirectory);
+
+		@Override
+		public void line(long lineNumber, long offset, TsvRecord rec) {
+			long id = rec.isEmpty(0) ? 0 : Fingerprint.of(rec.buffer(), rec.start(0), rec.end(0));
+			long parent = rec.isEmpty(9) ? 0 : Fingerprint.of(rec.buffer(), rec.start(9), rec.end(9));
+			double percentage = rec.isEmpty(4) ? Double.NaN : FormatScanner.parseNumber(rec.buffer(), rec.start(4), rec.end(4));
+			links.add(id, parent, percentage, offset, lineNumber);
+		}
 
-			lines.forEach(line ->
+		@Override
+		public void report(TsvInput input) throws IOException {
+			// code of the finding and its number
+			PendingLines found = new PendingLines(input, (rec, lineNumber, code, value) ->
 				{
-					String rec[] = line.split("\t", -1);
-
-					unclaimedworksLineNumber++;
-					boolean valid = validateAll(snapshot, unclaimedworksLineNumber, rec, "unclaimedworkrightshares", UnclaimedWorks);
-					if (valid) {
-						// check conditional fields
-						if (rec[1].equals("") && rec[5].equals("") && rec[8].equals("")) {
-							log(snapshot, "unclaimedworkrightshares", rec[0], "" + unclaimedworksLineNumber, "Condition not fulfilled for (" + UnclaimedWorks[1][0] + ", " + UnclaimedWorks[5][0] + ", " + UnclaimedWorks[8][0] + ")");
-						}
+					if (code == workRightSharesParent) {
+						log(workRightSharesParent, lineNumber, rec, 9);
+					} else if (code == workRightSharesOverParent) {
+						log(workRightSharesOverParent, lineNumber, rec.field(0), rec.field(4) + " > " + percentage(Double.longBitsToDouble(value)) + " (" + WorkRightShares[9][0] + " " + rec.field(9) + ")");
+					} else {
+						logNumber(workRightSharesCycle, lineNumber, rec, value);
 					}
 				});
-		} catch (IOException e) {
-			LOGGER.error("Error {} {} {}", snapshot, "unclaimedworkrightshares", e);
-		} finally {
-			LOGGER.debug("End {} {} processed={}", snapshot, "unclaimedworkrightshares", unclaimedworksLineNumber);
-			size--;
-		}
-	}
+			links.report(new ParentLinks.LinkHandler() {
+				@Override
+				public void missingParent(long offset, long lineNumber) throws IOException {
+					found.add(offset, lineNumber, workRightSharesParent, 0);
+				}
 
-	int size = 0;
+				@Override
+				public void overParent(long offset, long lineNumber, double parentPercentage) throws IOException {
+					found.add(offset, lineNumber, workRightSharesOverParent, Double.doubleToRawLongBits(parentPercentage));
+				}
 
-	public void validate(String snapshot) throws IOException {
-		initLogger(snapshot);
-		LOGGER.info("Start Validation of Snapshot {}", snapshot);
+				@Override
+				public void cycle(long offset, long lineNumber, int length) throws IOException {
+					found.add(offset, lineNumber, workRightSharesCycle, length);
+				}
+			});
+			found.flush();
+		}
 
-		ArrayList<Thread> workers = new ArrayList<Thread>();
+		@Override
+		public void close() throws IOException {
+			links.close();
+		}
+	}
 
-		Runnable validateWorks = new Runnable() {
-			public void run() {
-				validateWorks(snapshot);
-			}
-		};
-		workers.add(new Thread(validateWorks));
+	private CompletableFuture<Void> validateRecordings(String snapshot) {
+		return validateFile(snapshot, RecordingsSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if ((!rec.isEmpty(10) || rec.isEmpty(11)) && rec.isEmpty(13)) {
+					log(recordingsCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+			});
+	}
 
-		Runnable validateAlternativeWorkTitles = new Runnable() {
-			public void run() {
-				validateAlternativeWorkTitles(snapshot);
-			}
-		};
-		workers.add(new Thread(validateAlternativeWorkTitles));
+	private CompletableFuture<Void> validateAlternativeRecordingTitles(String snapshot) {
+		return validateFile(snapshot, AlternativeRecordingTitlesSchema, null);
+	}
 
-		Runnable validateWorkIdentifiers = new Runnable() {
-			public void run() {
-				validateWorkIdentifiers(snapshot);
-			}
-		};
-		workers.add(new Thread(validateWorkIdentifiers));
+	private CompletableFuture<Void> validateRecordingIdentifiers(String snapshot) {
+		return validateFile(snapshot, RecordingIdentifiersSchema, null);
+	}
 
-		Runnable validateParties = new Runnable() {
-			public void run() {
-				validateParties(snapshot);
-			}
-		};
-		workers.add(new Thread(validateParties));
+	private CompletableFuture<Void> validateReleases(String snapshot) {
+		return validateFile(snapshot, ReleasesSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if ((!rec.isEmpty(8) || rec.isEmpty(9)) && rec.isEmpty(10)) {
+					log(releasesCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+			});
+	}
 
-		Runnable validateWorkRightShares = new Runnable() {
-			public void run() {
-				validateWorkRightShares(snapshot);
-			}
-		};
-		workers.add(new Thread(validateWorkRightShares));
+	private CompletableFuture<Void> validateReleaseIdentifiers(String snapshot) {
+		return validateFile(snapshot, ReleaseIdentifiersSchema, null);
+	}
 
-		Runnable validateRecordings = new Runnable() {
-			public void run() {
-				validateRecordings(snapshot);
-			}
-		};
-		workers.add(new Thread(validateRecordings));
+	private CompletableFuture<Void> validateWorkRecordings(String snapshot) {
+		return validateFile(snapshot, WorkRecordingsSchema, null);
+	}
 
-		Runnable validateAlternativeRecordingTitles = new Runnable() {
-			public void run() {
-				validateAlternativeRecordingTitles(snapshot);
-			}
-		};
-		workers.add(new Thread(validateAlternativeRecordingTitles));
+	private CompletableFuture<Void> validateAUnclaimedWorks(String snapshot) {
+		return validateFile(snapshot, UnclaimedWorksSchema, (s, lineNumber, rec) ->
+			{
+				// check conditional fields
+				if (rec.isEmpty(1) && rec.isEmpty(5) && rec.isEmpty(8)) {
+					log(unclaimedWorksCondition, lineNumber, rec, FindingBuffer.NO_VALUE);
+				}
+			});
+	}
 
-		Runnable validateRecordingIdentifiers = new Runnable() {
-			public void run() {
-				validateRecordingIdentifiers(snapshot);
-			}
-		};
-		workers.add(new Thread(validateRecordingIdentifiers));
 
-		Runnable validateReleases = new Runnable() {
-			public void run() {
-				validateReleases(snapshot);
-			}
-		};
-		workers.add(new Thread(validateReleases));
+	public void validate(String snapshot) throws IOException {
+		// files missing from the snapshot directory are looked up in <snapshot>.zip
+		Path zipped = Paths.get(BASE_LOCATION + snapshot + ".zip");
+		archive = Files.isRegularFile(zipped) ? new ZipFile(zipped.toFile()) : null;
+		initLogger(snapshot);
+		LOGGER.info("Start Validation of Snapshot {}", snapshot);
 
-		Runnable validateReleaseIdentifiers = new Runnable() {
-			public void run() {
-				validateReleaseIdentifiers(snapshot);
+		try {
+			primaryKeys.clear();
+			indexBudget = sharedBudget != null ? sharedBudget : new MemoryBudget(indexMemory);
+			for (Schema schema : schemas.values()) {
+				if (schema.isReferenced()) {
+					primaryKeys.put(schema, new IdIndex(indexBudget, spillDirectory));
+				}
 			}
-		};
-		workers.add(new Thread(validateReleaseIdentifiers));
-
-		Runnable validateWorkRecordings = new Runnable() {
-			public void run() {
-				validateWorkRecordings(snapshot);
+			files.clear();
+			unavailable.clear();
+			budget = maxErrors > 0 || maxListed > 0 ? new ErrorBudget(maxErrors, maxListed, failFast, messages) : null;
+			estimate = sampleSize > 0 ? new SampleEstimate(maxErrorRate) : null;
+
+			// parents first, see validateFile, and larger files before smaller ones
+			List<Schema> order = scheduleOrder(snapshot);
+			CompletableFuture<?>[] all = new CompletableFuture<?>[order.size()];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = fileValidators.get(order.get(i)).apply(snapshot);
 			}
-		};
-		workers.add(new Thread(validateWorkRecordings));
-
-		Runnable validateAUnclaimedWorks = new Runnable() {
-			public void run() {
-				validateAUnclaimedWorks(snapshot);
+			CompletableFuture.allOf(all).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
-		};
-		workers.add(new Thread(validateAUnclaimedWorks));
+			throw new IOException("Validation of " + snapshot + " failed", e.getCause());
+		} finally {
+			closeAll(primaryKeys.values().toArray(new Closeable[primaryKeys.size()]));
+			closeAll(archive);
+			archive = null;
+			finish();
+		}
 
-		size = workers.size();
+		if (isRejected()) {
+			LOGGER.warn("Rejected Snapshot {} after {} errors in a file", snapshot, maxErrors);
+		}
+		if (estimate != null) {
+			estimate.write(Paths.get(BASE_LOCATION + snapshot, "validator_estimate.tsv"), snapshot, messages);
+			LOGGER.info("Estimate for Snapshot {}: {}", snapshot, estimate.decision());
+		}
+		LOGGER.info("End Validation of Snapshot  {}", snapshot);
 
-		int initSize = size;
+	}
 
-		for (Thread worker : workers) {
-			worker.start();
+	/**
+	 * Files in an order where every file follows the files it refers to and
+	 * otherwise the largest file comes first.
+	 */
+	private List<Schema> scheduleOrder(String snapshot) {
+		HashMap<Schema, Long> sizes = new HashMap<Schema, Long>();
+		for (Schema schema : schemas.values()) {
+			sizes.put(schema, estimateSize(snapshot, schema, archive));
 		}
-
-		boolean isAlive = false;
-		do {
-			try {
-				Thread.sleep(10 * 1000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			int count = 0;
-			for (Thread worker : workers) {
-				isAlive = isAlive || worker.isAlive();
-				if (isAlive) {
-					count++;
+		List<Schema> order = new ArrayList<Schema>();
+		while (order.size() < schemas.size()) {
+			Schema next = null;
+			for (Schema schema : schemas.values()) {
+				if (order.contains(schema) || (next != null && sizes.get(schema) <= sizes.get(next))) {
+					continue;
+				}
+				boolean ready = true;
+				for (ForeignKey reference : schema.getReferences()) {
+					ready &= order.contains(reference.getParent());
+				}
+				if (ready) {
+					next = schema;
 				}
 			}
+			order.add(next);
+		}
+		return order;
+	}
 
-			LOGGER.debug("Main {}/{} Running - isAlive={} countAlive={}", size, initSize, isAlive, count);
-
-		} while (size > 0);
-
-		Set<String> keys = recurringMessages.keySet();
-
-		for (String key : keys) {
-			int count = recurringMessages.get(key);
-			// logger.write(key + "(Found " + count + " times)\n");
-			summary.write(key + "\t" + count);
+	private long estimateSize(String snapshot, Schema schema, ZipFile archive) {
+		try (TsvInput input = TsvInput.open(Paths.get(BASE_LOCATION + snapshot), archive, schema.getFileName())) {
+			return input.estimateSize();
+		} catch (IOException e) {
+			return 0;
 		}
+	}
 
-		finish();
-		LOGGER.info("End Validation of Snapshot  {}", snapshot);
+	/**
+	 * Bytes the identifier indexes and duplicate filters of a snapshot are
+	 * expected to take, from the size of its files.
+	 */
+	long estimateIndexMemory(String snapshot) throws IOException {
+		Path zipped = Paths.get(BASE_LOCATION + snapshot + ".zip");
+		try (ZipFile archive = Files.isRegularFile(zipped) ? new ZipFile(zipped.toFile()) : null) {
+			long bytes = 0;
+			for (Schema schema : schemas.values()) {
+				long lines = estimateSize(snapshot, schema, archive) / TsvInput.ESTIMATED_LINE_LENGTH;
+				bytes += BloomFilter.bytes(lines);
+				if (schema.isReferenced()) {
+					bytes += lines * 16;
+				}
+			}
+			return bytes;
+		}
+	}
 
+	public void shutdown() {
+		pool.shutdown();
 	}
 
 	private static CommandLine parseCommandLine(String[] args) throws ParseException {
 		Options options = new Options();
 		options.addOption(Option.builder("d").required(true).longOpt("snapshot-directory").desc("BWARM Snapshot Base Folder").hasArg().build());
 		options.addOption(Option.builder("s").required(true).longOpt("snapshot").desc("Snapshot Reference").hasArg().build());
+		options.addOption(Option.builder("t").required(false).longOpt("threads").desc("Number of validation threads, defaults to the number of processors").hasArg().build());
+		options.addOption(Option.builder("c").required(false).longOpt("chunk-size").desc("Chunk size in MB used to split files for parallel validation").hasArg().build());
+		options.addOption(Option.builder("m").required(false).longOpt("index-memory").desc("Memory in MB for identifier indexes before they spill to disk, defaults to half the maximum heap").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("spill-directory").desc("Directory for spilled identifier indexes, defaults to the temporary directory").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("cache").desc("Reuse the findings of unchanged lines from the previous snapshot of the feed provider, cached in validation-cache in the snapshot directory").build());
+		options.addOption(Option.builder().required(false).longOpt("cache-directory").desc("Directory for the validation cache, implies --cache").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-errors").desc("Errors after which the validation of a file stops").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-listed").desc("Errors listed per file and kind of message, further ones are only counted in the summary").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("fail-fast").desc("Stop the whole snapshot once a file reaches --max-errors, exits with status 1").build());
+		options.addOption(Option.builder().required(false).longOpt("output-format").desc("Format of the findings: tsv, tsv.gz, tsv.zst or bin, defaults to tsv").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("sample").desc("Number of random lines checked per file to estimate the error rates in validator_estimate.tsv, exits with status 1 on NO-GO").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-error-rate").desc("Error rate in percent of a file above which a sample is NO-GO, defaults to 1").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-directory").desc("Directory with a folder of Allowed Value Sets per version of the standard, picked by the version.txt of the snapshot").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-version").desc("Version in --avs-directory for a snapshot without a known version, defaults to the built-in sets").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("metrics-file").desc("Prometheus text file with live metrics of the validation, rewritten every 10 seconds").hasArg().build());
 
 		CommandLineParser parser = new DefaultParser();
 
 		CommandLine line;
 		try {
 			line = parser.parse(options, args);
+			checkErrorBudget(line);
 
 			return line;
 		} catch (ParseException e) {
@@ -1007,13 +1480,67 @@ public class BWARMValidator {
 
 	}
 
+	/**
+	 * Fail-fast needs a limit, without <code>--max-errors</code> no file ever
+	 * reaches it.
+	 */
+	static void checkErrorBudget(CommandLine line) throws ParseException {
+		if (line.hasOption("fail-fast") && Long.parseLong(line.getOptionValue("max-errors", "0")) <= 0) {
+			throw new ParseException("--fail-fast requires --max-errors greater than 0");
+		}
+	}
+
 	public static void main(String a[]) {
 
 		try {
 			CommandLine cmd = BWARMValidator.parseCommandLine(a);
 
-			BWARMValidator validator = new BWARMValidator(cmd.getOptionValue("snapshot-directory"));
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads")) {
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			String base = cmd.getOptionValue("snapshot-directory");
+			Map<String, AVSHelper> avsSets;
+			if (cmd.hasOption("avs-directory")) {
+				avsSets = new AVSVersions(Paths.get(cmd.getOptionValue("avs-directory")), cmd.getOptionValue("avs-version")).forSnapshot(base, cmd.getOptionValue("snapshot"));
+			} else {
+				avsSets = loadAllowedValueSets();
+			}
+			BWARMValidator validator = new BWARMValidator(base, new ForkJoinPool(threads), avsSets);
+			if (cmd.hasOption("chunk-size")) {
+				validator.setChunkSize(Long.parseLong(cmd.getOptionValue("chunk-size")) * 1024 * 1024);
+			}
+			if (cmd.hasOption("index-memory")) {
+				validator.setIndexMemory(Long.parseLong(cmd.getOptionValue("index-memory")) * 1024 * 1024);
+			}
+			if (cmd.hasOption("spill-directory")) {
+				validator.setSpillDirectory(Paths.get(cmd.getOptionValue("spill-directory")));
+			}
+			if (cmd.hasOption("cache-directory")) {
+				validator.setCacheDirectory(Paths.get(cmd.getOptionValue("cache-directory")));
+			} else if (cmd.hasOption("cache")) {
+				validator.setCacheDirectory(Paths.get(cmd.getOptionValue("snapshot-directory"), "validation-cache"));
+			}
+			validator.setErrorBudget(Long.parseLong(cmd.getOptionValue("max-errors", "0")), Long.parseLong(cmd.getOptionValue("max-listed", "0")), cmd.hasOption("fail-fast"));
+			if (cmd.hasOption("output-format")) {
+				validator.setOutputFormat(FindingOutput.Format.of(cmd.getOptionValue("output-format")));
+			}
+			if (cmd.hasOption("sample")) {
+				validator.setSample(Long.parseLong(cmd.getOptionValue("sample")), Double.parseDouble(cmd.getOptionValue("max-error-rate", "1")) / 100);
+			}
+			Path metricsFile = cmd.hasOption("metrics-file") ? Paths.get(cmd.getOptionValue("metrics-file")) : null;
+			if (metricsFile != null) {
+				ValidationMetrics.shared().dumpEvery(metricsFile, 10);
+			}
 			validator.validate(cmd.getOptionValue("snapshot"));
+			validator.shutdown();
+			if (metricsFile != null) {
+				ValidationMetrics.shared().stopDumps();
+				ValidationMetrics.shared().dump(metricsFile);
+			}
+			if (validator.isRejected() || SampleEstimate.NO_GO.equals(validator.getSampleDecision())) {
+				System.exit(1);
+			}
 
 		} catch (ParseException | IOException e1) {
 			e1.printStackTrace();
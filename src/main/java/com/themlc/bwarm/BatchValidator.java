@@ -0,0 +1,362 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Validates many snapshots in one JVM. The Allowed Value Sets are loaded once
+ * and the files of all snapshots run on one work-stealing pool. Snapshots
+ * start largest first, as long as the identifier indexes they are expected to
+ * need fit in the memory budget, which the running snapshots share and spill
+ * from when the estimate was too low.
+ */
+public class BatchValidator {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private final String base;
+	private final ForkJoinPool pool;
+	private final Map<String, AVSHelper> avsSets;
+	private AVSVersions avsVersions;
+	private final MemoryBudget budget;
+
+	private int concurrency;
+	private long chunkSize = TsvSplitter.DEFAULT_CHUNK_SIZE;
+	private Path spillDirectory;
+	private Path cacheDirectory;
+	private long maxErrors;
+	private long maxListed;
+	private boolean failFast;
+	private FindingOutput.Format outputFormat = FindingOutput.Format.TSV;
+
+	// estimated memory of the running snapshots
+	private long admitted;
+	private int running;
+
+	public BatchValidator(String base, int parallelism, long memory) {
+		this.base = base;
+		this.pool = new ForkJoinPool(parallelism);
+		this.avsSets = BWARMValidator.loadAllowedValueSets();
+		this.budget = new MemoryBudget(memory);
+		this.concurrency = parallelism;
+	}
+
+	/**
+	 * Number of snapshots validated at the same time, defaults to the
+	 * parallelism of the pool.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setSpillDirectory(Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public void setCacheDirectory(Path cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public void setOutputFormat(FindingOutput.Format outputFormat) {
+		this.outputFormat = outputFormat;
+	}
+
+	/**
+	 * Validates each snapshot with the Allowed Value Sets of the version it
+	 * declares instead of the built-in ones.
+	 */
+	public void setAVSVersions(AVSVersions avsVersions) {
+		this.avsVersions = avsVersions;
+	}
+
+	/**
+	 * See {@link BWARMValidator#setErrorBudget(long, long, boolean)}.
+	 */
+	public void setErrorBudget(long maxErrors, long maxListed, boolean failFast) {
+		this.maxErrors = maxErrors;
+		this.maxListed = maxListed;
+		this.failFast = failFast;
+	}
+
+	/**
+	 * Snapshot folders and zipped snapshots in the base folder.
+	 */
+	public List<String> findSnapshots() throws IOException {
+		TreeSet<String> snapshots = new TreeSet<String>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(base))) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (Files.isDirectory(entry) && !name.equals("validation-cache") && !name.equals("uploads")) {
+					snapshots.add(name);
+				} else if (Files.isRegularFile(entry) && name.endsWith(".zip")) {
+					snapshots.add(name.substring(0, name.length() - 4));
+				}
+			}
+		}
+		return new ArrayList<String>(snapshots);
+	}
+
+	/**
+	 * Validates the snapshots and returns the number that failed, were
+	 * rejected by the fail-fast limit or are missing.
+	 */
+	public int validate(List<String> snapshots) throws InterruptedException {
+		HashMap<String, Long> estimates = new HashMap<String, Long>();
+		List<String> order = new ArrayList<String>();
+		for (String snapshot : snapshots) {
+			if (!Files.isDirectory(Paths.get(base + snapshot)) && !Files.isRegularFile(Paths.get(base + snapshot + ".zip"))) {
+				LOGGER.error("Skipping missing snapshot {}", snapshot);
+				continue;
+			}
+			try {
+				estimates.put(snapshot, createValidator(base).estimateIndexMemory(snapshot));
+				order.add(snapshot);
+			} catch (IOException e) {
+				LOGGER.error("Skipping snapshot {} {}", snapshot, e.toString());
+			}
+		}
+		Collections.sort(order, (a, b) -> Long.compare(estimates.get(b), estimates.get(a)));
+
+		AtomicInteger failed = new AtomicInteger(snapshots.size() - order.size());
+		ExecutorService drivers = Executors.newFixedThreadPool(concurrency);
+		for (String snapshot : order) {
+			drivers.execute(() ->
+				{
+					try {
+						if (!validate(base, snapshot, estimates.get(snapshot))) {
+							LOGGER.error("Rejected snapshot {} after {} errors in a file", snapshot, maxErrors);
+							failed.incrementAndGet();
+						}
+					} catch (IOException | RuntimeException e) {
+						LOGGER.error("Validation of {} failed {}", snapshot, e.toString());
+						failed.incrementAndGet();
+					} catch (InterruptedException e) {
+						failed.incrementAndGet();
+					}
+				});
+		}
+		drivers.shutdown();
+		drivers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		return failed.get();
+	}
+
+	/**
+	 * Validates one snapshot of any base folder once it fits in the memory
+	 * budget, for callers that run their own jobs. False if the snapshot was
+	 * rejected by the fail-fast limit.
+	 */
+	public boolean validate(String base, String snapshot) throws IOException, InterruptedException {
+		return validate(base, snapshot, createValidator(base).estimateIndexMemory(snapshot));
+	}
+
+	private boolean validate(String base, String snapshot, long estimate) throws IOException, InterruptedException {
+		long memory = Math.min(estimate, budget.getLimit());
+		admit(memory);
+		long start = System.nanoTime();
+		try {
+			BWARMValidator validator = createValidator(base, snapshot);
+			validator.validate(snapshot);
+			LOGGER.info("Validated {} in {} ms", snapshot, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return !validator.isRejected();
+		} finally {
+			leave(memory);
+		}
+	}
+
+	/**
+	 * Waits until the estimate fits next to the running snapshots, a snapshot
+	 * alone is always admitted.
+	 */
+	private synchronized void admit(long memory) throws InterruptedException {
+		while (running > 0 && admitted + memory > budget.getLimit()) {
+			wait();
+		}
+		admitted += memory;
+		running++;
+	}
+
+	private synchronized void leave(long memory) {
+		admitted -= memory;
+		running--;
+		notifyAll();
+	}
+
+	private BWARMValidator createValidator(String base) {
+		return createValidator(base, null);
+	}
+
+	/**
+	 * @param snapshot the snapshot whose version picks the Allowed Value Sets,
+	 *                 null for the default ones
+	 */
+	private BWARMValidator createValidator(String base, String snapshot) {
+		Map<String, AVSHelper> sets = avsSets;
+		if (avsVersions != null) {
+			sets = snapshot != null ? avsVersions.forSnapshot(base, snapshot) : avsVersions.get(null);
+		}
+		BWARMValidator validator = new BWARMValidator(base, pool, sets);
+		validator.setChunkSize(chunkSize);
+		validator.setIndexBudget(budget);
+		validator.setSpillDirectory(spillDirectory);
+		validator.setCacheDirectory(cacheDirectory);
+		validator.setErrorBudget(maxErrors, maxListed, failFast);
+		validator.setOutputFormat(outputFormat);
+		return validator;
+	}
+
+	/**
+	 * Validates a generated snapshot a few times, so the hot paths are
+	 * compiled before the first real snapshot.
+	 */
+	public void warmUp(long works, int rounds) throws IOException {
+		Path directory = Files.createTempDirectory("bwarm-warmup");
+		try {
+			new SnapshotGenerator(createValidator(directory + "/")).setWorks(works).setErrorRate(0.01).generate(directory.resolve("WARMUP"), pool);
+			for (int i = 0; i < rounds; i++) {
+				createValidator(directory + "/").validate("WARMUP");
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static CommandLine parseCommandLine(String[] args) throws ParseException {
+		Options options = new Options();
+		options.addOption(Option.builder("d").required(true).longOpt("snapshot-directory").desc("BWARM Snapshot Base Folder").hasArg().build());
+		options.addOption(Option.builder("s").required(false).longOpt("snapshots").desc("Comma separated Snapshot References, defaults to all snapshots in the snapshot directory").hasArg().build());
+		options.addOption(Option.builder("l").required(false).longOpt("snapshot-list").desc("File with one Snapshot Reference per line").hasArg().build());
+		options.addOption(Option.builder("t").required(false).longOpt("threads").desc("Number of validation threads, defaults to the number of processors").hasArg().build());
+		options.addOption(Option.builder("j").required(false).longOpt("concurrent-snapshots").desc("Number of snapshots validated at the same time, defaults to the number of threads").hasArg().build());
+		options.addOption(Option.builder("c").required(false).longOpt("chunk-size").desc("Chunk size in MB used to split files for parallel validation").hasArg().build());
+		options.addOption(Option.builder("m").required(false).longOpt("index-memory").desc("Memory in MB for the identifier indexes of all running snapshots, defaults to half the maximum heap").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("spill-directory").desc("Directory for spilled identifier indexes, defaults to the temporary directory").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("cache").desc("Reuse the findings of unchanged lines from the previous snapshot of each feed provider, cached in validation-cache in the snapshot directory").build());
+		options.addOption(Option.builder().required(false).longOpt("cache-directory").desc("Directory for the validation cache, implies --cache").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-errors").desc("Errors after which the validation of a file stops").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-listed").desc("Errors listed per file and kind of message, further ones are only counted in the summary").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("fail-fast").desc("Stop the whole snapshot once a file reaches --max-errors").build());
+		options.addOption(Option.builder().required(false).longOpt("output-format").desc("Format of the findings: tsv, tsv.gz, tsv.zst or bin, defaults to tsv").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-directory").desc("Directory with a folder of Allowed Value Sets per version of the standard, picked by the version.txt of each snapshot and reloaded when changed").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-version").desc("Version in --avs-directory for snapshots without a known version, defaults to the built-in sets").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("metrics-file").desc("Prometheus text file with live metrics of the validation, rewritten every 10 seconds").hasArg().build());
+
+		CommandLineParser parser = new DefaultParser();
+		try {
+			CommandLine line = parser.parse(options, args);
+			BWARMValidator.checkErrorBudget(line);
+			return line;
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp("BatchValidator", options);
+			throw e;
+		}
+	}
+
+	public static void main(String[] a) {
+		try {
+			CommandLine cmd = parseCommandLine(a);
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads")) {
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			long memory = Runtime.getRuntime().maxMemory() / 2;
+			if (cmd.hasOption("index-memory")) {
+				memory = Long.parseLong(cmd.getOptionValue("index-memory")) * 1024 * 1024;
+			}
+			String base = cmd.getOptionValue("snapshot-directory");
+			BatchValidator batch = new BatchValidator(base, threads, memory);
+			if (cmd.hasOption("concurrent-snapshots")) {
+				batch.setConcurrency(Integer.parseInt(cmd.getOptionValue("concurrent-snapshots")));
+			}
+			if (cmd.hasOption("chunk-size")) {
+				batch.setChunkSize(Long.parseLong(cmd.getOptionValue("chunk-size")) * 1024 * 1024);
+			}
+			if (cmd.hasOption("spill-directory")) {
+				batch.setSpillDirectory(Paths.get(cmd.getOptionValue("spill-directory")));
+			}
+			if (cmd.hasOption("cache-directory")) {
+				batch.setCacheDirectory(Paths.get(cmd.getOptionValue("cache-directory")));
+			} else if (cmd.hasOption("cache")) {
+				batch.setCacheDirectory(Paths.get(base, "validation-cache"));
+			}
+			if (cmd.hasOption("output-format")) {
+				batch.setOutputFormat(FindingOutput.Format.of(cmd.getOptionValue("output-format")));
+			}
+			if (cmd.hasOption("avs-directory")) {
+				batch.setAVSVersions(new AVSVersions(Paths.get(cmd.getOptionValue("avs-directory")), cmd.getOptionValue("avs-version")));
+			}
+			batch.setErrorBudget(Long.parseLong(cmd.getOptionValue("max-errors", "0")), Long.parseLong(cmd.getOptionValue("max-listed", "0")), cmd.hasOption("fail-fast"));
+
+			List<String> snapshots = new ArrayList<String>();
+			if (cmd.hasOption("snapshots")) {
+				snapshots.addAll(Arrays.asList(cmd.getOptionValue("snapshots").split(",")));
+			}
+			if (cmd.hasOption("snapshot-list")) {
+				for (String line : Files.readAllLines(Paths.get(cmd.getOptionValue("snapshot-list")))) {
+					if (!line.trim().isEmpty()) {
+						snapshots.add(line.trim());
+					}
+				}
+			}
+			if (snapshots.isEmpty()) {
+				snapshots = batch.findSnapshots();
+			}
+
+			Path metricsFile = cmd.hasOption("metrics-file") ? Paths.get(cmd.getOptionValue("metrics-file")) : null;
+			if (metricsFile != null) {
+				ValidationMetrics.shared().dumpEvery(metricsFile, 10);
+			}
+			long start = System.nanoTime();
+			int failed = batch.validate(snapshots);
+			batch.shutdown();
+			if (metricsFile != null) {
+				ValidationMetrics.shared().stopDumps();
+				ValidationMetrics.shared().dump(metricsFile);
+			}
+			LOGGER.info("Validated {} snapshots in {} ms, {} failed", snapshots.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+			if (failed > 0) {
+				System.exit(1);
+			}
+
+		} catch (ParseException | IOException | InterruptedException e1) {
+			e1.printStackTrace();
+			System.exit(99);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a <code>validator.bin</code> written by {@link FindingOutput}.
+ */
+public class BinaryFindings {
+
+	public interface FindingHandler {
+		/**
+		 * @param lineNumber -1 for findings without a line
+		 * @param code the code of the message, the same for all findings of a rule
+		 */
+		void finding(String snapshot, String logType, String id, long lineNumber, int code, String message) throws IOException;
+	}
+
+	private BinaryFindings() {
+	}
+
+	public static void read(Path file, FindingHandler handler) throws IOException {
+		String snapshot;
+		String[][] messages;
+		long footer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer trailer = ByteBuffer.allocate(12);
+			while (channel.size() >= 20 && trailer.hasRemaining() && channel.read(trailer, channel.size() - 12 + trailer.position()) > 0) {
+			}
+			if (trailer.hasRemaining() || trailer.getInt(8) != FindingOutput.BINARY_MAGIC) {
+				throw new IOException(file + " is not a complete findings file");
+			}
+			footer = trailer.getLong(0);
+			DataInputStream tables = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(footer)), 1024 * 1024));
+			snapshot = readString(tables);
+			messages = new String[tables.readInt()][];
+			for (int i = 0; i < messages.length; i++) {
+				// file, prefix, suffix and whether there is a value
+				messages[i] = new String[] { readString(tables), readString(tables), readString(tables), tables.readBoolean() ? "" : null };
+			}
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1024 * 1024))) {
+			if (in.readInt() != FindingOutput.BINARY_MAGIC || in.readInt() != FindingOutput.BINARY_VERSION) {
+				throw new IOException(file + " has an unknown version");
+			}
+			long position = 8;
+			int[] codeColumn = new int[0];
+			long[] lineColumn = new long[0];
+			while (position < footer) {
+				int count = in.readInt();
+				if (count > codeColumn.length) {
+					codeColumn = new int[count];
+					lineColumn = new long[count];
+				}
+				for (int i = 0; i < count; i++) {
+					codeColumn[i] = in.readInt();
+				}
+				for (int i = 0; i < count; i++) {
+					lineColumn[i] = in.readLong();
+				}
+				position += 4 + count * 12L;
+				for (int i = 0; i < count; i++) {
+					byte[] id = readBytes(in);
+					byte[] value = readBytes(in);
+					position += 8 + id.length + (value == null ? 0 : value.length);
+					String[] message = messages[codeColumn[i]];
+					String text = message[3] == null ? message[1] : message[1] + (value == null ? "" : new String(value, StandardCharsets.UTF_8)) + message[2];
+					handler.finding(snapshot, message[0], new String(id, StandardCharsets.UTF_8), lineColumn[i], codeColumn[i], text);
+				}
+			}
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Prints a findings file as validator.tsv.
+	 */
+	public static void main(String[] a) throws IOException {
+		if (a.length != 1) {
+			System.err.println("usage: BinaryFindings validator.bin");
+			System.exit(99);
+		}
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1024 * 1024)) {
+			out.write(FindingOutput.HEADER);
+			read(Paths.get(a[0]), (snapshot, logType, id, lineNumber, code, message) -> out.write(snapshot + "\t" + logType + "\t" + id + "\t" + (lineNumber < 0 ? "" : lineNumber) + "\t" + message + "\n"));
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.themlc.bwarm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over {@link Fingerprint}s that keeps all bits of a key in one
+ * 64 bit word, so testing and setting them is a single compare-and-set and
+ * parallel adds of the same key can not both miss each other. Costs a higher
+ * false positive rate than a classic filter of the same size, still below 1%
+ * at 16 bits per key.
+ */
+public class BloomFilter {
+
+	public static final int BITS_PER_KEY = 16;
+	private static final int HASHES = 6;
+
+	private final AtomicLongArray words;
+
+	public BloomFilter(long expectedKeys) {
+		this.words = new AtomicLongArray(words(expectedKeys));
+	}
+
+	private static int words(long expectedKeys) {
+		return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, expectedKeys * BITS_PER_KEY / 64));
+	}
+
+	public static long bytes(long expectedKeys) {
+		return words(expectedKeys) * 8L;
+	}
+
+	/**
+	 * Adds the fingerprint, returns true if it may have been added before.
+	 */
+	public boolean add(long fingerprint) {
+		int index = (int) ((fingerprint >>> 1) % words.length());
+		long hash = Fingerprint.mix(fingerprint);
+		long mask = 0;
+		for (int i = 0; i < HASHES; i++) {
+			mask |= 1L << (hash & 63);
+			hash >>>= 6;
+		}
+		while (true) {
+			long word = words.get(index);
+			if ((word & mask) == mask) {
+				return true;
+			}
+			if (words.compareAndSet(index, word, word | mask)) {
+				return false;
+			}
+		}
+	}
+
+	public long size() {
+		return words.length() * 8L;
+	}
+}
@@ -0,0 +1,136 @@
+package com.themlc.bwarm;
+
+import java.util.Map;
+
+/**
+ * One column of a {@link Schema}, compiled from a field descriptor of the form
+ * <code>{ name, mandatory, type [, multiValue] }</code>. The descriptor is
+ * interpreted once; per row only the precomputed type code is switched on.
+ */
+public final class ColumnValidator {
+
+	static final int STRING = 0;
+	static final int BOOLEAN = 1;
+	static final int NUMBER = 2;
+	static final int DURATION = 3;
+	static final int DATE = 4;
+	static final int AVS = 5;
+
+	private final int index;
+	private final String name;
+	private final boolean mandatory;
+	private final int type;
+	private final String typeName;
+	private final AVSHelper avs;
+	private final boolean multiValue;
+	private final int missingCode;
+	private final int invalidCode;
+
+	private ColumnValidator(int index, String name, boolean mandatory, int type, String typeName, AVSHelper avs, boolean multiValue, String logType, Messages messages) {
+		this.index = index;
+		this.name = name;
+		this.mandatory = mandatory;
+		this.type = type;
+		this.typeName = typeName;
+		this.avs = avs;
+		this.multiValue = multiValue;
+		this.missingCode = messages.register(logType, "Missing Mandatory Field " + name);
+		if (type == AVS) {
+			this.invalidCode = messages.register(logType, "Invalid AVS " + avs.getValueName() + " Value field '", "'");
+		} else {
+			this.invalidCode = messages.register(logType, "Invalid " + typeName + " field " + name);
+		}
+	}
+
+	static ColumnValidator compile(int index, String[] field, Map<String, AVSHelper> avsSets, String logType, Messages messages) {
+		String name = field[0];
+		boolean mandatory = field[1].equals("true");
+		boolean multiValue = field.length == 4 && field[3].equals("true");
+		switch (field[2]) {
+		case "string":
+			return new ColumnValidator(index, name, mandatory, STRING, field[2], null, multiValue, logType, messages);
+		case "boolean":
+			return new ColumnValidator(index, name, mandatory, BOOLEAN, field[2], null, multiValue, logType, messages);
+		case "number":
+			return new ColumnValidator(index, name, mandatory, NUMBER, field[2], null, multiValue, logType, messages);
+		case "duration":
+			return new ColumnValidator(index, name, mandatory, DURATION, field[2], null, multiValue, logType, messages);
+		case "date":
+			return new ColumnValidator(index, name, mandatory, DATE, field[2], null, multiValue, logType, messages);
+		default:
+			AVSHelper avs = avsSets.get(field[2]);
+			if (avs == null) {
+				throw new IllegalArgumentException("Unknown type " + field[2] + " for field " + name);
+			}
+			return new ColumnValidator(index, name, mandatory, AVS, field[2], avs, multiValue, logType, messages);
+		}
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isMandatory() {
+		return mandatory;
+	}
+
+	public String getTypeName() {
+		return typeName;
+	}
+
+	int getType() {
+		return type;
+	}
+
+	public AVSHelper getAVS() {
+		return avs;
+	}
+
+	public boolean isMultiValue() {
+		return multiValue;
+	}
+
+	public int getMissingCode() {
+		return missingCode;
+	}
+
+	/**
+	 * The code of the message for an invalid value, which quotes the value for
+	 * allowed value sets.
+	 */
+	public int getInvalidCode() {
+		return invalidCode;
+	}
+
+	/**
+	 * Checks the format of a non empty value.
+	 */
+	public boolean check(TsvRecord recrd) {
+		switch (type) {
+		case BOOLEAN:
+			return FormatScanner.isBoolean(recrd.buffer(), recrd.start(index), recrd.end(index));
+		case NUMBER:
+			return FormatScanner.isNumber(recrd.buffer(), recrd.start(index), recrd.end(index));
+		case DURATION:
+			return FormatScanner.isDuration(recrd.buffer(), recrd.start(index), recrd.end(index));
+		case DATE:
+			return FormatScanner.isDate(recrd.buffer(), recrd.start(index), recrd.end(index));
+		case AVS:
+			if (multiValue) {
+				return avs.containsAll(recrd.buffer(), recrd.start(index), recrd.end(index));
+			}
+			return avs.contains(recrd.buffer(), recrd.start(index), recrd.end(index));
+		default:
+			return true;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + ":" + typeName + (mandatory ? " mandatory" : "") + (multiValue ? " multi" : "");
+	}
+}
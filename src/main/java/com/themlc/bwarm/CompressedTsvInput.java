@@ -0,0 +1,713 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.zstd.ZstdDecompressor;
+import io.airlift.compress.zstd.ZstdInputStream;
+
+/**
+ * gzip or zstd compressed TSV file, or a deflated entry of a zipped snapshot,
+ * validated without writing the decompressed content to disk.
+ *
+ * A reader thread decompresses the content in order and cuts it into line
+ * aligned blocks of at most 16 MB that are validated in parallel while it
+ * goes on. The blocks come from a pool shared by all files read on the same
+ * executor, so the blocks held in memory are bounded by its parallelism
+ * however many files are read at once, and their arrays are reused. When the file consists of independent parts whose sizes
+ * are known up front, gzip members with a BGZF size field or zstd frames with
+ * a content size, groups of parts are decompressed in parallel and the
+ * reader thread only stitches the lines at their borders.
+ */
+final class CompressedTsvInput extends TsvInput {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	enum Format {
+		GZIP, ZSTD
+	}
+
+	private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+	private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+	private static final int ESTIMATED_RATIO = 8;
+
+	private static final Map<Executor, BlockPool> BLOCK_POOLS = Collections.synchronizedMap(new WeakHashMap<Executor, BlockPool>());
+
+	private final Path file;
+	private final Format format;
+	private final ZipFile archive;
+	private final ZipEntry entry;
+
+	private int blockSize = MAX_BLOCK_SIZE;
+	// compressed [start, end) and decompressed size of independently readable groups
+	private List<long[]> segments;
+	private long uncompressedSize = -1;
+
+	CompressedTsvInput(Path file, Format format) {
+		this.file = file;
+		this.format = format;
+		this.archive = null;
+		this.entry = null;
+	}
+
+	/**
+	 * Entry of a zipped snapshot, <code>file</code> is the path it stands for.
+	 */
+	CompressedTsvInput(Path file, ZipFile archive, ZipEntry entry) {
+		this.file = file;
+		this.format = null;
+		this.archive = archive;
+		this.entry = entry;
+		this.uncompressedSize = entry.getSize();
+	}
+
+	@Override
+	public Path getPath() {
+		return file;
+	}
+
+	@Override
+	public CompletableFuture<Void> prepare(long chunkSize, Executor executor) {
+		blockSize = (int) Math.min(chunkSize, MAX_BLOCK_SIZE);
+		if (archive != null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.runAsync(() ->
+			{
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					segments = format == Format.GZIP ? bgzfSegments(channel) : zstdSegments(channel);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (segments != null) {
+					uncompressedSize = 0;
+					for (long[] segment : segments) {
+						uncompressedSize += segment[2];
+					}
+				}
+				LOGGER.debug("{} {} in {} parallel segments", file, format, segments == null ? "not splittable" : segments.size());
+			}, executor);
+	}
+
+	@Override
+	public long estimateSize() throws IOException {
+		if (uncompressedSize >= 0) {
+			return uncompressedSize;
+		}
+		if (format == Format.GZIP) {
+			long size = gzipTrailerSize();
+			if (size > 0) {
+				return size;
+			}
+		}
+		return (archive != null ? entry.getCompressedSize() : Files.size(file)) * ESTIMATED_RATIO;
+	}
+
+	/**
+	 * Size recorded in the trailer of the last gzip member, modulo 2^32 and
+	 * taken to be at least the compressed size. Only a guess for files of
+	 * several members, 0 if it is smaller than the compressed size.
+	 */
+	private long gzipTrailerSize() throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long compressed = channel.size();
+			if (compressed < 18) {
+				return 0;
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (trailer.hasRemaining() && channel.read(trailer, compressed - 4 + trailer.position()) > 0) {
+			}
+			long size = trailer.getInt(0) & 0xffffffffL;
+			while (compressed > 1L << 32 && size < compressed) {
+				size += 1L << 32;
+			}
+			return size >= compressed ? size : 0;
+		}
+	}
+
+	@Override
+	public long estimateLines() {
+		try {
+			return estimateSize() / ESTIMATED_LINE_LENGTH + 1;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private InputStream openStream() throws IOException {
+		if (archive != null) {
+			return new BufferedInputStream(archive.getInputStream(entry), STREAM_BUFFER_SIZE);
+		}
+		if (format == Format.GZIP) {
+			return new GZIPInputStream(Files.newInputStream(file), STREAM_BUFFER_SIZE);
+		}
+		return new ZstdInputStream(new BufferedInputStream(Files.newInputStream(file), STREAM_BUFFER_SIZE));
+	}
+
+	@Override
+	public CompletableFuture<List<TsvChunk>> forEachChunk(Executor executor, Consumer<TsvChunk> task) {
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+		CompletableFuture<List<TsvChunk>> result = new CompletableFuture<List<TsvChunk>>();
+		BlockPool blocks = BLOCK_POOLS.computeIfAbsent(executor, e -> new BlockPool(parallelism + 1));
+		Cutter cutter = new Cutter(executor, task, blocks);
+		Thread reader = new Thread(() ->
+			{
+				try {
+					if (segments != null) {
+						readSegments(executor, cutter, blocks, parallelism + 1);
+					} else {
+						readStream(cutter, blocks);
+					}
+					cutter.finish();
+				} catch (IOException | RuntimeException e) {
+					cutter.fail(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+				} catch (InterruptedException e) {
+					cutter.fail(e);
+				}
+				cutter.done().whenComplete((chunks, e) ->
+					{
+						if (e != null) {
+							result.completeExceptionally(e);
+						} else {
+							result.complete(chunks);
+						}
+					});
+			}, "decompress " + file.getFileName());
+		reader.setDaemon(true);
+		reader.start();
+		return result;
+	}
+
+	private void readStream(Cutter cutter, BlockPool blocks) throws IOException, InterruptedException {
+		try (InputStream in = openStream()) {
+			while (!cutter.failed()) {
+				Block block = blocks.acquire();
+				byte[] data = block.data(blockSize);
+				int length = 0;
+				int read;
+				try {
+					while (length < blockSize && (read = in.read(data, length, blockSize - length)) > 0) {
+						length += read;
+					}
+				} catch (IOException | RuntimeException e) {
+					blocks.release(block);
+					throw e;
+				}
+				if (length == 0) {
+					blocks.release(block);
+					break;
+				}
+				cutter.accept(block, length, countLines(data, 0, length));
+			}
+		}
+	}
+
+	private void readSegments(Executor executor, Cutter cutter, BlockPool blocks, int ahead) throws IOException, InterruptedException {
+		ArrayDeque<CompletableFuture<Block>> pending = new ArrayDeque<CompletableFuture<Block>>();
+		int next = 0;
+		try {
+			while ((next < segments.size() || !pending.isEmpty()) && !cutter.failed()) {
+				while (next < segments.size() && pending.size() < ahead) {
+					Block block = pending.isEmpty() ? blocks.acquire() : blocks.tryAcquire();
+					if (block == null) {
+						break;
+					}
+					long[] segment = segments.get(next++);
+					pending.add(CompletableFuture.supplyAsync(() -> decompress(segment, block, blocks), executor));
+				}
+				Block block;
+				try {
+					block = pending.poll().join();
+				} catch (CompletionException e) {
+					if (e.getCause() instanceof UncheckedIOException) {
+						throw ((UncheckedIOException) e.getCause()).getCause();
+					}
+					throw e;
+				}
+				int length = block.length;
+				cutter.accept(block, length, countLines(block.data, 0, length));
+			}
+		} finally {
+			// blocks decompressed ahead of a failure go back to the pool
+			for (CompletableFuture<Block> future : pending) {
+				future.thenAccept(blocks::release);
+			}
+		}
+	}
+
+	/**
+	 * Decompresses a segment into the block, which goes back to the pool if
+	 * that fails.
+	 */
+	private Block decompress(long[] segment, Block block, BlockPool blocks) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			int inputLength = (int) (segment[1] - segment[0]);
+			byte[] input = block.input(inputLength);
+			ByteBuffer buffer = ByteBuffer.wrap(input, 0, inputLength);
+			while (buffer.hasRemaining() && channel.read(buffer, segment[0] + buffer.position()) > 0) {
+			}
+			int outputLength = (int) segment[2];
+			byte[] output = block.data(outputLength);
+			if (format == Format.GZIP) {
+				inflateMembers(input, inputLength, output);
+			} else {
+				int length = new ZstdDecompressor().decompress(input, 0, inputLength, output, 0, outputLength);
+				if (length != outputLength) {
+					throw new IOException("Unexpected zstd frame size in " + file);
+				}
+			}
+			block.length = outputLength;
+			return block;
+		} catch (IOException e) {
+			blocks.release(block);
+			throw new UncheckedIOException(e);
+		} catch (MalformedInputException e) {
+			blocks.release(block);
+			throw new UncheckedIOException(new IOException("Corrupt zstd data in " + file, e));
+		} catch (RuntimeException e) {
+			blocks.release(block);
+			throw e;
+		}
+	}
+
+	private void inflateMembers(byte[] input, int inputLength, byte[] output) throws IOException {
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try {
+			int position = 0;
+			int outputPosition = 0;
+			while (position < inputLength) {
+				int memberLength = bgzfMemberLength(input, position);
+				int dataStart = position + 12 + littleEndian(input, position + 10, 2);
+				int dataEnd = position + memberLength - 8;
+				int size = littleEndian(input, dataEnd + 4, 4);
+				inflater.reset();
+				inflater.setInput(input, dataStart, dataEnd - dataStart);
+				int inflated = 0;
+				while (inflated < size && !inflater.finished()) {
+					int n = inflater.inflate(output, outputPosition + inflated, size - inflated);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					inflated += n;
+				}
+				crc.reset();
+				crc.update(output, outputPosition, inflated);
+				if (inflated != size || (int) crc.getValue() != littleEndian(input, dataEnd, 4)) {
+					throw new IOException("Corrupt gzip member in " + file);
+				}
+				outputPosition += size;
+				position += memberLength;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member in " + file, e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static int littleEndian(byte[] bytes, int position, int length) {
+		int value = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			value = (value << 8) | (bytes[position + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Length of the BGZF member at <code>position</code>, or -1 if it has no
+	 * BGZF size field.
+	 */
+	private static int bgzfMemberLength(byte[] header, int position) {
+		if ((header[position] & 0xff) != 0x1f || (header[position + 1] & 0xff) != 0x8b || header[position + 2] != 8 || (header[position + 3] & 4) == 0) {
+			return -1;
+		}
+		int extraLength = littleEndian(header, position + 10, 2);
+		int i = position + 12;
+		while (i + 4 <= position + 12 + extraLength) {
+			int fieldLength = littleEndian(header, i + 2, 2);
+			if (header[i] == 'B' && header[i + 1] == 'C' && fieldLength == 2) {
+				return littleEndian(header, i + 4, 2) + 1;
+			}
+			i += 4 + fieldLength;
+		}
+		return -1;
+	}
+
+	/**
+	 * Groups the BGZF members of the file, null if it is not BGZF.
+	 */
+	private List<long[]> bgzfSegments(FileChannel channel) throws IOException {
+		long size = channel.size();
+		Window window = new Window(channel);
+		List<long[]> groups = new ArrayList<long[]>();
+		long groupStart = 0;
+		long groupSize = 0;
+		long position = 0;
+		byte[] header = new byte[12 + 256];
+		while (position < size) {
+			int headerLength = (int) Math.min(header.length, size - position);
+			window.read(position, header, headerLength);
+			int memberLength = headerLength >= 18 ? bgzfMemberLength(header, 0) : -1;
+			if (memberLength < 0 || position + memberLength > size) {
+				return null;
+			}
+			byte[] trailer = new byte[4];
+			window.read(position + memberLength - 4, trailer, 4);
+			long memberSize = littleEndian(trailer, 0, 4) & 0xffffffffL;
+			if (groupSize > 0 && groupSize + memberSize > blockSize) {
+				groups.add(new long[] { groupStart, position, groupSize });
+				groupStart = position;
+				groupSize = 0;
+			}
+			groupSize += memberSize;
+			position += memberLength;
+		}
+		groups.add(new long[] { groupStart, position, groupSize });
+		return groups;
+	}
+
+	/**
+	 * Groups the zstd frames of the file, null if there is only one frame or a
+	 * frame without content size. The size of a single frame is still kept.
+	 */
+	private List<long[]> zstdSegments(FileChannel channel) throws IOException {
+		long size = channel.size();
+		Window window = new Window(channel);
+		List<long[]> groups = new ArrayList<long[]>();
+		byte[] bytes = new byte[18];
+		long groupStart = 0;
+		long groupSize = 0;
+		long position = 0;
+		int frames = 0;
+		while (position < size) {
+			if (size - position < 6) {
+				return null;
+			}
+			window.read(position, bytes, (int) Math.min(bytes.length, size - position));
+			if (littleEndian(bytes, 0, 4) != 0xFD2FB528) {
+				return null;
+			}
+			int descriptor = bytes[4] & 0xff;
+			int sizeFlag = descriptor >>> 6;
+			boolean singleSegment = (descriptor & 0x20) != 0;
+			boolean checksum = (descriptor & 0x04) != 0;
+			int dictionaryLength = new int[] { 0, 1, 2, 4 }[descriptor & 3];
+			int sizeLength = new int[] { singleSegment ? 1 : 0, 2, 4, 8 }[sizeFlag];
+			if (sizeLength == 0) {
+				return null;
+			}
+			int sizeOffset = 5 + (singleSegment ? 0 : 1) + dictionaryLength;
+			long contentSize = 0;
+			for (int i = sizeLength - 1; i >= 0; i--) {
+				contentSize = (contentSize << 8) | (bytes[sizeOffset + i] & 0xff);
+			}
+			if (sizeLength == 2) {
+				contentSize += 256;
+			}
+			long frameEnd = position + sizeOffset + sizeLength;
+			byte[] blockHeader = new byte[3];
+			boolean last = false;
+			while (!last) {
+				if (frameEnd + 3 > size) {
+					return null;
+				}
+				window.read(frameEnd, blockHeader, 3);
+				int value = littleEndian(blockHeader, 0, 3);
+				last = (value & 1) != 0;
+				int type = (value >>> 1) & 3;
+				int blockLength = value >>> 3;
+				frameEnd += 3 + (type == 1 ? 1 : blockLength);
+			}
+			frameEnd += checksum ? 4 : 0;
+			if (frameEnd > size || contentSize > Integer.MAX_VALUE - 8) {
+				return null;
+			}
+			if (groupSize > 0 && groupSize + contentSize > blockSize) {
+				groups.add(new long[] { groupStart, position, groupSize });
+				groupStart = position;
+				groupSize = 0;
+			}
+			groupSize += contentSize;
+			position = frameEnd;
+			frames++;
+		}
+		if (frames < 2) {
+			uncompressedSize = groupSize;
+			return null;
+		}
+		groups.add(new long[] { groupStart, position, groupSize });
+		return groups;
+	}
+
+	/**
+	 * Forward reads of small ranges of a file through a cached window.
+	 */
+	private static final class Window {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		private long start;
+		private int length;
+
+		Window(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void read(long position, byte[] target, int count) throws IOException {
+			if (position < start || position + count > start + length) {
+				buffer.clear();
+				start = position;
+				while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+				}
+				length = buffer.position();
+				if (count > length) {
+					throw new IOException("Unexpected end of file");
+				}
+			}
+			System.arraycopy(buffer.array(), (int) (position - start), target, 0, count);
+		}
+	}
+
+	private static long countLines(byte[] bytes, int from, int to) {
+		long lines = 0;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	@Override
+	public void readRecords(long[] offsets, int count, OffsetHandler handler) throws IOException {
+		try (InputStream in = openStream()) {
+			readRecords(in, offsets, count, false, handler);
+		}
+	}
+
+	/**
+	 * Compressed content can not be entered in the middle, so it is read up
+	 * to the last sampled line.
+	 */
+	@Override
+	public void sampleRecords(long[] positions, int count, OffsetHandler handler) throws IOException {
+		try (InputStream in = openStream()) {
+			readRecords(in, positions, count, true, handler);
+		}
+	}
+
+	/**
+	 * Cuts decompressed blocks, in order, into numbered line aligned chunks
+	 * and runs the task on each. The partial last line of a block is carried
+	 * into a small chunk with the first line of the next block, so the rest of
+	 * a block is validated in place. Every block goes back to the pool once
+	 * its chunk is done.
+	 */
+	private final class Cutter {
+		private final Executor executor;
+		private final Consumer<TsvChunk> task;
+		private final BlockPool blocks;
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private final List<TsvChunk> chunks = new ArrayList<TsvChunk>();
+		private final List<CompletableFuture<?>> tasks = new ArrayList<CompletableFuture<?>>();
+		private Throwable failure;
+
+		private byte[] carry = new byte[0];
+		private int carryLength;
+		private long position;
+		private long lineNumber = 1;
+
+		Cutter(Executor executor, Consumer<TsvChunk> task, BlockPool blocks) {
+			this.executor = executor;
+			this.task = task;
+			this.blocks = blocks;
+		}
+
+		boolean failed() {
+			return failed.get();
+		}
+
+		void accept(Block pooled, int length, long lines) {
+			byte[] block = pooled.data;
+			int first = -1;
+			int last = -1;
+			if (lines > 0) {
+				for (first = 0; block[first] != '\n'; first++) {
+				}
+				for (last = length - 1; block[last] != '\n'; last--) {
+				}
+			}
+			if (first < 0) {
+				appendCarry(block, 0, length);
+				blocks.release(pooled);
+				return;
+			}
+			int bodyStart = 0;
+			if (carryLength > 0) {
+				appendCarry(block, 0, first + 1);
+				submit(ByteBuffer.wrap(Arrays.copyOf(carry, carryLength)), 1, null);
+				carryLength = 0;
+				bodyStart = first + 1;
+				lines--;
+			}
+			// the block may be reused as soon as its chunk is done
+			appendCarry(block, last + 1, length);
+			if (last + 1 > bodyStart) {
+				submit(ByteBuffer.wrap(block, bodyStart, last + 1 - bodyStart).slice(), lines, pooled);
+			} else {
+				blocks.release(pooled);
+			}
+		}
+
+		private void appendCarry(byte[] block, int from, int to) {
+			if (carryLength + to - from > carry.length) {
+				carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + to - from));
+			}
+			System.arraycopy(block, from, carry, carryLength, to - from);
+			carryLength += to - from;
+		}
+
+		/**
+		 * @param pooled the block the data is in, released once the chunk is
+		 *               done, or null for a copy
+		 */
+		private void submit(ByteBuffer data, long lines, Block pooled) {
+			TsvChunk chunk = new TsvChunk(file, position, data);
+			chunk.setFirstLineNumber(lineNumber);
+			chunk.setLineCount(lines);
+			position = chunk.getEnd();
+			lineNumber += lines;
+			chunks.add(chunk);
+			tasks.add(CompletableFuture.runAsync(() ->
+				{
+					try {
+						task.accept(chunk);
+					} finally {
+						chunk.release();
+						if (pooled != null) {
+							blocks.release(pooled);
+						}
+					}
+				}, executor).whenComplete((v, e) ->
+					{
+						if (e != null) {
+							failed.set(true);
+						}
+					}));
+		}
+
+		void finish() {
+			if (carryLength > 0) {
+				submit(ByteBuffer.wrap(Arrays.copyOf(carry, carryLength)), 1, null);
+				carryLength = 0;
+			}
+		}
+
+		void fail(Throwable e) {
+			failed.set(true);
+			failure = e;
+		}
+
+		CompletableFuture<List<TsvChunk>> done() {
+			return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).thenApply(v ->
+				{
+					if (failure != null) {
+						throw failure instanceof RuntimeException ? (RuntimeException) failure : new CompletionException(failure);
+					}
+					return chunks;
+				});
+		}
+	}
+
+	/**
+	 * A decompressed block with the compressed input of its segment, both
+	 * kept for the next block.
+	 */
+	private static final class Block {
+		byte[] data = new byte[0];
+		byte[] input = new byte[0];
+		int length;
+
+		byte[] data(int size) {
+			if (data.length < size) {
+				data = new byte[size];
+			}
+			return data;
+		}
+
+		byte[] input(int size) {
+			if (input.length < size) {
+				input = new byte[size];
+			}
+			return input;
+		}
+	}
+
+	/**
+	 * The blocks of all files read on one executor, one more than its
+	 * parallelism.
+	 */
+	private static final class BlockPool {
+		private final Semaphore permits;
+		private final ConcurrentLinkedQueue<Block> free = new ConcurrentLinkedQueue<Block>();
+
+		BlockPool(int blocks) {
+			permits = new Semaphore(blocks);
+		}
+
+		Block acquire() throws InterruptedException {
+			permits.acquire();
+			return take();
+		}
+
+		/**
+		 * Returns null if no block is free.
+		 */
+		Block tryAcquire() {
+			return permits.tryAcquire() ? take() : null;
+		}
+
+		private Block take() {
+			Block block = free.poll();
+			return block != null ? block : new Block();
+		}
+
+		void release(Block block) {
+			free.add(block);
+			permits.release();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.themlc.bwarm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * References of one {@link ForeignKey} whose parent {@link IdIndex} has
+ * spilled to disk. Each chunk collects the fingerprint, file offset and line
+ * number of its references into sorted runs; once the file is done
+ * {@link #join(Path, MissingHandler)} merges them with the sorted parent
+ * identifiers and reports the ones not found.
+ */
+public class DeferredReferences implements Closeable {
+
+	private static final int RECORD_SIZE = 3;
+	private static final int BATCH = 256 * 1024;
+
+	private final MemoryBudget budget;
+	private final Path directory;
+	private final ConcurrentLinkedQueue<Path> runs = new ConcurrentLinkedQueue<Path>();
+
+	public interface MissingHandler {
+		void missing(long offset, long lineNumber) throws IOException;
+	}
+
+	/**
+	 * Collects the references of one chunk, not thread safe.
+	 */
+	public final class Collector {
+		private final long[] batch = new long[BATCH * RECORD_SIZE];
+		private int count;
+
+		public void add(long fingerprint, long offset, long lineNumber) {
+			int i = count * RECORD_SIZE;
+			batch[i] = fingerprint;
+			batch[i + 1] = offset;
+			batch[i + 2] = lineNumber;
+			if (++count == BATCH) {
+				flush();
+			}
+		}
+
+		public void flush() {
+			if (count > 0) {
+				try {
+					runs.add(LongRecordRuns.writeRun(directory, batch, count, RECORD_SIZE));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				count = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param budget         where the buffers of the join are taken from
+	 * @param spillDirectory where run files are created, the default temporary
+	 *                       directory if null
+	 */
+	public DeferredReferences(MemoryBudget budget, Path spillDirectory) throws IOException {
+		this.budget = budget;
+		directory = spillDirectory == null ? Files.createTempDirectory("bwarm-refs") : Files.createTempDirectory(spillDirectory, "bwarm-refs");
+	}
+
+	public Collector collector() {
+		return new Collector();
+	}
+
+	/**
+	 * Calls the handler, in fingerprint order, for every collected reference
+	 * whose fingerprint is not in <code>sortedIds</code>.
+	 */
+	public void join(Path sortedIds, MissingHandler handler) throws IOException {
+		List<Path> parent = new ArrayList<Path>();
+		parent.add(sortedIds);
+		try (LongRecordRuns.Merger ids = new LongRecordRuns.Merger(parent, 1, budget);
+				LongRecordRuns.Merger references = new LongRecordRuns.Merger(new ArrayList<Path>(runs), RECORD_SIZE, budget)) {
+			boolean more = ids.next();
+			while (references.next()) {
+				long[] reference = references.record();
+				while (more && ids.record()[0] < reference[0]) {
+					more = ids.next();
+				}
+				if (!more || ids.record()[0] != reference[0]) {
+					handler.missing(reference[1], reference[2]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		Files.deleteIfExists(directory);
+	}
+}
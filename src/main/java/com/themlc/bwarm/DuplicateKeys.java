@@ -0,0 +1,503 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds identifiers that occur more than once in a file. While the file is
+ * validated the fingerprint of every key goes through a {@link BloomFilter};
+ * keys it may have seen before become candidates. A second pass collects the
+ * lines whose key fingerprint is a candidate, and only lines sharing a
+ * fingerprint are read back and compared as Strings, so unique keys are never
+ * materialized.
+ *
+ * The filter, the candidates and the collected lines take their memory from
+ * the budget. Once the candidates spill the second pass collects every line,
+ * and once the lines do not fit they are written as sorted runs, which are
+ * merged by fingerprint to find the repeated ones. Repeated lines that do not
+ * fit either, as in a file sent twice, are sorted by offset in runs, their
+ * keys read back in batches and saved to a file with a second hash, and a
+ * merge by fingerprint compares them one fingerprint at a time.
+ */
+public class DuplicateKeys implements Closeable {
+
+	// fingerprint, line number, offset
+	private static final int RECORD_SIZE = 3;
+	// fingerprint, key hash, line number, position of the key
+	private static final int KEY_SIZE = 4;
+	private static final int BATCH = 64 * 1024;
+	private static final int MAX_BATCH = 1 << 22;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// a repeated line compared in memory: its offset, map entry and key
+	private static final long KEPT_LINE_BYTES = 128;
+	private static final long KEY_SEED = 0x632BE59BD9B4E019L;
+
+	private final MemoryBudget budget;
+	private final Path spillDirectory;
+	private final long reserved;
+	private final BloomFilter filter;
+	private final IdIndex candidates;
+	private final List<Path> runs = new ArrayList<Path>();
+	private Path directory;
+
+	private long[] occurrences = new long[1024 * RECORD_SIZE];
+	private long occurrencesReserved;
+	private int count;
+
+	public interface DuplicateHandler {
+		void duplicate(long lineNumber, String key, long firstLineNumber);
+	}
+
+	/**
+	 * Sizes the filter for <code>expectedKeys</code>, or smaller if the budget
+	 * can not hold it, which only costs more candidates.
+	 *
+	 * @param spillDirectory where run files are created, the default temporary
+	 *                       directory if null
+	 */
+	public DuplicateKeys(long expectedKeys, MemoryBudget budget, Path spillDirectory) {
+		long keys = Math.max(1, expectedKeys);
+		boolean reserve = budget.reserve(BloomFilter.bytes(keys));
+		while (!reserve && keys > 1024) {
+			keys /= 2;
+			reserve = budget.reserve(BloomFilter.bytes(keys));
+		}
+		this.budget = budget;
+		this.spillDirectory = spillDirectory;
+		this.reserved = reserve ? BloomFilter.bytes(keys) : 0;
+		this.filter = new BloomFilter(keys);
+		this.candidates = new IdIndex(budget, spillDirectory);
+	}
+
+	private Path directory() throws IOException {
+		if (directory == null) {
+			directory = spillDirectory == null ? Files.createTempDirectory("bwarm-dups") : Files.createTempDirectory(spillDirectory, "bwarm-dups");
+		}
+		return directory;
+	}
+
+	/**
+	 * First pass, called for every key.
+	 */
+	public void add(long fingerprint) {
+		// spilled candidates can not be looked up, the second pass takes every line
+		if (filter.add(fingerprint) && !candidates.isSpilled()) {
+			candidates.add(fingerprint);
+		}
+	}
+
+	public boolean hasCandidates() {
+		return candidates.isSpilled() || candidates.size() > 0;
+	}
+
+	public long candidateCount() {
+		return candidates.size();
+	}
+
+	/**
+	 * Second pass, called for every key once all first pass adds are done.
+	 */
+	public void addOccurrence(long fingerprint, long offset, long lineNumber) {
+		if (!candidates.isSpilled() && !candidates.contains(fingerprint)) {
+			return;
+		}
+		synchronized (this) {
+			if ((count + 1) * RECORD_SIZE > occurrences.length) {
+				if (runs.isEmpty() && grow()) {
+					occurrences = Arrays.copyOf(occurrences, occurrences.length * 2);
+				} else {
+					spill();
+				}
+			}
+			append(fingerprint, lineNumber, offset);
+		}
+	}
+
+	/**
+	 * Takes the memory to double the collected lines from the budget, or
+	 * grows to one batch regardless so runs do not get too small.
+	 */
+	private boolean grow() {
+		long bytes = occurrences.length * 8L;
+		if (budget.reserve(bytes)) {
+			occurrencesReserved += bytes;
+			return true;
+		}
+		return occurrences.length < BATCH * RECORD_SIZE;
+	}
+
+	private void spill() {
+		try {
+			runs.add(LongRecordRuns.writeRun(directory(), occurrences, count, RECORD_SIZE));
+			count = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void append(long fingerprint, long lineNumber, long offset) {
+		int i = count++ * RECORD_SIZE;
+		occurrences[i] = fingerprint;
+		occurrences[i + 1] = lineNumber;
+		occurrences[i + 2] = offset;
+	}
+
+	/**
+	 * Reports every occurrence of a key after its first line. When the
+	 * repeated lines and their keys fit the budget they are read in one pass
+	 * and compared in memory, otherwise they go through runs.
+	 */
+	public synchronized void report(TsvInput input, DuplicateHandler handler) throws IOException {
+		if (runs.isEmpty()) {
+			keepRepeated();
+			long bytes = (long) count * KEPT_LINE_BYTES;
+			if (budget.reserve(bytes)) {
+				try {
+					reportInMemory(input, handler);
+				} finally {
+					budget.release(bytes);
+				}
+				return;
+			}
+		}
+		List<Path> files = new ArrayList<Path>();
+		try {
+			List<Path> byOffset = repeatedByOffset(files);
+			Path keys = Files.createTempFile(directory(), "keys", ".bin");
+			files.add(keys);
+			List<Path> byFingerprint = readKeys(input, byOffset, keys, files);
+			Path firsts = Files.createTempFile(directory(), "firsts", ".bin");
+			files.add(firsts);
+			findFirstLines(byFingerprint, firsts);
+			reportRepeated(byFingerprint, firsts, keys, handler);
+		} finally {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the fingerprints seen on more than one line.
+	 */
+	private void keepRepeated() {
+		LongRecordRuns.sort(occurrences, count, RECORD_SIZE);
+		int kept = 0;
+		int group = 0;
+		while (group < count) {
+			int end = group + 1;
+			while (end < count && occurrences[end * RECORD_SIZE] == occurrences[group * RECORD_SIZE]) {
+				end++;
+			}
+			if (end - group > 1) {
+				System.arraycopy(occurrences, group * RECORD_SIZE, occurrences, kept * RECORD_SIZE, (end - group) * RECORD_SIZE);
+				kept += end - group;
+			}
+			group = end;
+		}
+		count = kept;
+	}
+
+	private void reportInMemory(TsvInput input, DuplicateHandler handler) throws IOException {
+		long[] offsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			offsets[i] = occurrences[i * RECORD_SIZE + 2];
+		}
+		Arrays.sort(offsets);
+		HashMap<Long, String> keys = new HashMap<Long, String>();
+		input.readRecords(offsets, count, (offset, record) -> keys.put(offset, record.field(0)));
+
+		int group = 0;
+		while (group < count) {
+			int end = group + 1;
+			while (end < count && occurrences[end * RECORD_SIZE] == occurrences[group * RECORD_SIZE]) {
+				end++;
+			}
+			reportGroup(keys, group, end, handler);
+			group = end;
+		}
+	}
+
+	private void reportGroup(HashMap<Long, String> keys, int from, int to, DuplicateHandler handler) {
+		// order the lines of one fingerprint by line number
+		long[] lines = new long[(to - from) * 2];
+		for (int i = from; i < to; i++) {
+			lines[(i - from) * 2] = occurrences[i * RECORD_SIZE + 1];
+			lines[(i - from) * 2 + 1] = occurrences[i * RECORD_SIZE + 2];
+		}
+		LongRecordRuns.sort(lines, to - from, 2);
+
+		// equal fingerprints of different keys are not duplicates
+		HashMap<String, Long> first = new HashMap<String, Long>();
+		for (int i = 0; i < lines.length; i += 2) {
+			String key = keys.get(lines[i + 1]);
+			Long firstLine = first.putIfAbsent(key, lines[i]);
+			if (firstLine != null) {
+				handler.duplicate(lines[i], key, firstLine);
+			}
+		}
+	}
+
+	/**
+	 * Writes the lines of the fingerprints seen more than once to runs sorted
+	 * by offset, as offset, fingerprint and line number.
+	 */
+	private List<Path> repeatedByOffset(List<Path> files) throws IOException {
+		List<Path> byOffset = new ArrayList<Path>();
+		if (runs.isEmpty()) {
+			int kept = count;
+			count = 0;
+			for (int i = 0; i < kept; i++) {
+				int at = i * RECORD_SIZE;
+				keepByOffset(occurrences[at], occurrences[at + 1], occurrences[at + 2], byOffset, files);
+			}
+			flushByOffset(byOffset, files);
+			return byOffset;
+		}
+		if (count > 0) {
+			spill();
+		}
+		long[] previous = new long[RECORD_SIZE];
+		boolean started = false;
+		boolean previousKept = false;
+		try (LongRecordRuns.Merger merger = new LongRecordRuns.Merger(runs, RECORD_SIZE, budget)) {
+			while (merger.next()) {
+				long[] record = merger.record();
+				if (started && record[0] == previous[0]) {
+					if (!previousKept) {
+						keepByOffset(previous[0], previous[1], previous[2], byOffset, files);
+						previousKept = true;
+					}
+					keepByOffset(record[0], record[1], record[2], byOffset, files);
+				} else {
+					previousKept = false;
+				}
+				System.arraycopy(record, 0, previous, 0, RECORD_SIZE);
+				started = true;
+			}
+		}
+		flushByOffset(byOffset, files);
+		for (Path run : runs) {
+			Files.delete(run);
+		}
+		runs.clear();
+		return byOffset;
+	}
+
+	/**
+	 * Appends a repeated line to the collected lines, which are read before
+	 * they are written again, so they can be reused in place.
+	 */
+	private void keepByOffset(long fingerprint, long lineNumber, long offset, List<Path> byOffset, List<Path> files) throws IOException {
+		if ((count + 1) * RECORD_SIZE > occurrences.length) {
+			flushByOffset(byOffset, files);
+		}
+		int i = count++ * RECORD_SIZE;
+		occurrences[i] = offset;
+		occurrences[i + 1] = fingerprint;
+		occurrences[i + 2] = lineNumber;
+	}
+
+	private void flushByOffset(List<Path> byOffset, List<Path> files) throws IOException {
+		if (count > 0) {
+			Path run = LongRecordRuns.writeRun(directory(), occurrences, count, RECORD_SIZE);
+			files.add(run);
+			byOffset.add(run);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Reads the keys of the repeated lines in file order, in batches the
+	 * budget allows, like the lines of a join. The key bytes go to
+	 * <code>keys</code>; the lines go to runs sorted by fingerprint as
+	 * fingerprint, key hash, line number and position of the key.
+	 */
+	private List<Path> readKeys(TsvInput input, List<Path> byOffset, Path keys, List<Path> files) throws IOException {
+		int batch = BATCH;
+		long batchReserved = 0;
+		for (int size = MAX_BATCH; size > BATCH; size /= 2) {
+			if (budget.reserve(size * (1L + KEY_SIZE) * 8)) {
+				batch = size;
+				batchReserved = size * (1L + KEY_SIZE) * 8;
+				break;
+			}
+		}
+		if (batchReserved == 0 && budget.reserve(BATCH * (1L + KEY_SIZE) * 8)) {
+			batchReserved = BATCH * (1L + KEY_SIZE) * 8;
+		}
+		List<Path> byFingerprint = new ArrayList<Path>();
+		long[] offsets = new long[batch];
+		long[] keyed = new long[batch * KEY_SIZE];
+		long[] position = { 0 };
+		try (LongRecordRuns.Merger merger = new LongRecordRuns.Merger(byOffset, RECORD_SIZE, budget);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(keys), BUFFER_SIZE))) {
+			boolean more = merger.next();
+			while (more) {
+				int n = 0;
+				for (; more && n < batch; n++) {
+					long[] record = merger.record();
+					offsets[n] = record[0];
+					keyed[n * KEY_SIZE] = record[1];
+					keyed[n * KEY_SIZE + 2] = record[2];
+					more = merger.next();
+				}
+				int[] next = { 0 };
+				input.readRecords(offsets, n, (offset, record) ->
+					{
+						int i = next[0]++ * KEY_SIZE;
+						keyed[i + 1] = Fingerprint.of(record.buffer(), record.start(0), record.end(0), KEY_SEED);
+						keyed[i + 3] = position[0];
+						out.writeInt(record.length(0));
+						for (int k = record.start(0); k < record.end(0); k++) {
+							out.write(record.buffer().get(k));
+						}
+						position[0] += 4 + record.length(0);
+					});
+				Path run = LongRecordRuns.writeRun(directory(), keyed, n, KEY_SIZE);
+				files.add(run);
+				byFingerprint.add(run);
+			}
+		} finally {
+			budget.release(batchReserved);
+		}
+		return byFingerprint;
+	}
+
+	/**
+	 * Writes the first line of every key, by fingerprint, as fingerprint, key
+	 * hash, line number and position of the key. Only the keys of one
+	 * fingerprint are held at a time.
+	 */
+	private void findFirstLines(List<Path> byFingerprint, Path firsts) throws IOException {
+		HashMap<Long, long[]> first = new HashMap<Long, long[]>();
+		long fingerprint = 0;
+		try (LongRecordRuns.Merger merger = new LongRecordRuns.Merger(byFingerprint, KEY_SIZE, budget);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(firsts), BUFFER_SIZE))) {
+			while (merger.next()) {
+				long[] record = merger.record();
+				if (!first.isEmpty() && record[0] != fingerprint) {
+					writeFirstLines(out, fingerprint, first);
+				}
+				fingerprint = record[0];
+				long[] line = first.get(record[1]);
+				if (line == null) {
+					first.put(record[1], new long[] { record[2], record[3] });
+				} else if (record[2] < line[0]) {
+					line[0] = record[2];
+					line[1] = record[3];
+				}
+			}
+			writeFirstLines(out, fingerprint, first);
+		}
+	}
+
+	private static void writeFirstLines(DataOutputStream out, long fingerprint, HashMap<Long, long[]> first) throws IOException {
+		for (Map.Entry<Long, long[]> entry : first.entrySet()) {
+			out.writeLong(fingerprint);
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue()[0]);
+			out.writeLong(entry.getValue()[1]);
+		}
+		first.clear();
+	}
+
+	/**
+	 * Merges the lines by fingerprint once more, next to their first lines,
+	 * and reports every line of a key but its first.
+	 */
+	private void reportRepeated(List<Path> byFingerprint, Path firsts, Path keys, DuplicateHandler handler) throws IOException {
+		HashMap<Long, long[]> first = new HashMap<Long, long[]>();
+		HashMap<Long, String> names = new HashMap<Long, String>();
+		long[] next = new long[KEY_SIZE];
+		try (LongRecordRuns.Merger merger = new LongRecordRuns.Merger(byFingerprint, KEY_SIZE, budget);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(firsts), BUFFER_SIZE));
+				FileChannel keyFile = FileChannel.open(keys, StandardOpenOption.READ)) {
+			boolean moreFirsts = readFirstLine(in, next);
+			boolean started = false;
+			long fingerprint = 0;
+			while (merger.next()) {
+				long[] record = merger.record();
+				if (!started || record[0] != fingerprint) {
+					fingerprint = record[0];
+					started = true;
+					first.clear();
+					names.clear();
+					while (moreFirsts && next[0] == fingerprint) {
+						first.put(next[1], new long[] { next[2], next[3] });
+						moreFirsts = readFirstLine(in, next);
+					}
+				}
+				long[] line = first.get(record[1]);
+				if (record[2] != line[0]) {
+					String key = names.get(record[1]);
+					if (key == null) {
+						key = readKey(keyFile, line[1]);
+						names.put(record[1], key);
+					}
+					handler.duplicate(record[2], key, line[0]);
+				}
+			}
+		}
+	}
+
+	private static boolean readFirstLine(DataInputStream in, long[] line) throws IOException {
+		try {
+			line[0] = in.readLong();
+		} catch (EOFException e) {
+			return false;
+		}
+		for (int i = 1; i < line.length; i++) {
+			line[i] = in.readLong();
+		}
+		return true;
+	}
+
+	private static String readKey(FileChannel keys, long position) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(keys, length, position);
+		ByteBuffer key = ByteBuffer.allocate(length.getInt(0));
+		readFully(keys, key, position + 4);
+		return TsvRecord.decode(key, 0, key.capacity());
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Returns the memory to the budget and deletes the run files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		budget.release(reserved + occurrencesReserved);
+		occurrencesReserved = 0;
+		candidates.close();
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		if (directory != null) {
+			Files.deleteIfExists(directory);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.themlc.bwarm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits on the findings of one snapshot. Up to <code>maxListed</code>
+ * findings of each message code are listed, further ones are only counted. A
+ * file with <code>maxErrors</code> findings is stopped, and with
+ * <code>failFast</code> the whole snapshot is. A limit of 0 means no limit.
+ */
+public class ErrorBudget {
+
+	private final long maxErrors;
+	private final long maxListed;
+	private final boolean failFast;
+	private final Messages messages;
+
+	private final ConcurrentHashMap<String, FileBudget> files = new ConcurrentHashMap<String, FileBudget>();
+	// findings per message code
+	private final AtomicLongArray listed;
+	private volatile boolean rejected;
+
+	public ErrorBudget(long maxErrors, long maxListed, boolean failFast, Messages messages) {
+		this.maxErrors = maxErrors;
+		this.maxListed = maxListed;
+		this.failFast = failFast;
+		this.messages = messages;
+		this.listed = new AtomicLongArray(messages.size());
+	}
+
+	final class FileBudget {
+		private final String logType;
+		private final AtomicLong errors = new AtomicLong();
+		private volatile boolean stopped;
+
+		FileBudget(String logType) {
+			this.logType = logType;
+		}
+
+		boolean isStopped() {
+			return stopped || rejected;
+		}
+
+		long getErrors() {
+			return errors.get();
+		}
+
+		/**
+		 * Codes of the messages of this file with more findings than are
+		 * listed and the number of findings not listed.
+		 */
+		Map<Integer, Long> getUnlisted() {
+			TreeMap<Integer, Long> unlisted = new TreeMap<Integer, Long>();
+			if (maxListed > 0) {
+				for (int code = 0; code < listed.length(); code++) {
+					if (listed.get(code) > maxListed && messages.get(code).getLogType().equals(logType)) {
+						unlisted.put(code, listed.get(code) - maxListed);
+					}
+				}
+			}
+			return unlisted;
+		}
+	}
+
+	FileBudget file(String logType) {
+		return files.computeIfAbsent(logType, FileBudget::new);
+	}
+
+	/**
+	 * Counts a finding, returns whether it is listed. Stops the file, or the
+	 * snapshot, once the finding reaches the limit.
+	 */
+	boolean count(int code) {
+		FileBudget file = file(messages.get(code).getLogType());
+		long errors = file.errors.incrementAndGet();
+		if (maxErrors > 0 && errors >= maxErrors) {
+			file.stopped = true;
+			rejected |= failFast;
+		}
+		if (maxListed == 0) {
+			return true;
+		}
+		// messages registered after the budget are not limited
+		return code >= listed.length() || listed.incrementAndGet(code) <= maxListed;
+	}
+
+	public boolean isRejected() {
+		return rejected;
+	}
+}
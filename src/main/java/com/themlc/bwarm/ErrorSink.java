@@ -0,0 +1,154 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the findings of all validation workers for one snapshot. Every
+ * thread appends to its own shard, a {@link FindingBuffer} plus a count per
+ * message code, so logging an error takes no lock and formats nothing. A shard
+ * hands its findings to the {@link FindingOutput} only once it is full, and
+ * its counts are merged into the shared ones at the same time.
+ */
+public class ErrorSink {
+
+	private final FindingOutput logger;
+	private final Writer summary;
+	private final Messages messages;
+
+	// findings per message code
+	private long[] counts = new long[0];
+	private final LongAdder errors = new LongAdder();
+	private final ConcurrentLinkedQueue<Shard> shards = new ConcurrentLinkedQueue<Shard>();
+	private final ThreadLocal<Shard> shard = ThreadLocal.withInitial(this::newShard);
+
+	private static final class Shard {
+		final FindingBuffer findings = new FindingBuffer();
+		long[] counts = new long[64];
+		long total;
+
+		void count(int code) {
+			if (code >= counts.length) {
+				counts = Arrays.copyOf(counts, Math.max(counts.length * 2, code + 1));
+			}
+			counts[code]++;
+			total++;
+		}
+	}
+
+	private Shard newShard() {
+		Shard s = new Shard();
+		shards.add(s);
+		return s;
+	}
+
+	public ErrorSink(String snapshot, Messages messages, Path loggerLocation, FindingOutput.Format format, Path summaryLocation) throws IOException {
+		this(FindingOutput.open(loggerLocation, format, snapshot, messages), Files.newBufferedWriter(summaryLocation, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	ErrorSink(FindingOutput logger, Writer summary) throws IOException {
+		this.logger = logger;
+		this.messages = logger.messages;
+
+		this.summary = summary;
+		this.summary.write("Snapshot\tFile\tRecord Id\tError Message\tCount\n");
+	}
+
+	/**
+	 * A finding with the id and, unless <code>valueStart</code> is
+	 * {@link FindingBuffer#NO_VALUE}, the value of its message in
+	 * <code>buffer</code>.
+	 */
+	public void log(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, int valueStart, int valueEnd) {
+		Shard s = shard.get();
+		s.findings.add(code, lineNumber, buffer, idStart, idEnd, valueStart, valueEnd);
+		added(s, code);
+	}
+
+	public void log(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, long value) {
+		Shard s = shard.get();
+		s.findings.add(code, lineNumber, buffer, idStart, idEnd, value);
+		added(s, code);
+	}
+
+	/**
+	 * @param value null for a message without value
+	 */
+	public void log(int code, long lineNumber, String id, String value) {
+		Shard s = shard.get();
+		s.findings.add(code, lineNumber, id, value);
+		added(s, code);
+	}
+
+	private void added(Shard s, int code) {
+		s.count(code);
+		if (FindingOutput.isFull(s.findings)) {
+			flush(s);
+		}
+	}
+
+	/**
+	 * Counts a finding in the summary without listing it.
+	 */
+	public void count(int code) {
+		shard.get().count(code);
+	}
+
+	private void flush(Shard s) {
+		if (!s.findings.isEmpty()) {
+			logger.write(logger.encode(s.findings));
+			s.findings.clear();
+		}
+
+		synchronized (this) {
+			if (counts.length < s.counts.length) {
+				counts = Arrays.copyOf(counts, s.counts.length);
+			}
+			for (int code = 0; code < s.counts.length; code++) {
+				counts[code] += s.counts[code];
+			}
+		}
+		Arrays.fill(s.counts, 0);
+		errors.add(s.total);
+		s.total = 0;
+	}
+
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * Flushes all shards and writes the summary, one line per message with
+	 * {@value Messages#ANY_VALUE} for its values. Must only be called once all
+	 * workers are done. The findings and the summary are closed even if that
+	 * fails, the first error is thrown.
+	 */
+	public void close() throws IOException {
+		// closed in reverse order, the findings first
+		try (Writer out = summary; FindingOutput findings = logger) {
+			try {
+				for (Shard s : shards) {
+					flush(s);
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			for (int code = 0; code < counts.length; code++) {
+				if (counts[code] > 0) {
+					Messages.Message message = messages.get(code);
+					out.write(logger.snapshot + "\t" + message.getLogType() + "\t" + message.summaryText() + "\t" + counts[code] + "\n");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Findings of one worker stored column by column: message code, line number
+ * and the bytes of the record id and of the value, copied straight from the
+ * record. Nothing is decoded or formatted until the findings are written.
+ */
+final class FindingBuffer {
+
+	static final int NO_VALUE = -1;
+
+	private int count;
+	private int[] codes = new int[1024];
+	private long[] lines = new long[1024];
+	// end of the id and of the value of each finding in data, -1 for no value
+	private int[] idEnds = new int[1024];
+	private int[] valueEnds = new int[1024];
+	private byte[] data = new byte[64 * 1024];
+	private int size;
+
+	/**
+	 * A finding with the id and the value, if <code>valueStart</code> is not
+	 * {@link #NO_VALUE}, taken from <code>buffer</code>.
+	 */
+	void add(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, int valueStart, int valueEnd) {
+		begin(code, lineNumber);
+		append(buffer, idStart, idEnd);
+		idEnds[count] = size;
+		if (valueStart == NO_VALUE) {
+			valueEnds[count++] = NO_VALUE;
+			return;
+		}
+		append(buffer, valueStart, valueEnd);
+		valueEnds[count++] = size;
+	}
+
+	/**
+	 * A finding with the id taken from <code>buffer</code> and a number as
+	 * value.
+	 */
+	void add(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, long value) {
+		begin(code, lineNumber);
+		append(buffer, idStart, idEnd);
+		idEnds[count] = size;
+		appendNumber(value);
+		valueEnds[count++] = size;
+	}
+
+	void add(int code, long lineNumber, String id, String value) {
+		begin(code, lineNumber);
+		append(id);
+		idEnds[count] = size;
+		if (value == null) {
+			valueEnds[count++] = NO_VALUE;
+			return;
+		}
+		append(value);
+		valueEnds[count++] = size;
+	}
+
+	private void begin(int code, long lineNumber) {
+		if (count == codes.length) {
+			codes = Arrays.copyOf(codes, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+			idEnds = Arrays.copyOf(idEnds, count * 2);
+			valueEnds = Arrays.copyOf(valueEnds, count * 2);
+		}
+		codes[count] = code;
+		lines[count] = lineNumber;
+	}
+
+	private void reserve(int length) {
+		if (size + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+		}
+	}
+
+	private void append(ByteBuffer buffer, int start, int end) {
+		reserve(end - start);
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + start, data, size, end - start);
+			size += end - start;
+		} else {
+			for (int i = start; i < end; i++) {
+				data[size++] = buffer.get(i);
+			}
+		}
+	}
+
+	private void append(String value) {
+		if (value == null) {
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		reserve(bytes.length);
+		System.arraycopy(bytes, 0, data, size, bytes.length);
+		size += bytes.length;
+	}
+
+	private void appendNumber(long value) {
+		reserve(20);
+		if (value < 0) {
+			data[size++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = size + digits - 1; i >= size; i--) {
+			data[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		size += digits;
+	}
+
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Bytes of ids and values.
+	 */
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	void clear() {
+		count = 0;
+		size = 0;
+	}
+
+	int code(int i) {
+		return codes[i];
+	}
+
+	long lineNumber(int i) {
+		return lines[i];
+	}
+
+	byte[] data() {
+		return data;
+	}
+
+	int idStart(int i) {
+		return i == 0 ? 0 : valueEnds[i - 1] == NO_VALUE ? idEnds[i - 1] : valueEnds[i - 1];
+	}
+
+	int idEnd(int i) {
+		return idEnds[i];
+	}
+
+	boolean hasValue(int i) {
+		return valueEnds[i] != NO_VALUE;
+	}
+
+	int valueEnd(int i) {
+		return valueEnds[i];
+	}
+}
@@ -0,0 +1,389 @@
+package com.themlc.bwarm;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+/**
+ * The findings file of an {@link ErrorSink}. Every worker renders the findings
+ * it collected into a block of its own, blocks are queued for a writer thread
+ * that compresses them if needed and writes them through a large direct
+ * buffer, so the workers only wait for the disk once several blocks are
+ * queued.
+ *
+ * Besides TSV, plain or compressed, findings can be written in a binary
+ * columnar format, see {@link BinaryFindings}.
+ */
+public abstract class FindingOutput implements Closeable {
+
+	static final String HEADER = "Snapshot\tFile\tRecord Id\tLine Number\tError Message\n";
+	static final int BINARY_MAGIC = 0x42574644;
+	static final int BINARY_VERSION = 2;
+
+	private static final int BLOCK_SIZE = 256 * 1024;
+	private static final int QUEUE_SIZE = 16;
+	private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final byte[] END = new byte[0];
+
+	public enum Format {
+		TSV("tsv", "validator.tsv"), TSV_GZIP("tsv.gz", "validator.tsv.gz"), TSV_ZSTD("tsv.zst", "validator.tsv.zst"), BINARY("bin", "validator.bin");
+
+		private final String name;
+		private final String fileName;
+
+		Format(String name, String fileName) {
+			this.name = name;
+			this.fileName = fileName;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		/**
+		 * The format named tsv, tsv.gz, tsv.zst or bin.
+		 */
+		public static Format of(String name) {
+			for (Format format : values()) {
+				if (format.name.equals(name)) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Unknown output format " + name);
+		}
+	}
+
+	private final OutputStream out;
+	private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+	private final Thread writer;
+	private volatile IOException failure;
+	final String snapshot;
+	final Messages messages;
+	// bytes written by the writer thread
+	long written;
+
+	public static FindingOutput open(Path file, Format format, String snapshot, Messages messages) throws IOException {
+		return create(format, new ChannelOutputStream(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)), snapshot, messages);
+	}
+
+	static FindingOutput create(Format format, OutputStream out, String snapshot, Messages messages) throws IOException {
+		switch (format) {
+		case TSV_GZIP:
+			return new TextOutput(new FastGzipOutputStream(out), snapshot, messages);
+		case TSV_ZSTD:
+			return new TextOutput(new ZstdOutputStream(out), snapshot, messages);
+		case BINARY:
+			return new BinaryOutput(out, snapshot, messages);
+		default:
+			return new TextOutput(out, snapshot, messages);
+		}
+	}
+
+	FindingOutput(OutputStream out, String snapshot, Messages messages) {
+		this.out = out;
+		this.snapshot = snapshot;
+		this.messages = messages;
+		this.writer = new Thread(this::drain, "finding-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * True once a worker should hand its findings over.
+	 */
+	static boolean isFull(FindingBuffer findings) {
+		return findings.size() + findings.count() * 24 >= BLOCK_SIZE;
+	}
+
+	/**
+	 * Renders the findings of a worker, called by the worker itself.
+	 */
+	abstract byte[] encode(FindingBuffer findings);
+
+	/**
+	 * Queues encoded findings, waits while the queue is full.
+	 */
+	void write(byte[] bytes) {
+		if (failure != null) {
+			throw new UncheckedIOException(failure);
+		}
+		try {
+			queue.put(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("Interrupted while writing findings"));
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			byte[] bytes;
+			try {
+				bytes = queue.take();
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("Findings writer interrupted");
+				return;
+			}
+			if (bytes == END) {
+				return;
+			}
+			// after a failure the queue is still emptied, so no worker waits forever
+			if (failure == null) {
+				try {
+					out.write(bytes);
+					written += bytes.length;
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes what follows the last block, called once the writer is done.
+	 */
+	void finish(OutputStream out) throws IOException {
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			queue.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing findings");
+		}
+		try {
+			if (failure == null) {
+				finish(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * validator.tsv, the text is rendered from the message templates by the
+	 * workers.
+	 */
+	static final class TextOutput extends FindingOutput {
+		private final byte[] snapshotBytes;
+
+		TextOutput(OutputStream out, String snapshot, Messages messages) {
+			super(out, snapshot, messages);
+			this.snapshotBytes = snapshot.getBytes(StandardCharsets.UTF_8);
+			write(HEADER.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		byte[] encode(FindingBuffer findings) {
+			int count = findings.count();
+			int size = findings.size();
+			for (int i = 0; i < count; i++) {
+				Messages.Message message = messages.get(findings.code(i));
+				size += snapshotBytes.length + message.logTypeBytes.length + message.prefixBytes.length + 25;
+				if (message.hasValue()) {
+					size += message.suffixBytes.length;
+				}
+			}
+			byte[] data = findings.data();
+			byte[] text = new byte[size];
+			int at = 0;
+			for (int i = 0; i < count; i++) {
+				Messages.Message message = messages.get(findings.code(i));
+				at = put(text, at, snapshotBytes, 0, snapshotBytes.length);
+				text[at++] = '\t';
+				at = put(text, at, message.logTypeBytes, 0, message.logTypeBytes.length);
+				text[at++] = '\t';
+				at = put(text, at, data, findings.idStart(i), findings.idEnd(i));
+				text[at++] = '\t';
+				at = putLineNumber(text, at, findings.lineNumber(i));
+				text[at++] = '\t';
+				at = put(text, at, message.prefixBytes, 0, message.prefixBytes.length);
+				if (message.hasValue()) {
+					if (findings.hasValue(i)) {
+						at = put(text, at, data, findings.idEnd(i), findings.valueEnd(i));
+					}
+					at = put(text, at, message.suffixBytes, 0, message.suffixBytes.length);
+				}
+				text[at++] = '\n';
+			}
+			return at == text.length ? text : Arrays.copyOf(text, at);
+		}
+
+		private static int put(byte[] text, int at, byte[] bytes, int start, int end) {
+			System.arraycopy(bytes, start, text, at, end - start);
+			return at + end - start;
+		}
+
+		private static int putLineNumber(byte[] text, int at, long lineNumber) {
+			if (lineNumber < 0) {
+				return at;
+			}
+			int digits = 1;
+			for (long rest = lineNumber / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+			for (int i = at + digits - 1; i >= at; i--) {
+				text[i] = (byte) ('0' + lineNumber % 10);
+				lineNumber /= 10;
+			}
+			return at + digits;
+		}
+	}
+
+	/**
+	 * validator.bin: a header, blocks of findings stored column by column and
+	 * a footer with the snapshot and the messages the codes of the findings
+	 * refer to.
+	 *
+	 * <pre>
+	 * int magic, int version
+	 * block: int count, int[count] message code, long[count] line number (-1 if none),
+	 *        count times (int length, UTF-8 record id, int length (-1 if none), UTF-8 value)
+	 * footer: (int length, UTF-8 snapshot), int messages,
+	 *         per message (int length, UTF-8 file, int length, UTF-8 prefix,
+	 *         int length, UTF-8 suffix, byte has value)
+	 * long footer offset, int magic
+	 * </pre>
+	 */
+	static final class BinaryOutput extends FindingOutput {
+
+		BinaryOutput(OutputStream out, String snapshot, Messages messages) {
+			super(out, snapshot, messages);
+			write(ByteBuffer.allocate(8).putInt(BINARY_MAGIC).putInt(BINARY_VERSION).array());
+		}
+
+		@Override
+		byte[] encode(FindingBuffer findings) {
+			int count = findings.count();
+			ByteBuffer buffer = ByteBuffer.allocate(4 + count * 20 + findings.size());
+			buffer.putInt(count);
+			for (int i = 0; i < count; i++) {
+				buffer.putInt(findings.code(i));
+			}
+			for (int i = 0; i < count; i++) {
+				buffer.putLong(findings.lineNumber(i));
+			}
+			byte[] data = findings.data();
+			for (int i = 0; i < count; i++) {
+				int idStart = findings.idStart(i);
+				buffer.putInt(findings.idEnd(i) - idStart).put(data, idStart, findings.idEnd(i) - idStart);
+				if (findings.hasValue(i)) {
+					buffer.putInt(findings.valueEnd(i) - findings.idEnd(i)).put(data, findings.idEnd(i), findings.valueEnd(i) - findings.idEnd(i));
+				} else {
+					buffer.putInt(-1);
+				}
+			}
+			return buffer.array();
+		}
+
+		@Override
+		void finish(OutputStream out) throws IOException {
+			DataOutputStream footer = new DataOutputStream(out);
+			writeString(footer, snapshot);
+			int size = messages.size();
+			footer.writeInt(size);
+			for (int code = 0; code < size; code++) {
+				Messages.Message message = messages.get(code);
+				writeString(footer, message.getLogType());
+				writeString(footer, message.getPrefix());
+				writeString(footer, message.getSuffix());
+				footer.writeBoolean(message.hasValue());
+			}
+			footer.writeLong(written);
+			footer.writeInt(BINARY_MAGIC);
+			footer.flush();
+		}
+
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Writes to a file channel through a direct buffer, so large blocks reach
+	 * the channel without another copy.
+	 */
+	static final class ChannelOutputStream extends OutputStream {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		ChannelOutputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				drain();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Gzip at the fastest level, findings compress well even so.
+	 */
+	private static final class FastGzipOutputStream extends GZIPOutputStream {
+		FastGzipOutputStream(OutputStream out) throws IOException {
+			super(out, 64 * 1024);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+}
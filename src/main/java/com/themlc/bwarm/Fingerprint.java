@@ -0,0 +1,58 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 64 bit hash of a field value, used to keep identifiers in primitive sets
+ * instead of Strings. The hash is never 0 so that 0 can mark empty slots.
+ */
+public final class Fingerprint {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+	private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+	private Fingerprint() {
+	}
+
+	public static long of(ByteBuffer buffer, int start, int end) {
+		return of(buffer, start, end, SEED);
+	}
+
+	/**
+	 * The hash with another seed, to tell apart values whose fingerprints are
+	 * equal without comparing them.
+	 */
+	static long of(ByteBuffer buffer, int start, int end, long seed) {
+		long h = seed ^ ((end - start) * MULTIPLIER);
+		int i = start;
+		for (; i + 8 <= end; i += 8) {
+			h = (h ^ mix(buffer.getLong(i))) * MULTIPLIER;
+			h = Long.rotateLeft(h, 31);
+		}
+		long tail = 0;
+		for (; i < end; i++) {
+			tail = (tail << 8) | (buffer.get(i) & 0xFF);
+		}
+		h = (h ^ mix(tail)) * MULTIPLIER;
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	public static long of(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return of(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3.
+	 */
+	static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xFF51AFD7ED558CCDL;
+		k ^= k >>> 33;
+		k *= 0xC4CEB9FE1A85EC53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -0,0 +1,38 @@
+package com.themlc.bwarm;
+
+/**
+ * A column whose values must be present in column 0 of another file.
+ */
+public final class ForeignKey {
+
+	private final int column;
+	private final String columnName;
+	private final Schema parent;
+	private final int missingCode;
+
+	ForeignKey(int column, String columnName, Schema parent, int missingCode) {
+		this.column = column;
+		this.columnName = columnName;
+		this.parent = parent;
+		this.missingCode = missingCode;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public String getColumnName() {
+		return columnName;
+	}
+
+	public Schema getParent() {
+		return parent;
+	}
+
+	/**
+	 * The code of the message for a value not found, which quotes the value.
+	 */
+	public int getMissingCode() {
+		return missingCode;
+	}
+}
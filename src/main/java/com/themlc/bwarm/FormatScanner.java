@@ -0,0 +1,527 @@
+package com.themlc.bwarm;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Syntax checks for the typed BWARM columns that work directly on the bytes
+ * of a field, without building Strings or throwing exceptions. Each method
+ * accepts exactly what the Joda-Time / BigDecimal parsing used before
+ * accepted:
+ * <ul>
+ * <li>boolean: <code>true</code> or <code>false</code>, ignoring case</li>
+ * <li>number: the grammar of <code>new BigDecimal(String)</code></li>
+ * <li>duration: the seconds form <code>PTn[.n]S</code> accepted by Joda
+ * <code>Duration.parse</code></li>
+ * <li>date: <code>ISODateTimeFormat.localDateOptionalTimeParser()</code>,
+ * that is a calendar, week or ordinal date optionally followed by
+ * <code>T</code> and a local time</li>
+ * </ul>
+ * The rare inputs the scanners do not handle themselves (non ASCII numbers,
+ * years near the limits of Joda-Time) are handed to the original parser.
+ */
+public final class FormatScanner {
+
+	public static final long INVALID_DATE = Long.MIN_VALUE;
+
+	private static final long MAX_SIMPLE_YEAR = 200000000;
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private static final DateTimeFormatter LOCAL_DATE_OPTIONAL_TIME = ISODateTimeFormat.localDateOptionalTimeParser();
+
+	private FormatScanner() {
+	}
+
+	public static boolean isBoolean(ByteBuffer buffer, int start, int end) {
+		int length = end - start;
+		if (length == 4) {
+			return lower(buffer.get(start)) == 't' && lower(buffer.get(start + 1)) == 'r' && lower(buffer.get(start + 2)) == 'u' && lower(buffer.get(start + 3)) == 'e';
+		}
+		if (length == 5) {
+			return lower(buffer.get(start)) == 'f' && lower(buffer.get(start + 1)) == 'a' && lower(buffer.get(start + 2)) == 'l' && lower(buffer.get(start + 3)) == 's' && lower(buffer.get(start + 4)) == 'e';
+		}
+		return false;
+	}
+
+	private static int lower(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	public static boolean isNumber(ByteBuffer buffer, int start, int end) {
+		int i = start;
+		if (i < end && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+			i++;
+		}
+		int digits = 0;
+		long fractionDigits = 0;
+		boolean dot = false;
+		while (i < end) {
+			byte b = buffer.get(i);
+			if (isDigit(b)) {
+				digits++;
+				if (dot) {
+					fractionDigits++;
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+			i++;
+		}
+		if (i < end && buffer.get(i) < 0) {
+			return isNumberSlow(buffer, start, end);
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i == end) {
+			return true;
+		}
+		if (buffer.get(i) != 'e' && buffer.get(i) != 'E') {
+			return false;
+		}
+		i++;
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		if (i == end) {
+			return false;
+		}
+		for (int j = i; j < end; j++) {
+			if (buffer.get(j) < 0) {
+				return isNumberSlow(buffer, start, end);
+			}
+		}
+		while (i < end - 1 && buffer.get(i) == '0') {
+			i++;
+		}
+		if (end - i > 10) {
+			return false;
+		}
+		long exponent = 0;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (!isDigit(b)) {
+				return false;
+			}
+			exponent = exponent * 10 + (b - '0');
+		}
+		if (negative) {
+			exponent = -exponent;
+		}
+		if (exponent < Integer.MIN_VALUE || exponent > Integer.MAX_VALUE) {
+			return false;
+		}
+		long scale = fractionDigits - exponent;
+		return scale >= Integer.MIN_VALUE && scale <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the value of a number, or NaN if it is not a valid number.
+	 * Plain decimals are parsed from the bytes, anything else as a BigDecimal.
+	 */
+	public static double parseNumber(ByteBuffer buffer, int start, int end) {
+		int i = start;
+		boolean negative = i < end && buffer.get(i) == '-';
+		if (i < end && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+			i++;
+		}
+		long digits = 0;
+		int digitCount = 0;
+		int fractionDigits = 0;
+		boolean dot = false;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (isDigit(b)) {
+				digits = digits * 10 + (b - '0');
+				digitCount++;
+				if (dot) {
+					fractionDigits++;
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (i == end && digitCount > 0 && digitCount <= 15) {
+			double value = fractionDigits == 0 ? digits : digits / Math.pow(10, fractionDigits);
+			return negative ? -value : value;
+		}
+		if (!isNumber(buffer, start, end)) {
+			return Double.NaN;
+		}
+		return new BigDecimal(TsvRecord.decode(buffer, start, end)).doubleValue();
+	}
+
+	private static boolean isNumberSlow(ByteBuffer buffer, int start, int end) {
+		try {
+			new BigDecimal(TsvRecord.decode(buffer, start, end));
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+		return true;
+	}
+
+	public static boolean isDuration(ByteBuffer buffer, int start, int end) {
+		if (end - start < 4) {
+			return false;
+		}
+		if (lower(buffer.get(start)) != 'p' || lower(buffer.get(start + 1)) != 't' || lower(buffer.get(end - 1)) != 's') {
+			return false;
+		}
+		int i = start + 2;
+		int last = end - 1;
+		boolean negative = buffer.get(i) == '-';
+		if (negative) {
+			i++;
+		}
+		int firstDigit = i;
+		boolean dot = false;
+		boolean overflow = false;
+		long seconds = 0;
+		int millis = 0;
+		int millisDigits = 0;
+		for (; i < last; i++) {
+			byte b = buffer.get(i);
+			if (isDigit(b)) {
+				if (!dot) {
+					if (seconds > (Long.MAX_VALUE - (b - '0')) / 10) {
+						overflow = true;
+					} else {
+						seconds = seconds * 10 + (b - '0');
+					}
+				} else if (millisDigits < 3) {
+					millis = millis * 10 + (b - '0');
+					millisDigits++;
+				}
+			} else if (b == '.' && !dot && i > firstDigit) {
+				dot = true;
+			} else {
+				return false;
+			}
+		}
+		if (last == firstDigit || overflow) {
+			return false;
+		}
+		if (dot) {
+			for (; millisDigits < 3; millisDigits++) {
+				millis *= 10;
+			}
+		}
+		// the total has to fit in a long of milliseconds, one more for negative values
+		if (seconds > Long.MAX_VALUE / 1000) {
+			return false;
+		}
+		return seconds * 1000 - (negative ? 1 : 0) <= Long.MAX_VALUE - millis;
+	}
+
+	public static boolean isDate(ByteBuffer buffer, int start, int end) {
+		return parseDate(buffer, start, end) != INVALID_DATE;
+	}
+
+	/**
+	 * Returns the local date time as milliseconds since 1970-01-01T00:00, or
+	 * {@link #INVALID_DATE} if the value is not a valid date.
+	 */
+	public static long parseDate(ByteBuffer buffer, int start, int end) {
+		DateScanner scanner = new DateScanner(buffer, start, end);
+		return scanner.parse();
+	}
+
+	private static long parseDateSlow(ByteBuffer buffer, int start, int end) {
+		try {
+			DateTime dateTime = LOCAL_DATE_OPTIONAL_TIME.parseDateTime(TsvRecord.decode(buffer, start, end));
+			return dateTime.getMillis();
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return INVALID_DATE;
+		}
+	}
+
+	static boolean isLeapYear(long year) {
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	static int daysInMonth(long year, int month) {
+		switch (month) {
+		case 2:
+			return isLeapYear(year) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Days since 1970-01-01 in the proleptic Gregorian calendar.
+	 */
+	static long epochDay(long year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * ISO day of week, 1 for Monday to 7 for Sunday.
+	 */
+	static int dayOfWeek(long epochDay) {
+		return (int) Math.floorMod(epochDay + 3, 7L) + 1;
+	}
+
+	static int weeksInWeekyear(long weekyear) {
+		int jan1 = dayOfWeek(epochDay(weekyear, 1, 1));
+		return jan1 == 4 || (jan1 == 3 && isLeapYear(weekyear)) ? 53 : 52;
+	}
+
+	/**
+	 * A single use cursor over one field, kept on the stack by escape analysis.
+	 */
+	private static final class DateScanner {
+
+		private final ByteBuffer buffer;
+		private final int start;
+		private final int end;
+		private int pos;
+
+		DateScanner(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		private boolean at(char c) {
+			return pos < end && buffer.get(pos) == c;
+		}
+
+		private boolean atIgnoreCase(char c) {
+			return pos < end && lower(buffer.get(pos)) == c;
+		}
+
+		/**
+		 * Reads 1 to max digits at the current position, or returns -1.
+		 */
+		private long digits(int max) {
+			long value = 0;
+			int count = 0;
+			while (count < max && pos < end && isDigit(buffer.get(pos))) {
+				value = value * 10 + (buffer.get(pos) - '0');
+				pos++;
+				count++;
+			}
+			return count == 0 ? -1 : value;
+		}
+
+		/**
+		 * Reads a decimal point and 1 to 9 digits and returns the fraction in
+		 * nanoseconds of a unit, or returns -1 without moving.
+		 */
+		private long fraction() {
+			int mark = pos;
+			if (!at('.') && !at(',')) {
+				return -1;
+			}
+			pos++;
+			long value = 0;
+			int count = 0;
+			while (count < 9 && pos < end && isDigit(buffer.get(pos))) {
+				value = value * 10 + (buffer.get(pos) - '0');
+				pos++;
+				count++;
+			}
+			if (count == 0) {
+				pos = mark;
+				return -1;
+			}
+			for (; count < 9; count++) {
+				value *= 10;
+			}
+			return value;
+		}
+
+		long parse() {
+			pos = start;
+			boolean negative = false;
+			if (at('-') || at('+')) {
+				negative = at('-');
+				pos++;
+			}
+			long year = digits(9);
+			if (year < 0) {
+				return INVALID_DATE;
+			}
+			if (year > MAX_SIMPLE_YEAR) {
+				return parseDateSlow(buffer, start, end);
+			}
+			if (negative) {
+				year = -year;
+			}
+			int afterYear = pos;
+
+			// calendar date: [-MM[-dd]]
+			int month = 1;
+			int day = 1;
+			int calendarEnd = afterYear;
+			if (at('-')) {
+				pos++;
+				long m = digits(2);
+				if (m >= 0) {
+					month = (int) m;
+					calendarEnd = pos;
+					if (at('-')) {
+						pos++;
+						long d = digits(2);
+						if (d >= 0) {
+							day = (int) d;
+							calendarEnd = pos;
+						}
+					}
+				}
+			}
+
+			// week date: -Www[-d]
+			pos = afterYear;
+			int week = -1;
+			int weekDay = 1;
+			int weekEnd = -1;
+			if (at('-')) {
+				pos++;
+				if (atIgnoreCase('w')) {
+					pos++;
+					long w = digits(2);
+					if (w >= 0) {
+						week = (int) w;
+						weekEnd = pos;
+						if (at('-')) {
+							pos++;
+							long d = digits(1);
+							if (d >= 0) {
+								weekDay = (int) d;
+								weekEnd = pos;
+							}
+						}
+					}
+				}
+			}
+
+			// ordinal date: -ddd
+			pos = afterYear;
+			int dayOfYear = -1;
+			int ordinalEnd = -1;
+			if (at('-')) {
+				pos++;
+				long d = digits(3);
+				if (d >= 0) {
+					dayOfYear = (int) d;
+					ordinalEnd = pos;
+				}
+			}
+
+			// the longest alternative wins, the first one on a tie
+			long epochDay;
+			if (weekEnd > calendarEnd && weekEnd > ordinalEnd) {
+				pos = weekEnd;
+				if (week < 1 || week > weeksInWeekyear(year) || weekDay < 1 || weekDay > 7) {
+					return INVALID_DATE;
+				}
+				long jan4 = epochDay(year, 1, 4);
+				epochDay = jan4 - (dayOfWeek(jan4) - 1) + (week - 1) * 7L + (weekDay - 1);
+			} else if (ordinalEnd > calendarEnd) {
+				pos = ordinalEnd;
+				if (dayOfYear < 1 || dayOfYear > (isLeapYear(year) ? 366 : 365)) {
+					return INVALID_DATE;
+				}
+				epochDay = epochDay(year, 1, 1) + dayOfYear - 1;
+			} else {
+				pos = calendarEnd;
+				if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+					return INVALID_DATE;
+				}
+				epochDay = epochDay(year, month, day);
+			}
+
+			if (pos == end) {
+				return epochDay * MILLIS_PER_DAY;
+			}
+			if (!atIgnoreCase('t')) {
+				return INVALID_DATE;
+			}
+			pos++;
+			long time = time();
+			if (time < 0 || pos != end) {
+				return INVALID_DATE;
+			}
+			return epochDay * MILLIS_PER_DAY + time;
+		}
+
+		/**
+		 * HH[:mm[:ss[.fff]]|.fff]|.fff] as milliseconds of the day, or -1.
+		 */
+		private long time() {
+			long hour = digits(2);
+			if (hour < 0 || hour > 23) {
+				return -1;
+			}
+			long millis = hour * 3600000;
+			int mark = pos;
+			if (at(':')) {
+				pos++;
+				long minute = digits(2);
+				if (minute < 0) {
+					pos = mark;
+					return millis;
+				}
+				if (minute > 59) {
+					return -1;
+				}
+				millis += minute * 60000;
+				mark = pos;
+				if (at(':')) {
+					pos++;
+					long second = digits(2);
+					if (second < 0) {
+						pos = mark;
+						return millis;
+					}
+					if (second > 59) {
+						return -1;
+					}
+					millis += second * 1000;
+					long fraction = fraction();
+					if (fraction >= 0) {
+						millis += fraction / 1000000;
+					}
+					return millis;
+				}
+				// like Joda-Time, only the digits that resolve milliseconds count
+				long fraction = fraction();
+				if (fraction >= 0) {
+					millis += fraction / 10000 * 6 / 10;
+				}
+				return millis;
+			}
+			long fraction = fraction();
+			if (fraction >= 0) {
+				millis += fraction / 100 * 36 / 100;
+			}
+			return millis;
+		}
+	}
+}
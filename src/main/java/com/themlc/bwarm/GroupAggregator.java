@@ -0,0 +1,356 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Streaming group-by of 64 bit keys, usually {@link Fingerprint}s, summing a
+ * double and counting the values of each key. Every group also keeps the line
+ * it was first seen on, with the offset of the line and a tag of the caller,
+ * so the report can read that line back.
+ *
+ * Groups are held in open addressing tables of longs, split into stripes by
+ * the high bits of the key like an {@link IdIndex}, and take their memory from
+ * a {@link MemoryBudget}. A stripe that can not grow within the budget writes
+ * its partial groups to its own spill file and starts over, so each stripe is
+ * a hash partition of the keys. Once all values are added every spilled
+ * stripe is aggregated again from its file; a file with more groups than fit
+ * is split further by the next bits of the key, down to parts the size of the
+ * smallest table. The values of a file are read in a single pass, whatever
+ * its size.
+ */
+public class GroupAggregator implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int PARTITION_BITS = 6;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_CAPACITY = 1 << 26;
+	// key, sum, count, line number, offset, tag
+	private static final int RECORD_SIZE = 6;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Stripe[] stripes = new Stripe[1 << PARTITION_BITS];
+	private final MemoryBudget budget;
+	private final Path spillDirectory;
+	private Path directory;
+
+	public interface GroupHandler {
+		void group(long key, double sum, long count, long lineNumber, long offset, long tag) throws IOException;
+	}
+
+	/**
+	 * An open addressing table of groups, keys are never 0.
+	 */
+	private final class Table {
+		long[] slots;
+		int capacity;
+		int size;
+		long reserved;
+
+		/**
+		 * @param reserved the bytes of the table taken from the budget by the
+		 *                 caller, 0 if it is not accounted for
+		 */
+		Table(int capacity, long reserved) {
+			this.capacity = capacity;
+			this.slots = new long[capacity * RECORD_SIZE];
+			this.reserved = reserved;
+		}
+
+		boolean isFull() {
+			return size + 1 > capacity - (capacity >>> 2);
+		}
+
+		/**
+		 * Doubles the table, false if the budget does not allow it unless
+		 * <code>force</code> is set.
+		 */
+		boolean grow(boolean force) {
+			long bytes = capacity * 2L * RECORD_SIZE * 8;
+			if (!force && (capacity == MAX_CAPACITY || !budget.reserve(bytes))) {
+				return false;
+			}
+			long[] old = slots;
+			int oldCapacity = capacity;
+			budget.release(reserved);
+			reserved = force ? 0 : bytes;
+			capacity *= 2;
+			slots = new long[capacity * RECORD_SIZE];
+			size = 0;
+			for (int i = 0; i < oldCapacity; i++) {
+				int at = i * RECORD_SIZE;
+				if (old[at] != 0) {
+					merge(old[at], Double.longBitsToDouble(old[at + 1]), old[at + 2], old[at + 3], old[at + 4], old[at + 5]);
+				}
+			}
+			return true;
+		}
+
+		void merge(long key, double sum, long count, long lineNumber, long offset, long tag) {
+			int mask = capacity - 1;
+			int slot = (int) key & mask;
+			while (true) {
+				int at = slot * RECORD_SIZE;
+				if (slots[at] == key) {
+					slots[at + 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(slots[at + 1]) + sum);
+					slots[at + 2] += count;
+					if (lineNumber < slots[at + 3]) {
+						slots[at + 3] = lineNumber;
+						slots[at + 4] = offset;
+						slots[at + 5] = tag;
+					}
+					return;
+				}
+				if (slots[at] == 0) {
+					slots[at] = key;
+					slots[at + 1] = Double.doubleToRawLongBits(sum);
+					slots[at + 2] = count;
+					slots[at + 3] = lineNumber;
+					slots[at + 4] = offset;
+					slots[at + 5] = tag;
+					size++;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			for (int i = 0; i < slots.length; i += RECORD_SIZE) {
+				if (slots[i] != 0) {
+					for (int k = 0; k < RECORD_SIZE; k++) {
+						out.writeLong(slots[i + k]);
+					}
+				}
+			}
+		}
+
+		void forEach(GroupHandler handler) throws IOException {
+			for (int i = 0; i < slots.length; i += RECORD_SIZE) {
+				if (slots[i] != 0) {
+					handler.group(slots[i], Double.longBitsToDouble(slots[i + 1]), slots[i + 2], slots[i + 3], slots[i + 4], slots[i + 5]);
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(slots, 0);
+			size = 0;
+		}
+
+		void release() {
+			budget.release(reserved);
+			reserved = 0;
+			slots = null;
+		}
+	}
+
+	private final class Stripe {
+		Table table;
+		Path spill;
+		DataOutputStream out;
+		long spilled;
+
+		synchronized void add(long key, double value, long lineNumber, long offset, long tag) {
+			if (table == null) {
+				// a stripe needs a table even if the budget is spent
+				long bytes = INITIAL_CAPACITY * RECORD_SIZE * 8L;
+				table = new Table(INITIAL_CAPACITY, budget.reserve(bytes) ? bytes : 0);
+			}
+			if (table.isFull() && !table.grow(false)) {
+				spill();
+			}
+			table.merge(key, value, 1, lineNumber, offset, tag);
+		}
+
+		/**
+		 * Moves the groups of the table to the spill file.
+		 */
+		void spill() {
+			try {
+				if (out == null) {
+					spill = Files.createTempFile(directory(), "groups", ".bin");
+					out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spill), BUFFER_SIZE));
+				}
+				table.write(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			spilled += table.size;
+			table.clear();
+		}
+	}
+
+	/**
+	 * @param spillDirectory where spill files are created, the default
+	 *                       temporary directory if null
+	 */
+	public GroupAggregator(MemoryBudget budget, Path spillDirectory) {
+		this.budget = budget;
+		this.spillDirectory = spillDirectory;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private synchronized Path directory() throws IOException {
+		if (directory == null) {
+			directory = spillDirectory == null ? Files.createTempDirectory("bwarm-groups") : Files.createTempDirectory(spillDirectory, "bwarm-groups");
+			LOGGER.info("Groups exceed memory budget of {} bytes, spilling to {}", budget.getLimit(), directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Adds <code>value</code> to the group of <code>key</code>, which must not
+	 * be 0. Thread safe.
+	 */
+	public void add(long key, double value, long lineNumber, long offset, long tag) {
+		stripes[(int) (key >>> (64 - PARTITION_BITS))].add(key, value, lineNumber, offset, tag);
+	}
+
+	/**
+	 * Calls the handler once for every group, in no particular order. Must
+	 * only be called once all adds are done.
+	 */
+	public void forEach(GroupHandler handler) throws IOException {
+		for (Stripe stripe : stripes) {
+			if (stripe.table == null) {
+				continue;
+			}
+			if (stripe.out == null) {
+				stripe.table.forEach(handler);
+				continue;
+			}
+			stripe.table.write(stripe.out);
+			stripe.spilled += stripe.table.size;
+			stripe.out.close();
+			stripe.out = null;
+			stripe.table.release();
+			stripe.table = null;
+			aggregate(stripe.spill, stripe.spilled, PARTITION_BITS, handler);
+			Files.delete(stripe.spill);
+		}
+	}
+
+	/**
+	 * Aggregates the partial groups of a spill file. A file whose records may
+	 * not fit the budget is split by the <code>PARTITION_BITS</code> of the key
+	 * below <code>shift</code> and each part aggregated on its own.
+	 */
+	private void aggregate(Path file, long records, int shift, GroupHandler handler) throws IOException {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < MAX_CAPACITY && capacity - (capacity >>> 2) < records) {
+			capacity *= 2;
+		}
+		long bytes = capacity * RECORD_SIZE * 8L;
+		boolean fits = capacity - (capacity >>> 2) >= records && budget.reserve(bytes);
+		// parts as small as the initial table are not split, whatever the budget
+		if (!fits && records > INITIAL_CAPACITY - (INITIAL_CAPACITY >>> 2) && shift + PARTITION_BITS <= 64 - PARTITION_BITS) {
+			split(file, shift, handler);
+			return;
+		}
+		Table table = new Table(capacity, fits ? bytes : 0);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+			long[] record = new long[RECORD_SIZE];
+			while (read(in, record)) {
+				if (table.isFull()) {
+					table.grow(true);
+				}
+				table.merge(record[0], Double.longBitsToDouble(record[1]), record[2], record[3], record[4], record[5]);
+			}
+			table.forEach(handler);
+		} finally {
+			table.release();
+		}
+	}
+
+	private void split(Path file, int shift, GroupHandler handler) throws IOException {
+		int parts = 1 << PARTITION_BITS;
+		Path[] files = new Path[parts];
+		long[] records = new long[parts];
+		DataOutputStream[] outs = new DataOutputStream[parts];
+		try {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+				long[] record = new long[RECORD_SIZE];
+				while (read(in, record)) {
+					int part = (int) (record[0] >>> (64 - shift - PARTITION_BITS)) & (parts - 1);
+					if (outs[part] == null) {
+						files[part] = Files.createTempFile(directory(), "groups", ".bin");
+						outs[part] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[part]), BUFFER_SIZE));
+					}
+					for (long value : record) {
+						outs[part].writeLong(value);
+					}
+					records[part]++;
+				}
+			}
+			for (int i = 0; i < parts; i++) {
+				if (outs[i] != null) {
+					outs[i].close();
+					outs[i] = null;
+					aggregate(files[i], records[i], shift + PARTITION_BITS, handler);
+				}
+			}
+		} finally {
+			for (int i = 0; i < parts; i++) {
+				if (outs[i] != null) {
+					outs[i].close();
+				}
+				if (files[i] != null) {
+					Files.deleteIfExists(files[i]);
+				}
+			}
+		}
+	}
+
+	private static boolean read(DataInputStream in, long[] record) throws IOException {
+		try {
+			record[0] = in.readLong();
+		} catch (EOFException e) {
+			return false;
+		}
+		for (int i = 1; i < record.length; i++) {
+			record[i] = in.readLong();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the table memory to the budget and deletes the spill files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (stripe.table != null) {
+					stripe.table.release();
+					stripe.table = null;
+				}
+				if (stripe.out != null) {
+					stripe.out.close();
+					stripe.out = null;
+				}
+				if (stripe.spill != null) {
+					Files.deleteIfExists(stripe.spill);
+				}
+			}
+		}
+		if (directory != null) {
+			Files.deleteIfExists(directory);
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Set of identifiers stored as {@link Fingerprint}s in open addressing tables
+ * held in direct buffers, 8 to 16 bytes per identifier outside the Java heap.
+ * The set is split into stripes by the high bits of the fingerprint; each
+ * stripe grows on its own and is locked only while adding, so parallel chunks
+ * of a file can fill it concurrently. Lookups do not lock and must only run
+ * once all adds are done.
+ *
+ * The tables take their memory from a {@link MemoryBudget}. Once a stripe can
+ * not grow within the budget the whole index spills: every stripe moves its
+ * fingerprints into sorted run files, and {@link #seal()} merges those into a
+ * single sorted file of distinct fingerprints. The buffers collecting the
+ * runs are taken from the budget as well, halved while it is short down to a
+ * small minimum. A spilled index can not answer
+ * {@link #contains(long)}; references to it are checked by a merge-join with
+ * {@link DeferredReferences} instead.
+ *
+ * Two different identifiers with the same 64 bit fingerprint are treated as
+ * equal. With 100M identifiers the chance of that is about 1 in 3000 per
+ * snapshot, and it can only hide a missing reference, never report a wrong one.
+ */
+public class IdIndex implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int STRIPE_BITS = 8;
+	private static final int INITIAL_CAPACITY = 1024;
+	// a direct buffer holds at most 2GB
+	private static final int MAX_CAPACITY = 1 << 27;
+	// pending runs of all stripes together take at most half of the budget
+	private static final int MIN_PENDING = 1024;
+	private static final int MAX_PENDING = 1 << 22;
+
+	private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+	private final MemoryBudget budget;
+	private final Path spillDirectory;
+	private final int pendingSize;
+
+	private volatile boolean spilled;
+	private Path directory;
+	private final ConcurrentLinkedQueue<Path> runs = new ConcurrentLinkedQueue<Path>();
+	private Path sortedIds;
+	private long sortedSize;
+
+	private final class Stripe {
+		LongBuffer table;
+		int capacity;
+		int size;
+		long[] pending;
+		int pendingCount;
+		long pendingReserved;
+
+		synchronized boolean add(long fingerprint) {
+			if (spilled) {
+				append(fingerprint);
+				return true;
+			}
+			if (table == null) {
+				if (!budget.reserve(INITIAL_CAPACITY * 8L)) {
+					spilled = true;
+					append(fingerprint);
+					return true;
+				}
+				table = allocate(INITIAL_CAPACITY);
+				capacity = INITIAL_CAPACITY;
+			}
+			if (size + 1 > capacity - (capacity >>> 2)) {
+				if (capacity == MAX_CAPACITY || !budget.reserve(capacity * 2L * 8)) {
+					spilled = true;
+					append(fingerprint);
+					return true;
+				}
+				grow();
+			}
+			if (insert(table, capacity, fingerprint)) {
+				size++;
+				return true;
+			}
+			return false;
+		}
+
+		boolean contains(long fingerprint) {
+			LongBuffer t = table;
+			if (t == null) {
+				return false;
+			}
+			int mask = capacity - 1;
+			int slot = (int) fingerprint & mask;
+			while (true) {
+				long value = t.get(slot);
+				if (value == fingerprint)
+					return true;
+				if (value == 0)
+					return false;
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private void grow() {
+			int larger = capacity * 2;
+			LongBuffer t = allocate(larger);
+			for (int i = 0; i < capacity; i++) {
+				long value = table.get(i);
+				if (value != 0) {
+					insert(t, larger, value);
+				}
+			}
+			budget.release(capacity * 8L);
+			table = t;
+			capacity = larger;
+		}
+
+		private void append(long fingerprint) {
+			if (pending == null) {
+				moveTable();
+			}
+			appendPending(fingerprint);
+		}
+
+		/**
+		 * Moves the fingerprints of the table into runs and frees it.
+		 */
+		private void moveTable() {
+			// the memory of the table goes to the pending run first
+			if (table != null) {
+				budget.release(capacity * 8L);
+			}
+			pending = new long[reservePending()];
+			if (table != null) {
+				for (int i = 0; i < capacity; i++) {
+					long value = table.get(i);
+					if (value != 0) {
+						appendPending(value);
+					}
+				}
+				table = null;
+				size = 0;
+			}
+		}
+
+		/**
+		 * The length of the pending run the budget allows.
+		 */
+		private int reservePending() {
+			for (int length = pendingSize; length > MIN_PENDING; length /= 2) {
+				if (budget.reserve(length * 8L)) {
+					pendingReserved = length * 8L;
+					return length;
+				}
+			}
+			// a stripe needs a run even if the budget is spent
+			pendingReserved = budget.reserve(MIN_PENDING * 8L) ? MIN_PENDING * 8L : 0;
+			return MIN_PENDING;
+		}
+
+		void releasePending() {
+			pending = null;
+			budget.release(pendingReserved);
+			pendingReserved = 0;
+		}
+
+		private void appendPending(long fingerprint) {
+			pending[pendingCount++] = fingerprint;
+			if (pendingCount == pending.length) {
+				writePending();
+			}
+		}
+
+		private void writePending() {
+			if (pendingCount > 0) {
+				try {
+					runs.add(LongRecordRuns.writeRun(directory(), pending, pendingCount, 1));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				pendingCount = 0;
+			}
+		}
+	}
+
+	public IdIndex() {
+		this(new MemoryBudget(Long.MAX_VALUE), null);
+	}
+
+	/**
+	 * @param spillDirectory where run files are created, the default temporary
+	 *                       directory if null
+	 */
+	public IdIndex(MemoryBudget budget, Path spillDirectory) {
+		this.budget = budget;
+		this.spillDirectory = spillDirectory;
+		this.pendingSize = (int) Math.max(MIN_PENDING, Math.min(MAX_PENDING, budget.getLimit() / 16 / stripes.length));
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private static LongBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+
+	private static boolean insert(LongBuffer t, int capacity, long fingerprint) {
+		int mask = capacity - 1;
+		int slot = (int) fingerprint & mask;
+		while (true) {
+			long value = t.get(slot);
+			if (value == fingerprint)
+				return false;
+			if (value == 0) {
+				t.put(slot, fingerprint);
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private synchronized Path directory() throws IOException {
+		if (directory == null) {
+			directory = spillDirectory == null ? Files.createTempDirectory("bwarm-ids") : Files.createTempDirectory(spillDirectory, "bwarm-ids");
+			LOGGER.info("Identifier index exceeds memory budget of {} bytes, spilling to {}", budget.getLimit(), directory);
+		}
+		return directory;
+	}
+
+	private Stripe stripe(long fingerprint) {
+		return stripes[(int) (fingerprint >>> (64 - STRIPE_BITS))];
+	}
+
+	/**
+	 * Returns false if the fingerprint was already present. Once spilled, always
+	 * returns true.
+	 */
+	public boolean add(long fingerprint) {
+		return stripe(fingerprint).add(fingerprint);
+	}
+
+	public boolean add(ByteBuffer buffer, int start, int end) {
+		return add(Fingerprint.of(buffer, start, end));
+	}
+
+	public boolean contains(long fingerprint) {
+		if (spilled) {
+			throw new IllegalStateException("Spilled index can only be joined");
+		}
+		return stripe(fingerprint).contains(fingerprint);
+	}
+
+	public boolean contains(ByteBuffer buffer, int start, int end) {
+		return contains(Fingerprint.of(buffer, start, end));
+	}
+
+	public boolean isSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Ends the adds. A spilled index merges its runs into the file returned by
+	 * {@link #getSortedIds()}.
+	 */
+	public synchronized void seal() throws IOException {
+		if (!spilled || sortedIds != null) {
+			return;
+		}
+		try {
+			for (Stripe stripe : stripes) {
+				synchronized (stripe) {
+					if (stripe.pending == null && stripe.table != null) {
+						stripe.moveTable();
+					}
+					if (stripe.pending != null) {
+						stripe.writePending();
+						stripe.releasePending();
+					}
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		List<Path> sorted = new ArrayList<Path>(runs);
+		Path ids = Files.createTempFile(directory(), "ids", ".bin");
+		long count = 0;
+		try (LongRecordRuns.Merger merger = new LongRecordRuns.Merger(sorted, 1, budget);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(ids), 64 * 1024))) {
+			long previous = 0;
+			while (merger.next()) {
+				long value = merger.record()[0];
+				if (count == 0 || value != previous) {
+					out.writeLong(value);
+					previous = value;
+					count++;
+				}
+			}
+		}
+		for (Path run : sorted) {
+			Files.delete(run);
+		}
+		runs.clear();
+		sortedIds = ids;
+		sortedSize = count;
+		LOGGER.debug("Merged {} runs into {} identifiers", sorted.size(), count);
+	}
+
+	/**
+	 * Distinct fingerprints in ascending signed order, only for a sealed spilled
+	 * index.
+	 */
+	public Path getSortedIds() {
+		return sortedIds;
+	}
+
+	public long size() {
+		if (sortedIds != null) {
+			return sortedSize;
+		}
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the table memory to the budget and deletes the spill files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (stripe.table != null) {
+					budget.release(stripe.capacity * 8L);
+					stripe.table = null;
+				}
+				stripe.releasePending();
+			}
+		}
+		if (directory != null) {
+			for (Path run : runs) {
+				Files.deleteIfExists(run);
+			}
+			if (sortedIds != null) {
+				Files.deleteIfExists(sortedIds);
+			}
+			Files.deleteIfExists(directory);
+		}
+	}
+}
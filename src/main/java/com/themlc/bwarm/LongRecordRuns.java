@@ -0,0 +1,233 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted run files of fixed size records made of longs, ordered by their
+ * first long. Used when identifier sets do not fit in the memory budget: the
+ * records are sorted in memory batches, written as runs and read back with a
+ * k-way merge. At most {@link #MAX_FAN_IN} runs are read at once; more are
+ * first merged in passes into fewer, longer runs.
+ */
+public final class LongRecordRuns {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+	static final int MAX_FAN_IN = 64;
+
+	private LongRecordRuns() {
+	}
+
+	/**
+	 * Sorts the first <code>records</code> records of <code>data</code> by
+	 * their first long and writes them to a new file in <code>directory</code>.
+	 */
+	public static Path writeRun(Path directory, long[] data, int records, int recordSize) throws IOException {
+		sort(data, records, recordSize);
+		Path run = Files.createTempFile(directory, "run", ".bin");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+			for (int i = 0; i < records * recordSize; i++) {
+				out.writeLong(data[i]);
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Sorts the first <code>records</code> records of <code>data</code> in place
+	 * by their first long.
+	 */
+	static void sort(long[] data, int records, int recordSize) {
+		sort(data, 0, records - 1, recordSize);
+	}
+
+	private static void sort(long[] data, int low, int high, int recordSize) {
+		while (high - low > 16) {
+			long pivot = data[((low + high) >>> 1) * recordSize];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (data[i * recordSize] < pivot)
+					i++;
+				while (data[j * recordSize] > pivot)
+					j--;
+				if (i <= j) {
+					swap(data, i++, j--, recordSize);
+				}
+			}
+			// recurse into the smaller half to bound the stack depth
+			if (j - low < high - i) {
+				sort(data, low, j, recordSize);
+				low = i;
+			} else {
+				sort(data, i, high, recordSize);
+				high = j;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			for (int j = i; j > low && data[(j - 1) * recordSize] > data[j * recordSize]; j--) {
+				swap(data, j, j - 1, recordSize);
+			}
+		}
+	}
+
+	private static void swap(long[] data, int a, int b, int recordSize) {
+		int x = a * recordSize;
+		int y = b * recordSize;
+		for (int k = 0; k < recordSize; k++) {
+			long t = data[x + k];
+			data[x + k] = data[y + k];
+			data[y + k] = t;
+		}
+	}
+
+	/**
+	 * Iterates the records of several runs in order. The read buffers are
+	 * taken from the budget, halved while it is short down to a small minimum.
+	 * Runs beyond {@link #MAX_FAN_IN} are merged in passes into temporary runs
+	 * next to the first one, which are deleted again on close.
+	 */
+	public static final class Merger implements Closeable {
+
+		private final int recordSize;
+		private final MemoryBudget budget;
+		private final PriorityQueue<Reader> queue = new PriorityQueue<Reader>((a, b) -> Long.compare(a.record[0], b.record[0]));
+		private final List<Reader> readers = new ArrayList<Reader>();
+		private final List<Path> merged = new ArrayList<Path>();
+		private final long[] record;
+		private long reserved;
+
+		public Merger(List<Path> runs, int recordSize, MemoryBudget budget) throws IOException {
+			this.recordSize = recordSize;
+			this.budget = budget;
+			this.record = new long[recordSize];
+			try {
+				List<Path> level = runs;
+				while (level.size() > MAX_FAN_IN) {
+					level = mergePass(level);
+				}
+				int bufferSize = reserveBuffers(level.size());
+				for (Path run : level) {
+					Reader reader = new Reader(run, recordSize, bufferSize);
+					readers.add(reader);
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Merges groups of {@link #MAX_FAN_IN} runs into one run each.
+		 */
+		private List<Path> mergePass(List<Path> runs) throws IOException {
+			List<Path> next = new ArrayList<Path>();
+			for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+				List<Path> group = runs.subList(from, Math.min(runs.size(), from + MAX_FAN_IN));
+				Path run = Files.createTempFile(group.get(0).getParent(), "run", ".bin");
+				merged.add(run);
+				next.add(run);
+				try (Merger merger = new Merger(group, recordSize, budget);
+						DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+					while (merger.next()) {
+						for (long value : merger.record()) {
+							out.writeLong(value);
+						}
+					}
+				}
+				// runs of an earlier pass are not needed any more
+				for (Path done : group) {
+					if (merged.remove(done)) {
+						Files.delete(done);
+					}
+				}
+			}
+			return next;
+		}
+
+		private int reserveBuffers(int count) {
+			for (int size = BUFFER_SIZE; size > MIN_BUFFER_SIZE; size /= 2) {
+				if (budget.reserve((long) count * size)) {
+					reserved = (long) count * size;
+					return size;
+				}
+			}
+			// a merge needs its readers even if the budget is spent
+			reserved = budget.reserve((long) count * MIN_BUFFER_SIZE) ? (long) count * MIN_BUFFER_SIZE : 0;
+			return MIN_BUFFER_SIZE;
+		}
+
+		/**
+		 * Moves to the next record, returns false at the end of all runs.
+		 */
+		public boolean next() throws IOException {
+			Reader reader = queue.poll();
+			if (reader == null) {
+				return false;
+			}
+			System.arraycopy(reader.record, 0, record, 0, recordSize);
+			if (reader.next()) {
+				queue.add(reader);
+			}
+			return true;
+		}
+
+		public long[] record() {
+			return record;
+		}
+
+		/**
+		 * Closes the runs, returns the buffers to the budget and deletes the
+		 * runs of the merge passes.
+		 */
+		@Override
+		public void close() throws IOException {
+			for (Reader reader : readers) {
+				reader.in.close();
+			}
+			readers.clear();
+			budget.release(reserved);
+			reserved = 0;
+			for (Path run : merged) {
+				Files.deleteIfExists(run);
+			}
+			merged.clear();
+		}
+	}
+
+	private static final class Reader {
+		final DataInputStream in;
+		final long[] record;
+
+		Reader(Path run, int recordSize, int bufferSize) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), bufferSize));
+			record = new long[recordSize];
+		}
+
+		boolean next() throws IOException {
+			try {
+				record[0] = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			for (int i = 1; i < record.length; i++) {
+				record[i] = in.readLong();
+			}
+			return true;
+		}
+	}
+}
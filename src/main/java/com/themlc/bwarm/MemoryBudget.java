@@ -0,0 +1,40 @@
+package com.themlc.bwarm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of bytes the identifier indexes of a run may use.
+ */
+public class MemoryBudget {
+
+	private final long limit;
+	private final AtomicLong used = new AtomicLong();
+
+	public MemoryBudget(long limit) {
+		this.limit = limit;
+	}
+
+	public boolean reserve(long bytes) {
+		while (true) {
+			long current = used.get();
+			if (current + bytes > limit) {
+				return false;
+			}
+			if (used.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public long getUsed() {
+		return used.get();
+	}
+}
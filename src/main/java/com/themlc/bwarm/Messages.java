@@ -0,0 +1,124 @@
+package com.themlc.bwarm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The messages of the findings of a validator, interned to int codes when the
+ * rules are compiled. A message belongs to one file and is a fixed text, or a
+ * prefix and a suffix around a value of the finding. Findings only carry the
+ * code and the bytes of the value, the text is rendered when they are written.
+ */
+public final class Messages {
+
+	/**
+	 * Stands for the value where findings of one message are counted together.
+	 */
+	static final String ANY_VALUE = "...";
+
+	public static final class Message {
+		private final int code;
+		private final String logType;
+		private final String prefix;
+		private final String suffix;
+		private final boolean hasValue;
+		final byte[] logTypeBytes;
+		final byte[] prefixBytes;
+		final byte[] suffixBytes;
+
+		private Message(int code, String logType, String prefix, String suffix, boolean hasValue) {
+			this.code = code;
+			this.logType = logType;
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.hasValue = hasValue;
+			this.logTypeBytes = logType.getBytes(StandardCharsets.UTF_8);
+			this.prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+			this.suffixBytes = suffix.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getLogType() {
+			return logType;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public String getSuffix() {
+			return suffix;
+		}
+
+		public boolean hasValue() {
+			return hasValue;
+		}
+
+		public String text(String value) {
+			return hasValue ? prefix + value + suffix : prefix;
+		}
+
+		/**
+		 * The text all findings of this message are counted under.
+		 */
+		public String summaryText() {
+			return text(ANY_VALUE);
+		}
+	}
+
+	private final HashMap<String, Message> byKey = new HashMap<String, Message>();
+	// copied on every registration, so codes are looked up without a lock
+	private volatile Message[] table = new Message[0];
+
+	/**
+	 * The code of a fixed text.
+	 */
+	public int register(String logType, String text) {
+		return register(logType, text, "", false);
+	}
+
+	/**
+	 * The code of a text with a value between <code>prefix</code> and
+	 * <code>suffix</code>.
+	 */
+	public int register(String logType, String prefix, String suffix) {
+		return register(logType, prefix, suffix, true);
+	}
+
+	private synchronized int register(String logType, String prefix, String suffix, boolean hasValue) {
+		String key = logType + "\t" + prefix + "\t" + suffix + "\t" + hasValue;
+		Message message = byKey.get(key);
+		if (message == null) {
+			Message[] extended = Arrays.copyOf(table, table.length + 1);
+			message = new Message(table.length, logType, prefix, suffix, hasValue);
+			extended[message.code] = message;
+			byKey.put(key, message);
+			table = extended;
+		}
+		return message.code;
+	}
+
+	public Message get(int code) {
+		return table[code];
+	}
+
+	public int size() {
+		return table.length;
+	}
+
+	/**
+	 * Identifies the messages and their codes, for data that keeps codes
+	 * between runs.
+	 */
+	public long fingerprint() {
+		StringBuilder all = new StringBuilder();
+		for (Message message : table) {
+			all.append(message.logType).append('\t').append(message.prefix).append('\t').append(message.suffix).append('\t').append(message.hasValue).append('\n');
+		}
+		return Fingerprint.of(all.toString());
+	}
+}
@@ -0,0 +1,264 @@
+package com.themlc.bwarm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records of one file that may point to a parent record of the same file, as
+ * {@link Fingerprint}s of their identifiers with a value each. While the file
+ * is read every record and every link to a parent are collected into sorted
+ * runs, like {@link DeferredReferences}. Once the file is done the links,
+ * sorted by parent, are merged with the records, sorted by identifier, which
+ * finds the links to a missing parent and the values over the value of the
+ * parent in one pass.
+ *
+ * A cycle can only go through links whose parent has a parent itself. Only
+ * those are kept in memory, in primitive arrays sorted by child, and walked
+ * iteratively, so every link is visited once. In a hierarchy of two levels
+ * there are none. Beyond the first {@link #BATCH} they take memory from the
+ * budget, if it refuses the cycles are not checked.
+ */
+public class ParentLinks implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	// identifier, value, 1 if it has a parent
+	private static final int RECORD_SIZE = 3;
+	// parent, child, value, offset, line number
+	private static final int LINK_SIZE = 5;
+	// child, parent, offset, line number
+	private static final int INNER_SIZE = 4;
+	private static final int BATCH = 64 * 1024;
+	// an inner link with the child, next link and state findCycles keeps of it
+	private static final long INNER_BYTES = INNER_SIZE * 8 + 8 + 4 + 4;
+	private static final double TOLERANCE = 0.000001;
+
+	private final MemoryBudget budget;
+	private final Path spillDirectory;
+	private final ConcurrentHashMap<Thread, Collector> collectors = new ConcurrentHashMap<Thread, Collector>();
+	private final ConcurrentLinkedQueue<Path> recordRuns = new ConcurrentLinkedQueue<Path>();
+	private final ConcurrentLinkedQueue<Path> linkRuns = new ConcurrentLinkedQueue<Path>();
+	private Path directory;
+	private long reserved;
+
+	public interface LinkHandler {
+		void missingParent(long offset, long lineNumber) throws IOException;
+
+		void overParent(long offset, long lineNumber, double parentValue) throws IOException;
+
+		/**
+		 * Called for every link of a cycle of <code>length</code> links.
+		 */
+		void cycle(long offset, long lineNumber, int length) throws IOException;
+	}
+
+	/**
+	 * The records and links added by one thread.
+	 */
+	private final class Collector {
+		final long[] records = new long[BATCH * RECORD_SIZE];
+		final long[] links = new long[BATCH * LINK_SIZE];
+		int recordCount;
+		int linkCount;
+
+		void flush() throws IOException {
+			if (recordCount > 0) {
+				recordRuns.add(LongRecordRuns.writeRun(directory(), records, recordCount, RECORD_SIZE));
+				recordCount = 0;
+			}
+			if (linkCount > 0) {
+				linkRuns.add(LongRecordRuns.writeRun(directory(), links, linkCount, LINK_SIZE));
+				linkCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param spillDirectory where run files are created, the default temporary
+	 *                       directory if null
+	 */
+	public ParentLinks(MemoryBudget budget, Path spillDirectory) {
+		this.budget = budget;
+		this.spillDirectory = spillDirectory;
+	}
+
+	private synchronized Path directory() throws IOException {
+		if (directory == null) {
+			directory = spillDirectory == null ? Files.createTempDirectory("bwarm-links") : Files.createTempDirectory(spillDirectory, "bwarm-links");
+		}
+		return directory;
+	}
+
+	/**
+	 * Adds a record, with <code>parent</code> 0 if it has none and a NaN value
+	 * if it has no value. Thread safe.
+	 */
+	public void add(long id, long parent, double value, long offset, long lineNumber) {
+		Collector collector = collectors.computeIfAbsent(Thread.currentThread(), t -> new Collector());
+		try {
+			if (id != 0) {
+				int i = collector.recordCount * RECORD_SIZE;
+				collector.records[i] = id;
+				collector.records[i + 1] = Double.doubleToRawLongBits(value);
+				collector.records[i + 2] = parent != 0 ? 1 : 0;
+				if (++collector.recordCount == BATCH) {
+					collector.flush();
+				}
+			}
+			if (parent != 0) {
+				int i = collector.linkCount * LINK_SIZE;
+				collector.links[i] = parent;
+				collector.links[i + 1] = id;
+				collector.links[i + 2] = Double.doubleToRawLongBits(value);
+				collector.links[i + 3] = offset;
+				collector.links[i + 4] = lineNumber;
+				if (++collector.linkCount == BATCH) {
+					collector.flush();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reports the links to a missing parent, the values over the value of
+	 * their parent and the links on a cycle. Must only be called once all adds
+	 * are done.
+	 */
+	public void report(LinkHandler handler) throws IOException {
+		for (Collector collector : collectors.values()) {
+			collector.flush();
+		}
+		collectors.clear();
+		if (linkRuns.isEmpty()) {
+			return;
+		}
+		long[] inner = new long[1024 * INNER_SIZE];
+		int innerCount = 0;
+		try (LongRecordRuns.Merger records = new LongRecordRuns.Merger(new ArrayList<Path>(recordRuns), RECORD_SIZE, budget);
+				LongRecordRuns.Merger links = new LongRecordRuns.Merger(new ArrayList<Path>(linkRuns), LINK_SIZE, budget)) {
+			boolean more = records.next();
+			while (links.next()) {
+				long[] link = links.record();
+				while (more && records.record()[0] < link[0]) {
+					more = records.next();
+				}
+				if (!more || records.record()[0] != link[0]) {
+					handler.missingParent(link[3], link[4]);
+					continue;
+				}
+				long[] parent = records.record();
+				if (Double.longBitsToDouble(link[2]) > Double.longBitsToDouble(parent[1]) + TOLERANCE) {
+					handler.overParent(link[3], link[4], Double.longBitsToDouble(parent[1]));
+				}
+				if (parent[2] != 0 && inner != null) {
+					if ((innerCount + 1) * INNER_SIZE > inner.length) {
+						inner = grow(inner);
+					}
+					if (inner != null) {
+						int i = innerCount++ * INNER_SIZE;
+						inner[i] = link[1];
+						inner[i + 1] = link[0];
+						inner[i + 2] = link[3];
+						inner[i + 3] = link[4];
+					}
+				}
+			}
+		}
+		if (inner == null) {
+			LOGGER.warn("Links to parents with a parent exceed memory budget of {} bytes, cycles are not checked", budget.getLimit());
+			return;
+		}
+		findCycles(inner, innerCount, handler);
+	}
+
+	/**
+	 * Doubles the links kept in memory, beyond {@link #BATCH} links only if the
+	 * budget allows the memory they and their cycle check take, null if not.
+	 */
+	private long[] grow(long[] inner) {
+		int links = inner.length / INNER_SIZE;
+		if (links * 2 > BATCH) {
+			long bytes = (links * 2 - Math.max(links, BATCH)) * INNER_BYTES;
+			if (!budget.reserve(bytes)) {
+				return null;
+			}
+			reserved += bytes;
+		}
+		return Arrays.copyOf(inner, inner.length * 2);
+	}
+
+	private void findCycles(long[] inner, int count, LinkHandler handler) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		LongRecordRuns.sort(inner, count, INNER_SIZE);
+		long[] children = new long[count];
+		for (int i = 0; i < count; i++) {
+			children[i] = inner[i * INNER_SIZE];
+		}
+		// the link of the parent of each link, -1 where the chain leaves the inner links
+		int[] next = new int[count];
+		for (int i = 0; i < count; i++) {
+			int found = Arrays.binarySearch(children, inner[i * INNER_SIZE + 1]);
+			next[i] = found >= 0 ? found : -1;
+		}
+		// 0 not visited, -1 done, otherwise the walk that is visiting it
+		int[] state = new int[count];
+		for (int start = 0; start < count; start++) {
+			if (state[start] != 0) {
+				continue;
+			}
+			int walk = start + 1;
+			int i = start;
+			while (i != -1 && state[i] == 0) {
+				state[i] = walk;
+				i = next[i];
+			}
+			if (i != -1 && state[i] == walk) {
+				int length = 0;
+				int j = i;
+				do {
+					length++;
+					j = next[j];
+				} while (j != i);
+				do {
+					handler.cycle(inner[j * INNER_SIZE + 2], inner[j * INNER_SIZE + 3], length);
+					j = next[j];
+				} while (j != i);
+			}
+			for (i = start; i != -1 && state[i] == walk; i = next[i]) {
+				state[i] = -1;
+			}
+		}
+	}
+
+	/**
+	 * Returns the memory to the budget and deletes the run files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		budget.release(reserved);
+		reserved = 0;
+		List<Path> runs = new ArrayList<Path>(recordRuns);
+		runs.addAll(linkRuns);
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		if (directory != null) {
+			Files.deleteIfExists(directory);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Error rates of the files of a snapshot estimated from a sample of their
+ * lines. The file is cut into as many equal strata as lines are sampled and
+ * the first line after a random position in each stratum is checked, so a
+ * line is picked with a chance that grows slightly with the length of the line
+ * before it. Rates have 95% Wilson score intervals and are given per file and
+ * message code.
+ *
+ * A file is a GO if its error rate is below <code>maxErrorRate</code> with
+ * 95% confidence, a NO-GO if it is above, and UNDECIDED otherwise.
+ */
+public class SampleEstimate {
+
+	private static final double Z = 1.96;
+
+	public static final String GO = "GO";
+	public static final String NO_GO = "NO-GO";
+	public static final String UNDECIDED = "UNDECIDED";
+
+	private final double maxErrorRate;
+	private final ConcurrentSkipListMap<String, FileSample> files = new ConcurrentSkipListMap<String, FileSample>();
+
+	public SampleEstimate(double maxErrorRate) {
+		this.maxErrorRate = maxErrorRate;
+	}
+
+	/**
+	 * Lines of one file, checked by a single thread.
+	 */
+	final class FileSample {
+		private long size;
+		private long lines;
+		private long bytes;
+		private long erroneous;
+		// codes found on the current line
+		private int[] current = new int[8];
+		private int currentCount;
+		// message code to lines with such an error
+		private final TreeMap<Integer, long[]> codes = new TreeMap<Integer, long[]>();
+
+		void setSize(long size) {
+			this.size = size;
+		}
+
+		void line(TsvRecord record) {
+			lines++;
+			bytes += record.end(record.fieldCount() - 1) - record.start(0) + 1;
+			currentCount = 0;
+		}
+
+		void finding(int code) {
+			for (int i = 0; i < currentCount; i++) {
+				if (current[i] == code) {
+					return;
+				}
+			}
+			if (currentCount == current.length) {
+				current = Arrays.copyOf(current, currentCount * 2);
+			}
+			current[currentCount++] = code;
+			codes.computeIfAbsent(code, k -> new long[1])[0]++;
+		}
+
+		void endLine() {
+			if (currentCount > 0) {
+				erroneous++;
+			}
+		}
+
+		long estimateLines() {
+			return bytes == 0 ? 0 : Math.round((double) size * lines / bytes);
+		}
+
+		String decision() {
+			double[] interval = interval(erroneous, lines);
+			if (interval[1] < maxErrorRate) {
+				return GO;
+			}
+			return interval[0] > maxErrorRate ? NO_GO : UNDECIDED;
+		}
+	}
+
+	FileSample file(String logType) {
+		return files.computeIfAbsent(logType, k -> new FileSample());
+	}
+
+	/**
+	 * One random position in each of <code>count</code> equal strata of
+	 * <code>size</code> bytes, fewer for small files.
+	 */
+	static long[] positions(long size, long count, Random random) {
+		int n = (int) Math.max(0, Math.min(count, size));
+		long[] positions = new long[n];
+		for (int i = 0; i < n; i++) {
+			long start = size * i / n;
+			long end = size * (i + 1) / n;
+			positions[i] = start + (long) (random.nextDouble() * (end - start));
+		}
+		return positions;
+	}
+
+	/**
+	 * Lower and upper bound of the 95% Wilson score interval of
+	 * <code>k</code> successes in <code>n</code> trials.
+	 */
+	static double[] interval(long k, long n) {
+		if (n == 0) {
+			return new double[] { 0, 1 };
+		}
+		double p = (double) k / n;
+		double z2 = Z * Z / n;
+		double center = (p + z2 / 2) / (1 + z2);
+		double half = Z / (1 + z2) * Math.sqrt(p * (1 - p) / n + z2 / (4 * n));
+		return new double[] { Math.max(0, center - half), Math.min(1, center + half) };
+	}
+
+	/**
+	 * NO-GO if any file is, GO if all files are.
+	 */
+	public String decision() {
+		boolean go = true;
+		for (FileSample file : files.values()) {
+			String decision = file.decision();
+			if (decision.equals(NO_GO)) {
+				return NO_GO;
+			}
+			go &= decision.equals(GO);
+		}
+		return go ? GO : UNDECIDED;
+	}
+
+	public void write(Path location, String snapshot, Messages messages) throws IOException {
+		try (Writer out = Files.newBufferedWriter(location, StandardCharsets.UTF_8)) {
+			out.write("Snapshot\tFile\tError Message\tSampled Lines\tLines With Error\tError Rate %\tLow %\tHigh %\tEstimated Lines With Error\tDecision\n");
+			for (Map.Entry<String, FileSample> entry : files.entrySet()) {
+				FileSample file = entry.getValue();
+				write(out, snapshot, entry.getKey(), "All", file.erroneous, file, file.decision());
+				for (Map.Entry<Integer, long[]> code : file.codes.entrySet()) {
+					write(out, snapshot, entry.getKey(), messages.get(code.getKey()).summaryText(), code.getValue()[0], file, "");
+				}
+			}
+		}
+	}
+
+	private static void write(Writer out, String snapshot, String logType, String msg, long count, FileSample file, String decision) throws IOException {
+		double[] interval = interval(count, file.lines);
+		double rate = file.lines == 0 ? 0 : (double) count / file.lines;
+		out.write(String.format(Locale.ROOT, "%s\t%s\t%s\t%d\t%d\t%.3f\t%.3f\t%.3f\t%d\t%s\n", snapshot, logType, msg, file.lines, count, rate * 100, interval[0] * 100, interval[1] * 100,
+				Math.round(rate * file.estimateLines()), decision));
+	}
+}
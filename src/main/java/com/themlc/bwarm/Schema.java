@@ -0,0 +1,108 @@
+package com.themlc.bwarm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of the field descriptors of one BWARM file.
+ */
+public final class Schema {
+
+	private final String fileName;
+	private final String logType;
+	private final String[][] descriptors;
+	private final ColumnValidator[] columns;
+	private final Messages messages;
+	private final int fieldCountCode;
+	private final int duplicateCode;
+	private final List<ForeignKey> references = new ArrayList<ForeignKey>();
+	private boolean referenced;
+
+	private Schema(String fileName, String logType, String[][] descriptors, ColumnValidator[] columns, Messages messages) {
+		this.fileName = fileName;
+		this.logType = logType;
+		this.descriptors = descriptors;
+		this.columns = columns;
+		this.messages = messages;
+		this.fieldCountCode = messages.register(logType, "Incorrect Number of records: expected " + columns.length + " found ", "");
+		this.duplicateCode = messages.register(logType, "Duplicate " + columns[0].getName() + ", first on line ", "");
+	}
+
+	/**
+	 * Compiles the descriptors and registers the messages of their checks.
+	 */
+	public static Schema compile(String fileName, String logType, String[][] descriptors, Map<String, AVSHelper> avsSets, Messages messages) {
+		ColumnValidator[] columns = new ColumnValidator[descriptors.length];
+		for (int i = 0; i < descriptors.length; i++) {
+			columns[i] = ColumnValidator.compile(i, descriptors[i], avsSets, logType, messages);
+		}
+		return new Schema(fileName, logType, descriptors, columns, messages);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getLogType() {
+		return logType;
+	}
+
+	public String[][] getDescriptors() {
+		return descriptors;
+	}
+
+	public ColumnValidator[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Declares that the values of <code>column</code> must exist as primary
+	 * key (column 0) of <code>parent</code>.
+	 */
+	public void addReference(String column, Schema parent) {
+		for (ColumnValidator validator : columns) {
+			if (validator.getName().equals(column)) {
+				references.add(new ForeignKey(validator.getIndex(), column, parent, messages.register(logType, "Referenced " + column + " not found in " + parent.getLogType() + " '", "'")));
+				parent.referenced = true;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Unknown field " + column + " in " + logType);
+	}
+
+	public List<ForeignKey> getReferences() {
+		return references;
+	}
+
+	/**
+	 * True if another file refers to the primary keys of this one.
+	 */
+	public boolean isReferenced() {
+		return referenced;
+	}
+
+	/**
+	 * The code of the message for a line with another number of fields, the
+	 * value is the number found.
+	 */
+	public int getFieldCountCode() {
+		return fieldCountCode;
+	}
+
+	/**
+	 * The code of the message for a duplicate primary key, the value is the
+	 * line of its first occurrence.
+	 */
+	public int getDuplicateCode() {
+		return duplicateCode;
+	}
+
+	public int size() {
+		return columns.length;
+	}
+
+	public String fieldName(int index) {
+		return columns[index].getName();
+	}
+}
@@ -0,0 +1,397 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a synthetic BWARM snapshot for load tests. The rows follow the
+ * schemas of {@link BWARMValidator}: every column gets a value of its type,
+ * AVS columns pick from the Allowed Value Sets ('|' separated lists for multi
+ * value columns) and references only point at identifiers of the parent file.
+ * A share of the rows, the error rate, gets one error: a missing mandatory
+ * field, an invalid value, a dangling reference, a missing field or a second
+ * line with the same identifier.
+ *
+ * File sizes are ratios of the number of works. Each file is written by its
+ * own task from its own random generator split off the seed, so the output
+ * only depends on the seed, the size and the error rate.
+ */
+public class SnapshotGenerator {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	// rows per work
+	private static final String[][] Sizes = {
+			{ "works", "1" },
+			{ "workalternativetitles", "0.5" },
+			{ "workidentifiers", "1" },
+			{ "parties", "0.25" },
+			{ "workrightshares", "4" },
+			{ "recordings", "2" },
+			{ "recordingalternativetitles", "0.5" },
+			{ "recordingidentifiers", "2" },
+			{ "releases", "0.5" },
+			{ "releaseidentifiers", "0.5" },
+			{ "worksrecordings", "2" },
+			{ "unclaimedworkrightshares", "0.25" }
+	};
+
+	// references within a file, left empty as the rows are not generated as a hierarchy
+	private static final String[] EMPTY_COLUMNS = { "FeedProvidersParentWorkRightShareId" };
+
+	private static final String[] INVALID_BOOLEANS = { "yes", "1", "TRUE " };
+	private static final String[] INVALID_NUMBERS = { "12,5", "1e", "--3" };
+	private static final String[] INVALID_DURATIONS = { "3 min", "PT3M", "P1D" };
+	private static final String[] INVALID_DATES = { "31/01/2020", "2020-13-01", "20200131" };
+
+	private final BWARMValidator validator;
+	private long works = 10000;
+	private double errorRate;
+	private long seed = 1;
+
+	/**
+	 * Columns of a file grouped by what an error can be injected into.
+	 */
+	private static final class FilePlan {
+		final Schema schema;
+		final long rows;
+		final long[] parentRows;
+		final int[] mandatory;
+		final int[] typed;
+
+		FilePlan(Schema schema, long rows, long[] parentRows) {
+			this.schema = schema;
+			this.rows = rows;
+			this.parentRows = parentRows;
+			ArrayList<Integer> m = new ArrayList<Integer>();
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			for (ColumnValidator column : schema.getColumns()) {
+				if (column.getIndex() > 0 && column.isMandatory()) {
+					m.add(column.getIndex());
+				}
+				if (column.getType() != ColumnValidator.STRING) {
+					t.add(column.getIndex());
+				}
+			}
+			mandatory = toArray(m);
+			typed = toArray(t);
+		}
+
+		private static int[] toArray(List<Integer> values) {
+			int[] array = new int[values.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = values.get(i);
+			}
+			return array;
+		}
+	}
+
+	public SnapshotGenerator(BWARMValidator validator) {
+		this.validator = validator;
+	}
+
+	public SnapshotGenerator setWorks(long works) {
+		this.works = works;
+		return this;
+	}
+
+	public SnapshotGenerator setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	public SnapshotGenerator setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Number of rows written for a file type.
+	 */
+	public long rows(String logType) {
+		for (String[] size : Sizes) {
+			if (size[0].equals(logType)) {
+				return Math.max(1, (long) (works * Double.parseDouble(size[1])));
+			}
+		}
+		throw new IllegalArgumentException("Unknown file " + logType);
+	}
+
+	public long totalRows() {
+		long rows = 0;
+		for (String[] size : Sizes) {
+			rows += rows(size[0]);
+		}
+		return rows;
+	}
+
+	private FilePlan plan(String logType) {
+		Schema schema = validator.getSchema(logType);
+		List<ForeignKey> references = schema.getReferences();
+		long[] parentRows = new long[references.size()];
+		for (int i = 0; i < parentRows.length; i++) {
+			parentRows[i] = rows(references.get(i).getParent().getLogType());
+		}
+		return new FilePlan(schema, rows(logType), parentRows);
+	}
+
+	/**
+	 * Writes all files into <code>directory</code>, one task per file.
+	 */
+	public void generate(Path directory, ForkJoinPool pool) throws IOException {
+		Files.createDirectories(directory);
+		SplittableRandom random = new SplittableRandom(seed);
+		CompletableFuture<?>[] tasks = new CompletableFuture<?>[Sizes.length];
+		for (int i = 0; i < Sizes.length; i++) {
+			FilePlan plan = plan(Sizes[i][0]);
+			SplittableRandom fileRandom = random.split();
+			Path file = directory.resolve(plan.schema.getFileName());
+			tasks[i] = CompletableFuture.runAsync(() ->
+				{
+					try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+						write(plan, fileRandom, out);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					LOGGER.debug("Wrote {} rows to {}", plan.rows, file);
+				}, pool);
+		}
+		try {
+			CompletableFuture.allOf(tasks).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void write(FilePlan plan, SplittableRandom random, Writer out) throws IOException {
+		StringBuilder row = new StringBuilder(1024);
+		for (long n = 0; n < plan.rows; n++) {
+			row.setLength(0);
+			appendRow(row, plan, n, random);
+			row.append('\n');
+			out.append(row);
+		}
+	}
+
+	/**
+	 * Rows of a single file type, for benchmarks that need records without a
+	 * snapshot on disk.
+	 */
+	void appendRows(StringBuilder out, String logType, long rows, SplittableRandom random) {
+		FilePlan plan = plan(logType);
+		for (long n = 0; n < rows; n++) {
+			appendRow(out, plan, n, random);
+			out.append('\n');
+		}
+	}
+
+	private void appendRow(StringBuilder out, FilePlan plan, long n, SplittableRandom random) {
+		ColumnValidator[] columns = plan.schema.getColumns();
+		List<ForeignKey> references = plan.schema.getReferences();
+
+		int fields = columns.length;
+		int broken = -1;
+		int error = -1;
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			error = random.nextInt(5);
+			if (error == 0 && plan.mandatory.length > 0) {
+				broken = plan.mandatory[random.nextInt(plan.mandatory.length)];
+			} else if (error == 1 && !references.isEmpty()) {
+				broken = references.get(random.nextInt(references.size())).getColumn();
+			} else if (error == 3) {
+				fields--;
+			} else if (error != 4) {
+				error = 2;
+				broken = plan.typed.length > 0 ? plan.typed[random.nextInt(plan.typed.length)] : (plan.mandatory.length > 0 ? plan.mandatory[0] : 0);
+			}
+		}
+
+		int start = out.length();
+		for (int i = 0; i < fields; i++) {
+			if (i > 0) {
+				out.append('\t');
+			}
+			if (i == 0) {
+				out.append(plan.schema.getLogType()).append('-').append(n);
+			} else if (i == broken) {
+				if (error == 0) {
+					// left empty
+				} else if (error == 1) {
+					out.append("missing-").append(n);
+				} else {
+					out.append(invalid(columns[i], random));
+				}
+			} else {
+				int reference = reference(references, i);
+				if (reference >= 0) {
+					out.append(references.get(reference).getParent().getLogType()).append('-').append(random.nextLong(plan.parentRows[reference]));
+				} else if (isEmptyColumn(columns[i])) {
+					// left empty
+				} else {
+					appendValue(out, columns[i], random);
+				}
+			}
+		}
+		if (error == 4) {
+			// a second line with the same identifier, so no reference dangles
+			String line = out.substring(start);
+			out.append('\n').append(line);
+		}
+	}
+
+	private static boolean isEmptyColumn(ColumnValidator column) {
+		for (String name : EMPTY_COLUMNS) {
+			if (column.getName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int reference(List<ForeignKey> references, int column) {
+		for (int i = 0; i < references.size(); i++) {
+			if (references.get(i).getColumn() == column) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void appendValue(StringBuilder out, ColumnValidator column, SplittableRandom random) {
+		switch (column.getType()) {
+		case ColumnValidator.BOOLEAN:
+			out.append(random.nextBoolean() ? "true" : "false");
+			break;
+		case ColumnValidator.NUMBER:
+			out.append(random.nextInt(100)).append('.').append(random.nextInt(100));
+			break;
+		case ColumnValidator.DURATION:
+			out.append("PT").append(30 + random.nextInt(600)).append('S');
+			break;
+		case ColumnValidator.DATE:
+			// end dates after all start dates
+			out.append((column.getName().contains("End") ? 2030 : 2000) + random.nextInt(20)).append('-');
+			appendTwoDigits(out, 1 + random.nextInt(12));
+			out.append('-');
+			appendTwoDigits(out, 1 + random.nextInt(28));
+			break;
+		case ColumnValidator.AVS:
+			List<String> values = column.getAVS().getValues();
+			int count = column.isMultiValue() ? 1 + random.nextInt(3) : 1;
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					out.append('|');
+				}
+				out.append(values.get(random.nextInt(values.size())));
+			}
+			break;
+		default:
+			out.append(column.getName().trim()).append(' ').append(random.nextInt(1000000));
+		}
+	}
+
+	private static void appendTwoDigits(StringBuilder out, int value) {
+		out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+	}
+
+	private static String invalid(ColumnValidator column, SplittableRandom random) {
+		switch (column.getType()) {
+		case ColumnValidator.BOOLEAN:
+			return INVALID_BOOLEANS[random.nextInt(INVALID_BOOLEANS.length)];
+		case ColumnValidator.NUMBER:
+			return INVALID_NUMBERS[random.nextInt(INVALID_NUMBERS.length)];
+		case ColumnValidator.DURATION:
+			return INVALID_DURATIONS[random.nextInt(INVALID_DURATIONS.length)];
+		case ColumnValidator.DATE:
+			return INVALID_DATES[random.nextInt(INVALID_DATES.length)];
+		case ColumnValidator.AVS:
+			return "Unknown" + random.nextInt(10);
+		default:
+			return "";
+		}
+	}
+
+	private static CommandLine parseCommandLine(String[] args) throws ParseException {
+		Options options = new Options();
+		options.addOption(Option.builder("d").required(true).longOpt("snapshot-directory").desc("BWARM Snapshot Base Folder").hasArg().build());
+		options.addOption(Option.builder("s").required(true).longOpt("snapshot").desc("Snapshot Reference").hasArg().build());
+		options.addOption(Option.builder("n").required(false).longOpt("works").desc("Number of works, the other files are sized relative to it, defaults to 10000").hasArg().build());
+		options.addOption(Option.builder("e").required(false).longOpt("error-rate").desc("Share of rows with an error, defaults to 0").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("seed").desc("Random seed, defaults to 1").hasArg().build());
+		options.addOption(Option.builder("t").required(false).longOpt("threads").desc("Number of writer threads, defaults to the number of processors").hasArg().build());
+
+		CommandLineParser parser = new DefaultParser();
+		try {
+			return parser.parse(options, args);
+		} catch (ParseException e) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("SnapshotGenerator", options);
+			throw e;
+		}
+	}
+
+	public static void main(String a[]) {
+		try {
+			CommandLine cmd = parseCommandLine(a);
+
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads")) {
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			BWARMValidator validator = new BWARMValidator(cmd.getOptionValue("snapshot-directory"), 1);
+			SnapshotGenerator generator = new SnapshotGenerator(validator);
+			if (cmd.hasOption("works")) {
+				generator.setWorks(Long.parseLong(cmd.getOptionValue("works")));
+			}
+			if (cmd.hasOption("error-rate")) {
+				generator.setErrorRate(Double.parseDouble(cmd.getOptionValue("error-rate")));
+			}
+			if (cmd.hasOption("seed")) {
+				generator.setSeed(Long.parseLong(cmd.getOptionValue("seed")));
+			}
+
+			Path directory = Paths.get(cmd.getOptionValue("snapshot-directory"), cmd.getOptionValue("snapshot"));
+			LOGGER.info("Generating {} rows into {}", generator.totalRows(), directory);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				generator.generate(directory, pool);
+			} finally {
+				pool.shutdown();
+				validator.shutdown();
+			}
+			LOGGER.info("Done");
+
+		} catch (ParseException | IOException e1) {
+			e1.printStackTrace();
+			System.exit(99);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Line aligned byte range of a TSV file. Chunks of compressed files carry
+ * their decompressed bytes; offsets are then positions in the decompressed
+ * content.
+ */
+public class TsvChunk {
+
+	private final Path file;
+	private final long start;
+	private final long end;
+	private long firstLineNumber = 1;
+	private long lineCount = 0;
+	private ByteBuffer data;
+
+	public TsvChunk(Path file, long start, long end) {
+		this.file = file;
+		this.start = start;
+		this.end = end;
+	}
+
+	TsvChunk(Path file, long start, ByteBuffer data) {
+		this(file, start, start + data.remaining());
+		this.data = data;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start;
+	}
+
+	public long getFirstLineNumber() {
+		return firstLineNumber;
+	}
+
+	void setFirstLineNumber(long firstLineNumber) {
+		this.firstLineNumber = firstLineNumber;
+	}
+
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	void setLineCount(long lineCount) {
+		this.lineCount = lineCount;
+	}
+
+	/**
+	 * The bytes of the chunk from position 0, or null if they are read from
+	 * the file.
+	 */
+	ByteBuffer getData() {
+		return data;
+	}
+
+	/**
+	 * Drops the bytes of an in memory chunk once it is processed.
+	 */
+	void release() {
+		data = null;
+	}
+
+	@Override
+	public String toString() {
+		return file.getFileName() + "[" + start + "-" + end + ") lines " + firstLineNumber + "+" + lineCount;
+	}
+}
@@ -0,0 +1,247 @@
+package com.themlc.bwarm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A TSV file of a snapshot, plain or compressed. {@link #open} looks for
+ * <code>works.tsv</code>, then <code>works.tsv.gz</code> and
+ * <code>works.tsv.zst</code> in the snapshot directory, then for an entry
+ * <code>works.tsv</code> in the snapshot archive. Compression is detected from
+ * the first bytes, not the name.
+ */
+public abstract class TsvInput implements Closeable {
+
+	static final int ESTIMATED_LINE_LENGTH = 100;
+
+	private static final int GZIP_MAGIC = 0x1f8b;
+	private static final int ZSTD_MAGIC = 0x28b52ffd;
+
+	public interface OffsetHandler {
+		void record(long offset, TsvRecord record) throws IOException;
+	}
+
+	/**
+	 * @param archive zipped snapshot, may be null
+	 */
+	public static TsvInput open(Path directory, ZipFile archive, String fileName) throws IOException {
+		for (String name : new String[] { fileName, fileName + ".gz", fileName + ".zst" }) {
+			Path file = directory.resolve(name);
+			if (Files.isRegularFile(file)) {
+				CompressedTsvInput.Format format = detect(file);
+				return format == null ? new PlainTsvInput(file) : new CompressedTsvInput(file, format);
+			}
+		}
+		if (archive != null) {
+			Enumeration<? extends ZipEntry> entries = archive.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && (entry.getName().equals(fileName) || entry.getName().endsWith("/" + fileName))) {
+					return new CompressedTsvInput(directory.resolve(fileName), archive, entry);
+				}
+			}
+		}
+		throw new NoSuchFileException(directory.resolve(fileName).toString());
+	}
+
+	private static CompressedTsvInput.Format detect(Path file) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (magic.hasRemaining() && channel.read(magic) > 0) {
+			}
+		}
+		if (magic.position() >= 2 && (magic.getShort(0) & 0xffff) == GZIP_MAGIC) {
+			return CompressedTsvInput.Format.GZIP;
+		}
+		if (magic.position() == 4 && magic.getInt(0) == ZSTD_MAGIC) {
+			return CompressedTsvInput.Format.ZSTD;
+		}
+		return null;
+	}
+
+	/**
+	 * Path of the file, or of the file the archive entry stands for.
+	 */
+	public abstract Path getPath();
+
+	/**
+	 * Finds the chunks if that can be done before reading, called before
+	 * {@link #estimateLines()}.
+	 */
+	public abstract CompletableFuture<Void> prepare(long chunkSize, Executor executor);
+
+	/**
+	 * Size of the content, exact for plain files and estimated for compressed
+	 * ones, can be called before {@link #prepare}.
+	 */
+	public abstract long estimateSize() throws IOException;
+
+	/**
+	 * Number of lines, exact for plain files and estimated for compressed ones.
+	 */
+	public abstract long estimateLines();
+
+	/**
+	 * Runs the task on every line aligned, numbered chunk of the file and
+	 * completes with all chunks once the tasks are done. IO errors complete the
+	 * future with an {@link java.io.UncheckedIOException}.
+	 */
+	public abstract CompletableFuture<List<TsvChunk>> forEachChunk(Executor executor, Consumer<TsvChunk> task);
+
+	/**
+	 * Reads the lines starting at <code>offsets</code>, which must be in
+	 * ascending order.
+	 */
+	public abstract void readRecords(long[] offsets, int count, OffsetHandler handler) throws IOException;
+
+	/**
+	 * Reads the first line starting at or after each of the ascending
+	 * <code>positions</code>, once even if several positions lead to it.
+	 */
+	public abstract void sampleRecords(long[] positions, int count, OffsetHandler handler) throws IOException;
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Reads lines at ascending offsets from a stream of the whole content, or
+	 * with <code>following</code> the first line at or after each offset.
+	 */
+	static void readRecords(InputStream in, long[] offsets, int count, boolean following, OffsetHandler handler) throws IOException {
+		byte[] buffer = new byte[1024 * 1024];
+		byte[] line = new byte[4096];
+		int lineLength = 0;
+		long lineOffset = 0;
+		boolean inLine = false;
+		boolean lineStart = true;
+		long position = 0;
+		int next = 0;
+		int read;
+		while ((next < count || inLine) && (read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read && (next < count || inLine); i++, position++) {
+				byte b = buffer[i];
+				if (!inLine) {
+					boolean start = lineStart;
+					lineStart = b == '\n';
+					if (!start || (following ? offsets[next] > position : offsets[next] != position)) {
+						continue;
+					}
+					while (next < count && offsets[next] <= position) {
+						next++;
+					}
+					inLine = true;
+					lineLength = 0;
+					lineOffset = position;
+				}
+				if (b == '\n') {
+					deliver(line, lineLength, lineOffset, handler);
+					inLine = false;
+					lineStart = true;
+					continue;
+				}
+				if (lineLength == line.length) {
+					line = Arrays.copyOf(line, line.length * 2);
+				}
+				line[lineLength++] = b;
+			}
+		}
+		if (inLine) {
+			deliver(line, lineLength, lineOffset, handler);
+		}
+	}
+
+	private static void deliver(byte[] line, int length, long offset, OffsetHandler handler) throws IOException {
+		TsvRecord record = new TsvRecord();
+		record.reset(ByteBuffer.wrap(line), 0, length);
+		handler.record(offset, record);
+	}
+
+	/**
+	 * Uncompressed file read through memory mappings of its chunks.
+	 */
+	static final class PlainTsvInput extends TsvInput {
+
+		private final Path file;
+		private List<TsvChunk> chunks;
+
+		PlainTsvInput(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public Path getPath() {
+			return file;
+		}
+
+		@Override
+		public CompletableFuture<Void> prepare(long chunkSize, Executor executor) {
+			return TsvSplitter.split(file, chunkSize, executor).thenAccept(c -> chunks = c);
+		}
+
+		@Override
+		public long estimateSize() throws IOException {
+			return Files.size(file);
+		}
+
+		@Override
+		public long estimateLines() {
+			long lines = 0;
+			for (TsvChunk chunk : chunks) {
+				lines += chunk.getLineCount();
+			}
+			return lines;
+		}
+
+		@Override
+		public CompletableFuture<List<TsvChunk>> forEachChunk(Executor executor, Consumer<TsvChunk> task) {
+			List<TsvChunk> all = new ArrayList<TsvChunk>(chunks);
+			CompletableFuture<?>[] tasks = new CompletableFuture<?>[all.size()];
+			for (int i = 0; i < tasks.length; i++) {
+				TsvChunk chunk = all.get(i);
+				tasks[i] = CompletableFuture.runAsync(() -> task.accept(chunk), executor);
+			}
+			return CompletableFuture.allOf(tasks).thenApply(v -> all);
+		}
+
+		@Override
+		public void readRecords(long[] offsets, int count, OffsetHandler handler) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				for (int i = 0; i < count; i++) {
+					handler.record(offsets[i], TsvReader.readRecord(channel, offsets[i]));
+				}
+			}
+		}
+
+		@Override
+		public void sampleRecords(long[] positions, int count, OffsetHandler handler) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				long previous = -1;
+				for (int i = 0; i < count; i++) {
+					long offset = TsvReader.nextLineStart(channel, positions[i]);
+					if (offset < size && offset != previous) {
+						handler.record(offset, TsvReader.readRecord(channel, offset));
+						previous = offset;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the lines of a {@link TsvChunk} from a memory mapping of the file, or
+ * from the decompressed bytes it carries, and hands them to a handler as
+ * {@link TsvRecord} views, without creating a String per line or per field.
+ */
+public class TsvReader {
+
+	public interface RecordHandler {
+		void record(long lineNumber, TsvRecord record);
+	}
+
+	public interface BufferHandler {
+		void read(ByteBuffer buffer, int length) throws IOException;
+	}
+
+	public static void forEachRecord(TsvChunk chunk, RecordHandler handler) throws IOException {
+		withBuffer(chunk, (buffer, length) -> forEachRecord(buffer, 0, length, chunk.getFirstLineNumber(), handler));
+	}
+
+	/**
+	 * Hands the content of the chunk to the handler, starting at index 0 of the
+	 * buffer.
+	 */
+	public static void withBuffer(TsvChunk chunk, BufferHandler handler) throws IOException {
+		ByteBuffer data = chunk.getData();
+		if (data != null) {
+			handler.read(data, data.limit());
+			return;
+		}
+		if (chunk.getLength() > Integer.MAX_VALUE) {
+			throw new IOException("Chunk too large to map " + chunk);
+		}
+		try (FileChannel channel = FileChannel.open(chunk.getFile(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, chunk.getStart(), chunk.getLength());
+			handler.read(buffer, (int) chunk.getLength());
+		}
+	}
+
+	static void forEachRecord(ByteBuffer buffer, int start, int end, long firstLineNumber, RecordHandler handler) {
+		TsvRecord record = new TsvRecord();
+		long lineNumber = firstLineNumber;
+		int lineStart = start;
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == '\n') {
+				record.reset(buffer, lineStart, i);
+				handler.record(lineNumber++, record);
+				lineStart = i + 1;
+			}
+		}
+		if (lineStart < end) {
+			record.reset(buffer, lineStart, end);
+			handler.record(lineNumber, record);
+		}
+	}
+
+	/**
+	 * Reads the single line starting at <code>offset</code>, used to report
+	 * findings that are only known after the file was read.
+	 */
+	public static TsvRecord readRecord(FileChannel channel, long offset) throws IOException {
+		TsvRecord record = new TsvRecord();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (true) {
+			int read = channel.read(buffer, offset + buffer.position());
+			for (int i = buffer.position() - Math.max(read, 0); i < buffer.position(); i++) {
+				if (buffer.get(i) == '\n') {
+					record.reset(buffer, 0, i);
+					return record;
+				}
+			}
+			if (read <= 0) {
+				record.reset(buffer, 0, buffer.position());
+				return record;
+			}
+			if (!buffer.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+	}
+
+	/**
+	 * Offset of the first line starting at or after <code>position</code>,
+	 * the size of the file if there is none.
+	 */
+	public static long nextLineStart(FileChannel channel, long position) throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long offset = position - 1;
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, offset);
+			if (read <= 0) {
+				return channel.size();
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return offset + i + 1;
+				}
+			}
+			offset += read;
+		}
+	}
+}
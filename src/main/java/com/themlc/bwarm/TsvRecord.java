@@ -0,0 +1,89 @@
+package com.themlc.bwarm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A view on one line of a TSV file. The record does not copy the line: it
+ * keeps the offsets of the fields inside the underlying buffer and only
+ * builds a String when {@link #field(int)} is called, which the validator
+ * does when it has to report an error. Instances are reused from line to
+ * line, so they must not be kept after the handler returns.
+ */
+public class TsvRecord {
+
+	private ByteBuffer buffer;
+	private int[] bounds = new int[32];
+	private int fieldCount;
+
+	void reset(ByteBuffer buffer, int start, int end) {
+		this.buffer = buffer;
+		if (end > start && buffer.get(end - 1) == '\r') {
+			end--;
+		}
+		int count = 0;
+		bounds[0] = start;
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == '\t') {
+				count++;
+				if (count + 1 >= bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[count] = i + 1;
+			}
+		}
+		count++;
+		bounds[count] = end + 1;
+		fieldCount = count;
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int fieldCount() {
+		return fieldCount;
+	}
+
+	public int start(int field) {
+		return bounds[field];
+	}
+
+	public int end(int field) {
+		return bounds[field + 1] - 1;
+	}
+
+	public int length(int field) {
+		return bounds[field + 1] - 1 - bounds[field];
+	}
+
+	public boolean isEmpty(int field) {
+		return length(field) == 0;
+	}
+
+	public String field(int field) {
+		return decode(buffer, start(field), end(field));
+	}
+
+	public String[] fields() {
+		String[] fields = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			fields[i] = field(i);
+		}
+		return fields;
+	}
+
+	static String decode(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = buffer.get(i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(fields());
+	}
+}
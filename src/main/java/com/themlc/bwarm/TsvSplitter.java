@@ -0,0 +1,134 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Splits a TSV file into byte ranges that start and end on line boundaries so
+ * that the ranges can be validated independently. Every chunk knows the line
+ * number of its first line, which is computed with a parallel newline count.
+ */
+public class TsvSplitter {
+
+	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Splits the file and numbers the chunks asynchronously on the executor.
+	 * IO errors complete the future with an {@link UncheckedIOException}.
+	 */
+	public static CompletableFuture<List<TsvChunk>> split(Path file, long chunkSize, Executor executor) {
+		return CompletableFuture.supplyAsync(() ->
+			{
+				try {
+					return split(file, chunkSize);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor).thenCompose(chunks ->
+				{
+					CompletableFuture<?>[] counters = new CompletableFuture<?>[chunks.size()];
+					for (int i = 0; i < counters.length; i++) {
+						TsvChunk chunk = chunks.get(i);
+						counters[i] = CompletableFuture.runAsync(() -> chunk.setLineCount(countLines(chunk)), executor);
+					}
+					return CompletableFuture.allOf(counters).thenApply(v -> number(chunks));
+				});
+	}
+
+	/**
+	 * Splits the file at line boundaries; the chunks are not numbered yet.
+	 */
+	public static List<TsvChunk> split(Path file, long chunkSize) throws IOException {
+		List<TsvChunk> chunks = new ArrayList<TsvChunk>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (start < size) {
+				long end = Math.min(start + chunkSize, size);
+				if (end < size) {
+					end = nextLineStart(channel, end - 1, size, buffer);
+				}
+				if (end - start > Integer.MAX_VALUE) {
+					throw new IOException("Line too long in " + file + " after offset " + start);
+				}
+				chunks.add(new TsvChunk(file, start, end));
+				start = end;
+			}
+		}
+		return chunks;
+	}
+
+	private static List<TsvChunk> number(List<TsvChunk> chunks) {
+		long lineNumber = 1;
+		for (TsvChunk chunk : chunks) {
+			chunk.setFirstLineNumber(lineNumber);
+			lineNumber += chunk.getLineCount();
+		}
+		return chunks;
+	}
+
+	/**
+	 * Returns the offset just after the first '\n' found at or after
+	 * <code>from</code>, or the file size if there is none.
+	 */
+	private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer buffer) throws IOException {
+		long position = from;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			byte[] bytes = buffer.array();
+			for (int i = 0; i < read; i++) {
+				if (bytes[i] == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	static long countLines(TsvChunk chunk) {
+		long lines = 0;
+		byte last = '\n';
+		try (FileChannel channel = FileChannel.open(chunk.getFile(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			byte[] bytes = buffer.array();
+			long position = chunk.getStart();
+			while (position < chunk.getEnd()) {
+				buffer.clear();
+				buffer.limit((int) Math.min(bytes.length, chunk.getEnd() - position));
+				int read = channel.read(buffer, position);
+				if (read <= 0) {
+					break;
+				}
+				for (int i = 0; i < read; i++) {
+					if (bytes[i] == '\n') {
+						lines++;
+					}
+				}
+				last = bytes[read - 1];
+				position += read;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (last != '\n') {
+			lines++;
+		}
+		return lines;
+	}
+}
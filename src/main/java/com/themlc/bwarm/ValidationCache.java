@@ -0,0 +1,287 @@
+package com.themlc.bwarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Findings of the checks that only depend on a single line, the column and
+ * conditional field checks, kept between runs for one file type of one feed
+ * provider.
+ *
+ * Chunks are cut into segments of about 250 lines that end after a line whose
+ * identifier hash has its low bits clear, so the segments depend on the
+ * content and not on the position of a line: a changed line only changes its
+ * own segment. A
+ * segment found in the cache of the previous run is not validated again, its
+ * findings are reported with the line numbers of this run. Identifiers and
+ * references are still checked on every line since they depend on the other
+ * files.
+ *
+ * The cache of a run replaces the previous one once the file is done, so it
+ * holds exactly the segments of the last snapshot.
+ */
+public class ValidationCache implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int MAGIC = 0x42574348;
+	private static final int VERSION = 2;
+	private static final int SEGMENT_MASK = 255;
+	private static final int MAX_SEGMENT_LINES = 4096;
+
+	private final Path file;
+	private final Path next;
+	private final FileChannel previous;
+	// segment hash to position of the findings in the previous cache, line count and size
+	private final HashMap<Long, long[]> index = new HashMap<Long, long[]>();
+	private final DataOutputStream out;
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private boolean committed;
+
+	public interface SegmentHandler {
+		void segment(int start, int end, long firstLineNumber, int lineCount, long hash) throws IOException;
+	}
+
+	public interface FindingHandler {
+		/**
+		 * A finding with the id and the value of its message in
+		 * <code>data</code>, <code>valueStart</code> is
+		 * {@link FindingBuffer#NO_VALUE} for a message without value.
+		 */
+		void finding(int code, long lineNumber, ByteBuffer data, int idStart, int idEnd, int valueStart, int valueEnd);
+	}
+
+	/**
+	 * Opens the cache of <code>name</code> in <code>directory</code>. A cache
+	 * written with other rules, as given by <code>rulesFingerprint</code>, or
+	 * that can not be read is ignored. The fingerprint must cover the message
+	 * codes, findings are kept as codes.
+	 */
+	public ValidationCache(Path directory, String name, long rulesFingerprint) throws IOException {
+		Files.createDirectories(directory);
+		this.file = directory.resolve(name + ".cache");
+		this.next = Files.createTempFile(directory, name, ".tmp");
+		this.previous = Files.isRegularFile(file) ? load(rulesFingerprint) : null;
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(next), 1024 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(rulesFingerprint);
+	}
+
+	private FileChannel load(long rulesFingerprint) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1024 * 1024))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != rulesFingerprint) {
+				LOGGER.info("Ignoring cache {} of other rules", file);
+				return null;
+			}
+			long position = 16;
+			while (true) {
+				long hash;
+				try {
+					hash = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int lineCount = in.readInt();
+				int size = in.readInt();
+				index.put(hash, new long[] { position + 16, lineCount, size });
+				in.skipBytes(size);
+				position += 16 + size;
+			}
+		} catch (EOFException e) {
+			LOGGER.warn("Ignoring truncated cache {}", file);
+			index.clear();
+			return null;
+		}
+		return FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+	/**
+	 * Reports the cached findings of a segment and keeps them for the next
+	 * run, false if the segment is not cached.
+	 */
+	public boolean replay(long hash, int lineCount, long firstLineNumber, FindingHandler handler) throws IOException {
+		long[] entry = previous == null ? null : index.get(hash);
+		lines.addAndGet(lineCount);
+		if (entry == null || entry[1] != lineCount) {
+			return false;
+		}
+		ByteBuffer findings = ByteBuffer.allocate((int) entry[2]);
+		while (findings.hasRemaining() && previous.read(findings, entry[0] + findings.position()) > 0) {
+		}
+		if (findings.hasRemaining()) {
+			return false;
+		}
+		findings.flip();
+		while (findings.hasRemaining()) {
+			long lineNumber = firstLineNumber + findings.getInt();
+			int code = findings.getInt();
+			int idLength = findings.getInt();
+			int idStart = findings.position();
+			findings.position(idStart + idLength);
+			int valueLength = findings.getInt();
+			int valueStart = valueLength < 0 ? FindingBuffer.NO_VALUE : findings.position();
+			findings.position(findings.position() + Math.max(0, valueLength));
+			handler.finding(code, lineNumber, findings, idStart, idStart + idLength, valueStart, valueStart + valueLength);
+		}
+		store(hash, lineCount, findings.array());
+		reused.addAndGet(lineCount);
+		return true;
+	}
+
+	/**
+	 * Keeps the findings of a validated segment for the next run.
+	 */
+	public void store(long hash, Findings findings) throws IOException {
+		store(hash, findings.lineCount, findings.encode());
+	}
+
+	private synchronized void store(long hash, int lineCount, byte[] findings) throws IOException {
+		out.writeLong(hash);
+		out.writeInt(lineCount);
+		out.writeInt(findings.length);
+		out.write(findings);
+	}
+
+	public long getLines() {
+		return lines.get();
+	}
+
+	public long getReusedLines() {
+		return reused.get();
+	}
+
+	/**
+	 * Replaces the previous cache with the segments of this run.
+	 */
+	public synchronized void commit() throws IOException {
+		out.close();
+		if (previous != null) {
+			previous.close();
+		}
+		Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		committed = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!committed) {
+			out.close();
+			if (previous != null) {
+				previous.close();
+			}
+			Files.deleteIfExists(next);
+		}
+	}
+
+	/**
+	 * Groups the lines of a chunk into segments while they are read. A segment
+	 * ends after a line whose identifier hash has its low bits clear and is
+	 * handed over when the next line starts, with the hash of its bytes.
+	 */
+	public static final class Segmenter {
+		private final ByteBuffer buffer;
+		private final SegmentHandler handler;
+		private int start;
+		private long firstLineNumber;
+		private int lineCount;
+		private boolean closed;
+
+		public Segmenter(ByteBuffer buffer, long firstLineNumber, SegmentHandler handler) {
+			this.buffer = buffer;
+			this.firstLineNumber = firstLineNumber;
+			this.handler = handler;
+		}
+
+		public void line(TsvRecord record) {
+			if (closed) {
+				segment(record.start(0));
+			}
+			lineCount++;
+			closed = (Fingerprint.of(buffer, record.start(0), record.end(0)) & SEGMENT_MASK) == 0 || lineCount == MAX_SEGMENT_LINES;
+		}
+
+		public void finish(int end) {
+			if (lineCount > 0) {
+				segment(end);
+			}
+		}
+
+		private void segment(int end) {
+			try {
+				handler.segment(start, end, firstLineNumber, lineCount, Fingerprint.of(buffer, start, end));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			start = end;
+			firstLineNumber += lineCount;
+			lineCount = 0;
+			closed = false;
+		}
+	}
+
+	/**
+	 * Findings recorded while a segment is validated.
+	 */
+	public static final class Findings {
+		private final long firstLineNumber;
+		private final int lineCount;
+		private final FindingBuffer findings = new FindingBuffer();
+
+		public Findings(long firstLineNumber, int lineCount) {
+			this.firstLineNumber = firstLineNumber;
+			this.lineCount = lineCount;
+		}
+
+		public void add(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, int valueStart, int valueEnd) {
+			findings.add(code, lineNumber, buffer, idStart, idEnd, valueStart, valueEnd);
+		}
+
+		public void add(int code, long lineNumber, ByteBuffer buffer, int idStart, int idEnd, long value) {
+			findings.add(code, lineNumber, buffer, idStart, idEnd, value);
+		}
+
+		public void add(int code, long lineNumber, String id, String value) {
+			findings.add(code, lineNumber, id, value);
+		}
+
+		/**
+		 * Per finding int line offset, int code, int length and id, int
+		 * length (-1 if none) and value.
+		 */
+		byte[] encode() {
+			int count = findings.count();
+			ByteBuffer encoded = ByteBuffer.allocate(count * 16 + findings.size());
+			byte[] data = findings.data();
+			for (int i = 0; i < count; i++) {
+				encoded.putInt((int) (findings.lineNumber(i) - firstLineNumber)).putInt(findings.code(i));
+				int idStart = findings.idStart(i);
+				encoded.putInt(findings.idEnd(i) - idStart).put(data, idStart, findings.idEnd(i) - idStart);
+				if (findings.hasValue(i)) {
+					encoded.putInt(findings.valueEnd(i) - findings.idEnd(i)).put(data, findings.idEnd(i), findings.valueEnd(i) - findings.idEnd(i));
+				} else {
+					encoded.putInt(-1);
+				}
+			}
+			return encoded.array();
+		}
+	}
+}
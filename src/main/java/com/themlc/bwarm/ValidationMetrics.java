@@ -0,0 +1,386 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Live counters of the validation per file of the snapshot, summed over all
+ * validators of the JVM: lines, bytes and time of the chunks, findings per
+ * message and the time spent per kind of check, next to gauges like the tasks
+ * queued in the pool. They are registered as MXBeans under
+ * <code>com.themlc.bwarm</code> and written in the Prometheus text format by
+ * {@link #write(Writer)}.
+ *
+ * Chunks are counted once they are done. Checks are only timed on one line in
+ * {@link #SAMPLE_LINES} and the time of the other lines is estimated from
+ * those, so the timing does not slow the validation down.
+ */
+public final class ValidationMetrics {
+
+	// the column types of ColumnValidator, then the checks over several columns
+	static final String[] CHECKS = { "string", "boolean", "number", "duration", "date", "avs", "conditions", "keys", "file" };
+	static final int CONDITIONS = 6;
+	static final int KEYS = 7;
+	static final int FILE_CHECK = 8;
+	static final int SAMPLE_LINES = 64;
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final String DOMAIN = "com.themlc.bwarm";
+
+	private static ValidationMetrics shared;
+
+	private final ConcurrentHashMap<String, FileMetrics> files = new ConcurrentHashMap<String, FileMetrics>();
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private ScheduledExecutorService dumps;
+
+	public interface FileMXBean {
+		long getLines();
+
+		long getBytes();
+
+		/**
+		 * Lines per second since the previous reading at least a second ago.
+		 */
+		double getLinesPerSecond();
+
+		double getBytesPerSecond();
+
+		/**
+		 * Time spent in the chunks of the file, over all threads.
+		 */
+		double getSeconds();
+
+		long getRunningChunks();
+
+		Map<String, Long> getFindings();
+
+		/**
+		 * Estimated time per kind of check.
+		 */
+		Map<String, Double> getCheckSeconds();
+	}
+
+	public interface GaugesMXBean {
+		Map<String, Long> getValues();
+	}
+
+	private static final class Gauge {
+		final String help;
+		final LongSupplier value;
+
+		Gauge(String help, LongSupplier value) {
+			this.help = help;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The counters of one file, e.g. works.
+	 */
+	public static final class FileMetrics implements FileMXBean {
+		private final LongAdder lines = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder running = new LongAdder();
+		private final LongAdder[] checks = new LongAdder[CHECKS.length];
+		private final ConcurrentHashMap<String, LongAdder> findings = new ConcurrentHashMap<String, LongAdder>();
+		private long rateTime = System.nanoTime();
+		private long rateLines;
+		private long rateBytes;
+		private double linesPerSecond;
+		private double bytesPerSecond;
+
+		FileMetrics() {
+			for (int i = 0; i < checks.length; i++) {
+				checks[i] = new LongAdder();
+			}
+		}
+
+		void startChunk() {
+			running.increment();
+		}
+
+		void endChunk(long lineCount, long length, long chunkNanos) {
+			running.decrement();
+			lines.add(lineCount);
+			bytes.add(length);
+			nanos.add(chunkNanos);
+		}
+
+		/**
+		 * Adds the time of a check on a timed line, see
+		 * {@link ValidationMetrics#isTimed(long)}.
+		 */
+		void check(int check, long checkNanos) {
+			checks[check].add(checkNanos * SAMPLE_LINES);
+		}
+
+		/**
+		 * The counter of the findings of a message, by its summary text.
+		 */
+		LongAdder findings(String message) {
+			return findings.computeIfAbsent(message, m -> new LongAdder());
+		}
+
+		private void updateRates() {
+			long now = System.nanoTime();
+			if (now - rateTime < TimeUnit.SECONDS.toNanos(1)) {
+				return;
+			}
+			double seconds = (now - rateTime) / 1e9;
+			long currentLines = lines.sum();
+			long currentBytes = bytes.sum();
+			linesPerSecond = (currentLines - rateLines) / seconds;
+			bytesPerSecond = (currentBytes - rateBytes) / seconds;
+			rateTime = now;
+			rateLines = currentLines;
+			rateBytes = currentBytes;
+		}
+
+		@Override
+		public long getLines() {
+			return lines.sum();
+		}
+
+		@Override
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		@Override
+		public synchronized double getLinesPerSecond() {
+			updateRates();
+			return linesPerSecond;
+		}
+
+		@Override
+		public synchronized double getBytesPerSecond() {
+			updateRates();
+			return bytesPerSecond;
+		}
+
+		@Override
+		public double getSeconds() {
+			return nanos.sum() / 1e9;
+		}
+
+		@Override
+		public long getRunningChunks() {
+			return running.sum();
+		}
+
+		@Override
+		public Map<String, Long> getFindings() {
+			TreeMap<String, Long> counts = new TreeMap<String, Long>();
+			findings.forEach((message, count) -> counts.put(message, count.sum()));
+			return counts;
+		}
+
+		@Override
+		public Map<String, Double> getCheckSeconds() {
+			TreeMap<String, Double> seconds = new TreeMap<String, Double>();
+			for (int i = 0; i < checks.length; i++) {
+				seconds.put(CHECKS[i], checks[i].sum() / 1e9);
+			}
+			return seconds;
+		}
+	}
+
+	private ValidationMetrics() {
+	}
+
+	/**
+	 * The metrics of this JVM, registered with the platform MBean server.
+	 */
+	public static synchronized ValidationMetrics shared() {
+		if (shared == null) {
+			shared = new ValidationMetrics();
+			shared.register("type=Gauges", (GaugesMXBean) shared::gaugeValues);
+		}
+		return shared;
+	}
+
+	private void register(String properties, Object bean) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(DOMAIN + ":" + properties));
+		} catch (JMException e) {
+			LOGGER.warn("Could not register the metrics {} {}", properties, e.toString());
+		}
+	}
+
+	/**
+	 * Whether the checks of a line are timed, one line in
+	 * {@link #SAMPLE_LINES}. Lines of a --sample run, numbered 0, never are.
+	 */
+	static boolean isTimed(long lineNumber) {
+		return lineNumber != 0 && (lineNumber & (SAMPLE_LINES - 1)) == 0;
+	}
+
+	/**
+	 * The counters of a file by its log type, registered as
+	 * <code>com.themlc.bwarm:type=File,name=&lt;log type&gt;</code>.
+	 */
+	public FileMetrics file(String logType) {
+		FileMetrics metrics = files.get(logType);
+		if (metrics == null) {
+			FileMetrics created = new FileMetrics();
+			metrics = files.putIfAbsent(logType, created);
+			if (metrics == null) {
+				register("type=File,name=" + logType, created);
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Adds or replaces a gauge, read whenever the metrics are.
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		gauges.put(name, new Gauge(help, value));
+	}
+
+	/**
+	 * Gauges of the pool the files are validated on.
+	 */
+	void pool(ForkJoinPool pool) {
+		gauge("bwarm_pool_queued_tasks", "Tasks waiting in the validation pool.", () -> pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount());
+		gauge("bwarm_pool_active_threads", "Threads of the validation pool running a task.", () -> pool.getActiveThreadCount());
+	}
+
+	private Map<String, Long> gaugeValues() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		gauges.forEach((name, gauge) -> values.put(name, gauge.value.getAsLong()));
+		return values;
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format.
+	 */
+	public void write(Writer out) throws IOException {
+		TreeMap<String, FileMetrics> sorted = new TreeMap<String, FileMetrics>(files);
+		header(out, "bwarm_lines_total", "counter", "Lines of the done chunks.");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			sample(out, "bwarm_lines_total", file.getKey(), null, null, file.getValue().getLines());
+		}
+		header(out, "bwarm_bytes_total", "counter", "Bytes of the done chunks.");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			sample(out, "bwarm_bytes_total", file.getKey(), null, null, file.getValue().getBytes());
+		}
+		header(out, "bwarm_file_seconds_total", "counter", "Time spent in the done chunks, over all threads.");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			sample(out, "bwarm_file_seconds_total", file.getKey(), null, null, file.getValue().getSeconds());
+		}
+		header(out, "bwarm_running_chunks", "gauge", "Chunks being validated.");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			sample(out, "bwarm_running_chunks", file.getKey(), null, null, file.getValue().getRunningChunks());
+		}
+		header(out, "bwarm_findings_total", "counter", "Findings by message.");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			for (Map.Entry<String, Long> findings : file.getValue().getFindings().entrySet()) {
+				sample(out, "bwarm_findings_total", file.getKey(), "message", findings.getKey(), findings.getValue());
+			}
+		}
+		header(out, "bwarm_check_seconds_total", "counter", "Time spent by kind of check, estimated from one line in " + SAMPLE_LINES + ".");
+		for (Map.Entry<String, FileMetrics> file : sorted.entrySet()) {
+			for (Map.Entry<String, Double> check : file.getValue().getCheckSeconds().entrySet()) {
+				sample(out, "bwarm_check_seconds_total", file.getKey(), "check", check.getKey(), check.getValue());
+			}
+		}
+		for (Map.Entry<String, Gauge> gauge : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			header(out, gauge.getKey(), "gauge", gauge.getValue().help);
+			out.write(gauge.getKey() + " " + gauge.getValue().value.getAsLong() + "\n");
+		}
+	}
+
+	/**
+	 * All metrics in the Prometheus text format.
+	 */
+	public String text() {
+		StringWriter out = new StringWriter();
+		try {
+			write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	private static void header(Writer out, String name, String type, String help) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n# TYPE " + name + " " + type + "\n");
+	}
+
+	private static void sample(Writer out, String name, String file, String label, String value, Number sample) throws IOException {
+		out.write(name + "{file=\"" + escape(file) + "\"");
+		if (label != null) {
+			out.write("," + label + "=\"" + escape(value) + "\"");
+		}
+		out.write("} " + sample + "\n");
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Replaces <code>file</code> with the current metrics, e.g. for the
+	 * textfile collector of the Prometheus node exporter.
+	 */
+	public void dump(Path file) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, text().getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Dumps the metrics to <code>file</code> every <code>seconds</code> on a
+	 * daemon thread, until {@link #stopDumps()}.
+	 */
+	public synchronized void dumpEvery(Path file, long seconds) {
+		if (dumps == null) {
+			dumps = Executors.newSingleThreadScheduledExecutor(r ->
+				{
+					Thread thread = new Thread(r, "bwarm-metrics");
+					thread.setDaemon(true);
+					return thread;
+				});
+		}
+		dumps.scheduleWithFixedDelay(() ->
+			{
+				try {
+					dump(file);
+				} catch (IOException e) {
+					LOGGER.warn("Could not write the metrics to {} {}", file, e.toString());
+				}
+			}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopDumps() {
+		if (dumps != null) {
+			dumps.shutdownNow();
+			dumps = null;
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package com.themlc.bwarm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident validator serving validation jobs over HTTP, so the Allowed Value
+ * Sets, the pool and the compiled code are reused from job to job. Jobs run
+ * through a {@link BatchValidator}, at most <code>concurrentJobs</code> at a
+ * time, with up to <code>queueSize</code> waiting; more are refused with 503.
+ * A snapshot of the snapshot directory is written to by its job, so it has
+ * at most one queued or running job, others are refused with 409, and only
+ * its latest job has results.
+ *
+ * <pre>
+ * POST   /jobs?snapshot=NAME     validate a snapshot of the snapshot directory
+ * POST   /jobs?name=NAME         validate the zipped snapshot in the request body
+ * GET    /jobs                   all jobs
+ * GET    /jobs/ID                state of a job
+ * GET    /jobs/ID/validator.tsv  findings, once the job is done, or validator.tsv.gz,
+ *                                validator.tsv.zst or validator.bin as configured
+ * GET    /jobs/ID/validator_summary.tsv
+ * DELETE /jobs/ID                forget a job and remove its upload
+ * GET    /metrics                live metrics in the Prometheus text format, see {@link ValidationMetrics}
+ * </pre>
+ *
+ * Responses are TSV with a header line, like the validator output. Result
+ * requests wait for the job to finish unless <code>wait=false</code> is given.
+ */
+public class ValidationServer {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	// no . or .., paths are also checked to stay in their directory, see resolve
+	private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+	private static final String HEADER = "Id\tSnapshot\tState\tMessage\n";
+
+	private final String base;
+	private final Path uploadDirectory;
+	private final BatchValidator validator;
+	private final ThreadPoolExecutor jobs;
+	private final HttpServer server;
+	private final AtomicLong ids = new AtomicLong();
+	private final Map<Long, Job> registry = new ConcurrentHashMap<Long, Job>();
+	// the latest job of each snapshot of the snapshot directory
+	private final Map<String, Job> latest = new ConcurrentHashMap<String, Job>();
+
+	private static final class Job {
+		final long id;
+		final String snapshot;
+		final String base;
+		final Path upload;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		volatile String state = "QUEUED";
+		volatile String message = "";
+
+		Job(long id, String snapshot, String base, Path upload) {
+			this.id = id;
+			this.snapshot = snapshot;
+			this.base = base;
+			this.upload = upload;
+		}
+
+		String describe() {
+			return id + "\t" + snapshot + "\t" + state + "\t" + message.replace('\t', ' ').replace('\n', ' ') + "\n";
+		}
+	}
+
+	public ValidationServer(String base, BatchValidator validator, InetSocketAddress address, int concurrentJobs, int queueSize, Path uploadDirectory) throws IOException {
+		this.base = base;
+		this.validator = validator;
+		this.uploadDirectory = uploadDirectory;
+		this.jobs = new ThreadPoolExecutor(concurrentJobs, concurrentJobs, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+		this.server = HttpServer.create(address, 0);
+		server.createContext("/jobs", this::handle);
+		server.createContext("/metrics", this::metrics);
+		ValidationMetrics.shared().gauge("bwarm_jobs_queued", "Jobs waiting to be validated.", () -> jobs.getQueue().size());
+		ValidationMetrics.shared().gauge("bwarm_jobs_running", "Jobs being validated.", () -> jobs.getActiveCount());
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	public void start() {
+		server.start();
+		LOGGER.info("Listening on {}", server.getAddress());
+	}
+
+	public void stop() {
+		server.stop(0);
+		jobs.shutdown();
+		validator.shutdown();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String[] path = exchange.getRequestURI().getPath().split("/");
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String method = exchange.getRequestMethod();
+			Job job = path.length > 2 ? registry.get(parseId(path[2])) : null;
+			if (path.length == 2 && method.equals("POST")) {
+				submit(exchange, query);
+			} else if (path.length == 2 && method.equals("GET")) {
+				StringBuilder list = new StringBuilder(HEADER);
+				registry.values().stream().sorted(Comparator.comparingLong(j -> j.id)).forEach(j -> list.append(j.describe()));
+				send(exchange, 200, list.toString());
+			} else if (job == null) {
+				send(exchange, 404, "Unknown job\n");
+			} else if (path.length == 3 && method.equals("GET")) {
+				send(exchange, 200, HEADER + job.describe());
+			} else if (path.length == 3 && method.equals("DELETE")) {
+				remove(exchange, job);
+			} else if (path.length == 4 && method.equals("GET") && isResult(path[3])) {
+				result(exchange, job, path[3], !"false".equals(query.get("wait")));
+			} else {
+				send(exchange, 404, "Unknown request\n");
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Request {} failed {}", exchange.getRequestURI(), e.toString());
+			if (exchange.getResponseCode() < 0) {
+				send(exchange, 500, e.toString() + "\n");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void metrics(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				send(exchange, 404, "Unknown request\n");
+				return;
+			}
+			byte[] bytes = ValidationMetrics.shared().text().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void submit(HttpExchange exchange, Map<String, String> query) throws IOException {
+		String snapshot = query.containsKey("snapshot") ? query.get("snapshot") : query.get("name");
+		if (snapshot == null || !NAME.matcher(snapshot).matches()) {
+			send(exchange, 400, "snapshot or name required\n");
+			return;
+		}
+		// the job writes its results into <base><snapshot>
+		if (resolve(base, snapshot) == null || resolve(base, snapshot + ".zip") == null) {
+			send(exchange, 400, "Invalid snapshot " + snapshot + "\n");
+			return;
+		}
+		if (jobs.getQueue().remainingCapacity() == 0) {
+			refuse(exchange);
+			return;
+		}
+		long id = ids.incrementAndGet();
+		Job job;
+		Job[] previous = new Job[1];
+		if (query.containsKey("snapshot")) {
+			if (!Files.isDirectory(resolve(base, snapshot)) && !Files.isRegularFile(resolve(base, snapshot + ".zip"))) {
+				send(exchange, 404, "Unknown snapshot " + snapshot + "\n");
+				return;
+			}
+			Job queued = new Job(id, snapshot, base, null);
+			job = latest.compute(snapshot, (s, last) ->
+				{
+					previous[0] = last;
+					return last != null && !last.done.isDone() ? last : queued;
+				});
+			if (job != queued) {
+				send(exchange, 409, HEADER + job.describe());
+				return;
+			}
+		} else {
+			// an uploaded snapshot is validated as <upload directory>/<id>/<name>.zip
+			Path upload = uploadDirectory.resolve(Long.toString(id));
+			Files.createDirectories(upload);
+			Files.copy(exchange.getRequestBody(), upload.resolve(snapshot + ".zip"));
+			job = new Job(id, snapshot, upload + "/", upload);
+		}
+		registry.put(id, job);
+		try {
+			jobs.execute(() -> run(job));
+		} catch (RejectedExecutionException e) {
+			registry.remove(id);
+			if (job.upload == null) {
+				if (previous[0] != null) {
+					latest.replace(snapshot, job, previous[0]);
+				} else {
+					latest.remove(snapshot, job);
+				}
+			}
+			delete(job.upload);
+			refuse(exchange);
+			return;
+		}
+		LOGGER.info("Queued job {} {}", id, snapshot);
+		exchange.getResponseHeaders().set("Location", "/jobs/" + id);
+		send(exchange, 202, HEADER + job.describe());
+	}
+
+	private void run(Job job) {
+		job.state = "RUNNING";
+		try {
+			job.state = validator.validate(job.base, job.snapshot) ? "DONE" : "REJECTED";
+		} catch (IOException | RuntimeException e) {
+			job.state = "FAILED";
+			job.message = e.toString();
+		} catch (InterruptedException e) {
+			job.state = "FAILED";
+			job.message = "Interrupted";
+			Thread.currentThread().interrupt();
+		} finally {
+			job.done.complete(null);
+		}
+	}
+
+	private void result(HttpExchange exchange, Job job, String file, boolean wait) throws IOException {
+		if (wait) {
+			job.done.join();
+		}
+		if (job.upload == null && latest.get(job.snapshot) != job) {
+			send(exchange, 410, "Results replaced by a later job of " + job.snapshot + "\n");
+			return;
+		}
+		Path folder = resolve(job.base, job.snapshot);
+		Path result = folder != null ? resolve(folder.toString(), file) : null;
+		if (!job.done.isDone() || job.state.equals("FAILED") || result == null || !Files.isRegularFile(result)) {
+			send(exchange, 409, HEADER + job.describe());
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", file.endsWith(".tsv") ? "text/tab-separated-values; charset=UTF-8" : "application/octet-stream");
+		exchange.sendResponseHeaders(200, Files.size(result));
+		try (OutputStream out = exchange.getResponseBody()) {
+			Files.copy(result, out);
+		}
+	}
+
+	/**
+	 * The path of <code>name</code> in <code>directory</code>, or null if it
+	 * is not inside the directory.
+	 */
+	static Path resolve(String directory, String name) {
+		Path root = Paths.get(directory).toAbsolutePath().normalize();
+		Path path = root.resolve(name).normalize();
+		return path.startsWith(root) && !path.equals(root) ? path : null;
+	}
+
+	private static boolean isResult(String file) {
+		for (FindingOutput.Format format : FindingOutput.Format.values()) {
+			if (file.equals(format.getFileName())) {
+				return true;
+			}
+		}
+		return file.equals("validator_summary.tsv");
+	}
+
+	private void remove(HttpExchange exchange, Job job) throws IOException {
+		if (!job.done.isDone()) {
+			send(exchange, 409, HEADER + job.describe());
+			return;
+		}
+		registry.remove(job.id);
+		latest.remove(job.snapshot, job);
+		delete(job.upload);
+		send(exchange, 200, HEADER + job.describe());
+	}
+
+	private void refuse(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Retry-After", "10");
+		send(exchange, 503, "Job queue full\n");
+	}
+
+	private static void delete(Path directory) throws IOException {
+		if (directory == null || !Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private static long parseId(String id) {
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		HashMap<String, String> parameters = new HashMap<String, String>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int equals = parameter.indexOf('=');
+				if (equals > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static CommandLine parseCommandLine(String[] args) throws ParseException {
+		Options options = new Options();
+		options.addOption(Option.builder("d").required(true).longOpt("snapshot-directory").desc("BWARM Snapshot Base Folder").hasArg().build());
+		options.addOption(Option.builder("p").required(false).longOpt("port").desc("HTTP port, defaults to 8080").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("bind").desc("Address to listen on, defaults to 127.0.0.1").hasArg().build());
+		options.addOption(Option.builder("j").required(false).longOpt("concurrent-jobs").desc("Number of jobs validated at the same time, defaults to 2").hasArg().build());
+		options.addOption(Option.builder("q").required(false).longOpt("queue-size").desc("Number of jobs waiting before new ones are refused, defaults to 100").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("upload-directory").desc("Directory for uploaded snapshots, defaults to uploads in the snapshot directory").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("warm-up").desc("Number of works of a generated snapshot validated before the first job, defaults to 0").hasArg().build());
+		options.addOption(Option.builder("t").required(false).longOpt("threads").desc("Number of validation threads, defaults to the number of processors").hasArg().build());
+		options.addOption(Option.builder("c").required(false).longOpt("chunk-size").desc("Chunk size in MB used to split files for parallel validation").hasArg().build());
+		options.addOption(Option.builder("m").required(false).longOpt("index-memory").desc("Memory in MB for the identifier indexes of all running jobs, defaults to half the maximum heap").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("spill-directory").desc("Directory for spilled identifier indexes, defaults to the temporary directory").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("cache").desc("Reuse the findings of unchanged lines from the previous snapshot of each feed provider, cached in validation-cache in the snapshot directory").build());
+		options.addOption(Option.builder().required(false).longOpt("cache-directory").desc("Directory for the validation cache, implies --cache").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-errors").desc("Errors after which the validation of a file stops").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("max-listed").desc("Errors listed per file and kind of message, further ones are only counted in the summary").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("fail-fast").desc("Stop the whole snapshot once a file reaches --max-errors").build());
+		options.addOption(Option.builder().required(false).longOpt("output-format").desc("Format of the findings: tsv, tsv.gz, tsv.zst or bin, defaults to tsv").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-directory").desc("Directory with a folder of Allowed Value Sets per version of the standard, picked by the version.txt of each snapshot and reloaded when changed").hasArg().build());
+		options.addOption(Option.builder().required(false).longOpt("avs-version").desc("Version in --avs-directory for snapshots without a known version, defaults to the built-in sets").hasArg().build());
+
+		CommandLineParser parser = new DefaultParser();
+		try {
+			CommandLine line = parser.parse(options, args);
+			BWARMValidator.checkErrorBudget(line);
+			return line;
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp("ValidationServer", options);
+			throw e;
+		}
+	}
+
+	public static void main(String[] a) {
+		try {
+			CommandLine cmd = parseCommandLine(a);
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads")) {
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			long memory = Runtime.getRuntime().maxMemory() / 2;
+			if (cmd.hasOption("index-memory")) {
+				memory = Long.parseLong(cmd.getOptionValue("index-memory")) * 1024 * 1024;
+			}
+			String base = cmd.getOptionValue("snapshot-directory");
+			BatchValidator validator = new BatchValidator(base, threads, memory);
+			if (cmd.hasOption("chunk-size")) {
+				validator.setChunkSize(Long.parseLong(cmd.getOptionValue("chunk-size")) * 1024 * 1024);
+			}
+			if (cmd.hasOption("spill-directory")) {
+				validator.setSpillDirectory(Paths.get(cmd.getOptionValue("spill-directory")));
+			}
+			if (cmd.hasOption("cache-directory")) {
+				validator.setCacheDirectory(Paths.get(cmd.getOptionValue("cache-directory")));
+			} else if (cmd.hasOption("cache")) {
+				validator.setCacheDirectory(Paths.get(base, "validation-cache"));
+			}
+			if (cmd.hasOption("output-format")) {
+				validator.setOutputFormat(FindingOutput.Format.of(cmd.getOptionValue("output-format")));
+			}
+			if (cmd.hasOption("avs-directory")) {
+				validator.setAVSVersions(new AVSVersions(Paths.get(cmd.getOptionValue("avs-directory")), cmd.getOptionValue("avs-version")));
+			}
+			validator.setErrorBudget(Long.parseLong(cmd.getOptionValue("max-errors", "0")), Long.parseLong(cmd.getOptionValue("max-listed", "0")), cmd.hasOption("fail-fast"));
+			if (cmd.hasOption("warm-up")) {
+				long start = System.nanoTime();
+				validator.warmUp(Long.parseLong(cmd.getOptionValue("warm-up")), 3);
+				LOGGER.info("Warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+
+			InetSocketAddress address = new InetSocketAddress(cmd.getOptionValue("bind", "127.0.0.1"), Integer.parseInt(cmd.getOptionValue("port", "8080")));
+			Path uploads = cmd.hasOption("upload-directory") ? Paths.get(cmd.getOptionValue("upload-directory")) : Paths.get(base, "uploads");
+			ValidationServer server = new ValidationServer(base, validator, address, Integer.parseInt(cmd.getOptionValue("concurrent-jobs", "2")), Integer.parseInt(cmd.getOptionValue("queue-size", "100")), uploads);
+			Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+			server.start();
+
+		} catch (ParseException | IOException e1) {
+			e1.printStackTrace();
+		}
+	}
+}
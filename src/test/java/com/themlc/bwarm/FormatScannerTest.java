@@ -0,0 +1,246 @@
+package com.themlc.bwarm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.function.Consumer;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.Duration;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the scanners accept exactly what the Joda-Time and BigDecimal
+ * calls they replaced accepted, on hand picked edge cases and on seeded random
+ * inputs.
+ */
+public class FormatScannerTest {
+
+	private static final int RANDOM_INPUTS = 200000;
+	private static final String[] SPACES = { "", " ", "\t", " ", "　" };
+
+	private static TimeZone defaultTimeZone;
+	private static DateTimeZone defaultDateTimeZone;
+
+	@BeforeClass
+	public static void useZoneWithDaylightSaving() {
+		// the previous parsing must not depend on the zone, or DST gaps would show
+		defaultTimeZone = TimeZone.getDefault();
+		defaultDateTimeZone = DateTimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+		DateTimeZone.setDefault(DateTimeZone.forID("Europe/Paris"));
+	}
+
+	@AfterClass
+	public static void restoreZone() {
+		TimeZone.setDefault(defaultTimeZone);
+		DateTimeZone.setDefault(defaultDateTimeZone);
+	}
+
+	private static boolean bigDecimal(String value) {
+		try {
+			new BigDecimal(value);
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean jodaDuration(String value) {
+		try {
+			Duration.parse(value);
+		} catch (IllegalArgumentException | ArithmeticException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static long jodaDate(String value) {
+		try {
+			DateTimeFormatter parser = ISODateTimeFormat.localDateOptionalTimeParser();
+			return parser.parseDateTime(value).getMillis();
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return FormatScanner.INVALID_DATE;
+		}
+	}
+
+	/**
+	 * The value as a field in the middle of a line, so start and end matter.
+	 */
+	private static ByteBuffer field(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4);
+		buffer.put((byte) 'x').put((byte) '\t').put(bytes).put((byte) '\t').put((byte) 'y');
+		return buffer;
+	}
+
+	private static void checkBoolean(String value) {
+		ByteBuffer buffer = field(value);
+		boolean expected = value.toLowerCase().equals("true") || value.toLowerCase().equals("false");
+		assertEquals(value, expected, FormatScanner.isBoolean(buffer, 2, buffer.capacity() - 2));
+	}
+
+	private static void checkNumber(String value) {
+		ByteBuffer buffer = field(value);
+		assertEquals(value, bigDecimal(value), FormatScanner.isNumber(buffer, 2, buffer.capacity() - 2));
+	}
+
+	private static void checkDuration(String value) {
+		ByteBuffer buffer = field(value);
+		assertEquals(value, jodaDuration(value), FormatScanner.isDuration(buffer, 2, buffer.capacity() - 2));
+	}
+
+	private static void checkDate(String value) {
+		ByteBuffer buffer = field(value);
+		assertEquals(value, jodaDate(value), FormatScanner.parseDate(buffer, 2, buffer.capacity() - 2));
+		assertEquals(value, jodaDate(value) != FormatScanner.INVALID_DATE, FormatScanner.isDate(buffer, 2, buffer.capacity() - 2));
+	}
+
+	private static void checkWithSpaces(String value, Consumer<String> check) {
+		check.accept(value);
+		for (String space : SPACES) {
+			check.accept(space + value);
+			check.accept(value + space);
+		}
+	}
+
+	@Test
+	public void booleans() {
+		for (String value : new String[] { "true", "false", "TRUE", "False", "tRuE", "", "t", "tru", "truee", "yes", "1", "0", "fals", "falsee", "İrue", "trué" }) {
+			checkWithSpaces(value, FormatScannerTest::checkBoolean);
+		}
+	}
+
+	@Test
+	public void numbers() {
+		String[] values = { "", "0", "-0", "+0", "1", "-1", "+1", "+-1", "--1", "1.", ".1", ".", "-.", "+.5", "1.5", "1..5", "1.5.", "00012.3400",
+				"123456789012345678901234567890", "1e", "1e+", "1e-", "e5", "1e5", "1E5", "1e+5", "1e-5", "1.5e10", ".5e-3", "5.e3", "1e5.5", "1ee5", "1e5e",
+				"1e2147483647", "1e-2147483647", "1e-2147483648", "1e2147483648", "1e-2147483649", "0.1e2147483647", "1.5e-2147483647", "10e-2147483648",
+				"1e0000000000000005", "1e00000000002147483647", "1e99999999999", "1e-0", "1e+0", "NaN", "Infinity", "-Infinity", "0x10", "1_000",
+				"١٢٣", "-١.٥", "１２３", "1٢", "1.٥", "1e٥", "1e-٥", "١e5", "१२",
+				"²", "⅕", "١٢٣ ", "١ 2" };
+		for (String value : values) {
+			checkWithSpaces(value, FormatScannerTest::checkNumber);
+		}
+	}
+
+	@Test
+	public void durations() {
+		String[] values = { "", "P", "PT", "PTS", "PT1S", "pt1s", "Pt1S", "PT0S", "PT-1S", "PT+1S", "PT--1S", "PT-S", "PT1.5S", "PT1.S", "PT.5S", "PT-.5S",
+				"PT-0.5S", "PT1.123456789S", "PT1..5S", "PT1.5.S", "PT1,5S", "PT1M", "PT1H", "P1D", "P1DT1S", "PT1S ", "PT1Sx", "PTS1",
+				"PT9223372036854775S", "PT9223372036854775.807S", "PT9223372036854775.808S", "PT9223372036854776S", "PT-9223372036854775.808S",
+				"PT-9223372036854775.809S", "PT-9223372036854775S", "PT9223372036854775807S", "PT99999999999999999999S", "PT00000000000000000001S",
+				"PT١S", "PT1٢S", "PT１S", "PT1.٥S" };
+		for (String value : values) {
+			checkWithSpaces(value, FormatScannerTest::checkDuration);
+		}
+	}
+
+	@Test
+	public void dates() {
+		String[] values = { "", "2020", "2020-", "2020-01", "2020-1", "2020-01-01", "2020-1-1", "2020-01-1", "2020-13", "2020-00", "2020-01-00", "2020-01-32",
+				"2020-02-29", "2021-02-29", "1900-02-29", "2000-02-29", "2020-04-31", "2020-001", "2020-366", "2021-366", "2021-365", "2020-000", "2020-01-011",
+				"2020-W01", "2020-w01", "2020-W1", "2020-W53", "2021-W53", "2026-W53", "2020-W00", "2020-W01-1", "2020-W01-7", "2020-W01-0", "2020-W01-8",
+				"2020-W", "2020-W01-", "0", "1", "-1", "+1", "0000-01-01", "-0001-12-31", "+2020-01-01", "--2020", "-2020-W01-1",
+				"2020-01-01T", "2020-01-01T0", "2020-01-01T00", "2020-01-01T23", "2020-01-01T24", "2020-01-01t10", "2020-01-01 10", "2020-01-01T10:",
+				"2020-01-01T10:3", "2020-01-01T10:30", "2020-01-01T10:60", "2020-01-01T10:30:", "2020-01-01T10:30:5", "2020-01-01T10:30:59",
+				"2020-01-01T10:30:60", "2020-01-01T10:30:59.", "2020-01-01T10:30:59.1", "2020-01-01T10:30:59,999", "2020-01-01T10:30:59.999999999",
+				"2020-01-01T10:30:59.9999999999", "2020-01-01T10.5", "2020-01-01T10,25", "2020-01-01T10:30.5", "2020-01-01T10:30:59Z",
+				"2020-01-01T10:30:59+01:00", "2020-01-01T.5", "2020T10", "2020-01T10", "2020-W01T10", "2020-100T10:00",
+				// fractions of minutes and hours keep only the digits that resolve milliseconds
+				"2020-01-01T10:23,526686", "1969-12-31T23:59,526686", "2020-01-01T10,000001199", "1094-02-02T14,999999999",
+				// the spring forward gaps of Europe/Paris and America/New_York
+				"2021-03-28T02:30", "2021-03-28T02:00:00.000", "2021-03-14T02:30", "2021-10-31T02:30",
+				// years around the fallback to Joda and the limits of Joda-Time
+				"199999999-12-31", "200000000-12-31T23:59:59.999", "200000001-01-01", "292278993-12-31T23:59:59.999", "292278994", "292278994-01-01",
+				"-292275054-01-01", "-292275055", "999999999", "1000000000", "-200000001-01-01", "0000000002020-01-01", "200000001-02-29",
+				"200000004-02-29", "200000001-W53", "200000001-366", "200000001-01-01T10",
+				// non ASCII digits
+				"٢٠٢٠", "2020-٠١-01", "2020-01-01T١٠", "２０２０-01-01" };
+		for (String value : values) {
+			checkWithSpaces(value, FormatScannerTest::checkDate);
+		}
+	}
+
+	private static String random(Random random, String alphabet, int maxLength) {
+		StringBuilder value = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		for (int i = 0; i < length; i++) {
+			value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Replaces, inserts or deletes a few characters of a valid value.
+	 */
+	private static String mutate(Random random, String value, String alphabet) {
+		StringBuilder mutated = new StringBuilder(value);
+		int mutations = random.nextInt(3);
+		for (int i = 0; i < mutations; i++) {
+			int at = random.nextInt(mutated.length() + 1);
+			char c = alphabet.charAt(random.nextInt(alphabet.length()));
+			switch (random.nextInt(3)) {
+			case 0:
+				mutated.insert(at, c);
+				break;
+			case 1:
+				if (at < mutated.length()) {
+					mutated.setCharAt(at, c);
+				}
+				break;
+			default:
+				if (at < mutated.length()) {
+					mutated.deleteCharAt(at);
+				}
+				break;
+			}
+		}
+		return mutated.toString();
+	}
+
+	@Test
+	public void randomNumbers() {
+		Random random = new Random(5);
+		String alphabet = "0123456789.eE+- ١５";
+		for (int i = 0; i < RANDOM_INPUTS; i++) {
+			checkNumber(random(random, alphabet, 12));
+			String valid = (random.nextBoolean() ? "-" : "") + random.nextInt(100000) + "." + random.nextInt(1000) + "e" + (random.nextInt() >> random.nextInt(32));
+			checkNumber(mutate(random, valid, alphabet));
+		}
+	}
+
+	@Test
+	public void randomDurations() {
+		Random random = new Random(6);
+		String alphabet = "0123456789.-+PTSMptsm ١";
+		for (int i = 0; i < RANDOM_INPUTS; i++) {
+			checkDuration("PT" + random(random, alphabet, 10) + "S");
+			String valid = "PT" + (random.nextBoolean() ? "-" : "") + (random.nextLong() >>> random.nextInt(64)) + "." + random.nextInt(100000) + "S";
+			checkDuration(mutate(random, valid, alphabet));
+		}
+	}
+
+	@Test
+	public void randomDates() {
+		Random random = new Random(7);
+		String alphabet = "0123456789-:.,TWZtw+ ١";
+		for (int i = 0; i < RANDOM_INPUTS; i++) {
+			checkDate(random(random, alphabet, 20));
+			String valid = String.format(Locale.ROOT, "%04d-%02d-%02dT%02d:%02d:%02d.%03d", random.nextInt(3000), 1 + random.nextInt(12), 1 + random.nextInt(31), random.nextInt(25),
+					random.nextInt(61), random.nextInt(61), random.nextInt(1000));
+			checkDate(mutate(random, valid, alphabet));
+			checkDate(String.format(Locale.ROOT, "%d-W%02d-%d", random.nextInt(400000000) - 100000000, random.nextInt(55), random.nextInt(9)));
+			checkDate(String.format(Locale.ROOT, "%d-%03d", random.nextInt(400000000) - 100000000, random.nextInt(368)));
+		}
+	}
+}
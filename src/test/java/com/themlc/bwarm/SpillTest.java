@@ -0,0 +1,345 @@
+package com.themlc.bwarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the structures that spill to disk find the same as a plain in
+ * memory reference, once without any memory so every path through the runs
+ * is taken and once with enough memory that nothing spills.
+ */
+public class SpillTest {
+
+	private static final long[] BUDGETS = { 0, 1L << 30 };
+	// chunks are validated on the calling thread
+	private static final Executor DIRECT = Runnable::run;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path spillDirectory() {
+		return folder.getRoot().toPath();
+	}
+
+	private void assertReleased(String budgetName, MemoryBudget budget) {
+		assertEquals(budgetName + " memory returned", 0, budget.getUsed());
+		assertEquals(budgetName + " spill files removed", 0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void idIndex() throws IOException {
+		Random random = new Random(1);
+		long[] ids = new long[300000];
+		Set<Long> distinct = new HashSet<Long>();
+		for (int i = 0; i < ids.length; i++) {
+			// about a third are repeated
+			ids[i] = i % 3 == 0 && i > 0 ? ids[random.nextInt(i)] : random.nextLong() | 1;
+			distinct.add(ids[i]);
+		}
+		List<Long> expected = new ArrayList<Long>(distinct);
+		Collections.sort(expected);
+
+		for (long limit : BUDGETS) {
+			MemoryBudget budget = new MemoryBudget(limit);
+			try (IdIndex index = new IdIndex(budget, spillDirectory())) {
+				for (long id : ids) {
+					index.add(id);
+				}
+				index.seal();
+				assertEquals("budget " + limit + " spilled", limit == 0, index.isSpilled());
+				assertEquals("budget " + limit + " size", expected.size(), index.size());
+				if (index.isSpilled()) {
+					assertEquals("budget " + limit, expected, readLongs(index.getSortedIds()));
+				} else {
+					for (long id : expected) {
+						assertTrue("budget " + limit + " contains " + id, index.contains(id));
+					}
+					for (int i = 0; i < 1000; i++) {
+						long absent = random.nextLong() | 1;
+						assertEquals("budget " + limit + " contains " + absent, distinct.contains(absent), index.contains(absent));
+					}
+				}
+			}
+			assertReleased("budget " + limit, budget);
+		}
+	}
+
+	@Test
+	public void deferredReferences() throws IOException {
+		Random random = new Random(2);
+		long[] ids = new long[20000];
+		Set<Long> present = new HashSet<Long>();
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = random.nextLong() | 1;
+			present.add(ids[i]);
+		}
+		// one run per collector, more than a merge takes at once
+		int collectors = LongRecordRuns.MAX_FAN_IN + 36;
+		long[][] references = new long[collectors * 500][];
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < references.length; i++) {
+			long line = i + 2;
+			long fingerprint = random.nextInt(4) == 0 ? random.nextLong() | 1 : ids[random.nextInt(ids.length)];
+			references[i] = new long[] { fingerprint, line * 100, line };
+			if (!present.contains(fingerprint)) {
+				expected.add(line * 100 + " " + line);
+			}
+		}
+		Collections.sort(expected);
+
+		for (long limit : BUDGETS) {
+			MemoryBudget budget = new MemoryBudget(limit);
+			Path sortedIds = LongRecordRuns.writeRun(spillDirectory(), ids.clone(), ids.length, 1);
+			List<String> found = new ArrayList<String>();
+			try (DeferredReferences deferred = new DeferredReferences(budget, spillDirectory())) {
+				for (int c = 0; c < collectors; c++) {
+					DeferredReferences.Collector collector = deferred.collector();
+					for (int i = c * 500; i < (c + 1) * 500; i++) {
+						collector.add(references[i][0], references[i][1], references[i][2]);
+					}
+					collector.flush();
+				}
+				deferred.join(sortedIds, (offset, lineNumber) -> found.add(offset + " " + lineNumber));
+			}
+			Files.delete(sortedIds);
+			Collections.sort(found);
+			assertEquals("budget " + limit, expected, found);
+			assertReleased("budget " + limit, budget);
+		}
+	}
+
+	@Test
+	public void duplicateKeys() throws IOException {
+		Random random = new Random(3);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 150000; i++) {
+			keys.add(i % 4 == 0 ? "R" + random.nextInt(5000) : "U" + i);
+		}
+		Path file = folder.newFile("keys.tsv").toPath();
+		try (BufferedWriter out = Files.newBufferedWriter(file)) {
+			out.write("Key\n");
+			for (String key : keys) {
+				out.write(key + "\n");
+			}
+		}
+		List<String> expected = new ArrayList<String>();
+		Map<String, Long> first = new HashMap<String, Long>();
+		for (int i = 0; i < keys.size(); i++) {
+			long line = i + 2;
+			Long firstLine = first.putIfAbsent(keys.get(i), line);
+			if (firstLine != null) {
+				expected.add(line + " " + keys.get(i) + " " + firstLine);
+			}
+		}
+		Collections.sort(expected);
+
+		// with few fingerprints most lines share theirs with other keys
+		for (boolean collide : new boolean[] { false, true }) {
+			for (long limit : BUDGETS) {
+				MemoryBudget budget = new MemoryBudget(limit);
+				List<String> found = new ArrayList<String>();
+				try (TsvInput input = TsvInput.open(folder.getRoot().toPath(), null, "keys.tsv")) {
+					input.prepare(256 * 1024, DIRECT).join();
+					try (DuplicateKeys duplicates = new DuplicateKeys(input.estimateLines(), budget, spillDirectory())) {
+						input.forEachChunk(DIRECT, chunk -> forEachKey(chunk, (lineNumber, offset, fingerprint) -> duplicates.add(fingerprint), collide)).join();
+						input.forEachChunk(DIRECT, chunk -> forEachKey(chunk, (lineNumber, offset, fingerprint) -> duplicates.addOccurrence(fingerprint, offset, lineNumber), collide)).join();
+						duplicates.report(input, (lineNumber, key, firstLineNumber) -> found.add(lineNumber + " " + key + " " + firstLineNumber));
+					}
+				}
+				Collections.sort(found);
+				String name = "budget " + limit + (collide ? " colliding" : "");
+				assertEquals(name, expected, found);
+				assertEquals(name + " memory returned", 0, budget.getUsed());
+				assertEquals(name + " spill files removed", 1, folder.getRoot().list().length);
+			}
+		}
+	}
+
+	private interface KeyHandler {
+		void key(long lineNumber, long offset, long fingerprint);
+	}
+
+	private static void forEachKey(TsvChunk chunk, KeyHandler handler, boolean collide) {
+		try {
+			TsvReader.forEachRecord(chunk, (lineNumber, rec) ->
+				{
+					if (lineNumber > 1) {
+						long fingerprint = Fingerprint.of(rec.buffer(), rec.start(0), rec.end(0));
+						handler.key(lineNumber, chunk.getStart() + rec.start(0), collide ? (fingerprint & 1023) + 1 : fingerprint);
+					}
+				});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Test
+	public void groupAggregator() throws IOException {
+		Random random = new Random(4);
+		int groups = 50000;
+		// key, sum, count, first line number, its offset and tag
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		Map<Long, long[]> reference = new HashMap<Long, long[]>();
+		long[][] values = new long[200000][];
+		for (int i = 0; i < values.length; i++) {
+			long group = random.nextInt(groups);
+			long key = Fingerprint.mix(group + 1) | 1;
+			long line = i + 2;
+			// whole numbers add up the same in any order
+			long value = random.nextInt(10);
+			values[i] = new long[] { key, value, line };
+			long[] totals = reference.get(key);
+			if (totals == null) {
+				reference.put(key, new long[] { value, 1, line });
+			} else {
+				totals[0] += value;
+				totals[1]++;
+			}
+		}
+		for (Map.Entry<Long, long[]> group : reference.entrySet()) {
+			long[] totals = group.getValue();
+			expected.put(group.getKey(), (double) totals[0] + " " + totals[1] + " " + totals[2] + " " + totals[2] * 100 + " " + totals[2] * 7);
+		}
+
+		for (long limit : BUDGETS) {
+			MemoryBudget budget = new MemoryBudget(limit);
+			TreeMap<Long, String> found = new TreeMap<Long, String>();
+			try (GroupAggregator aggregator = new GroupAggregator(budget, spillDirectory())) {
+				for (long[] value : values) {
+					aggregator.add(value[0], value[1], value[2], value[2] * 100, value[2] * 7);
+				}
+				aggregator.forEach((key, sum, count, lineNumber, offset, tag) ->
+					{
+						assertFalse("budget " + limit + " group reported twice", found.containsKey(key));
+						found.put(key, sum + " " + count + " " + lineNumber + " " + offset + " " + tag);
+					});
+			}
+			assertEquals("budget " + limit, expected, found);
+			assertReleased("budget " + limit, budget);
+		}
+	}
+
+	@Test
+	public void parentLinks() throws IOException {
+		Random random = new Random(5);
+		int shares = 20000;
+		List<long[]> records = new ArrayList<long[]>();
+		for (long id = 1; id <= shares; id++) {
+			long parent = 0;
+			int kind = random.nextInt(10);
+			if (kind == 0) {
+				// a parent that does not exist
+				parent = shares + 1000 + random.nextInt(1000);
+			} else if (kind < 9 && id > 1) {
+				parent = 1 + random.nextInt((int) id - 1);
+			}
+			records.add(new long[] { id, parent, random.nextInt(100) });
+		}
+		// a cycle of three, one of a single share and a chain leading into the first
+		long c = shares + 1;
+		records.add(new long[] { c, c + 1, 10 });
+		records.add(new long[] { c + 1, c + 2, 10 });
+		records.add(new long[] { c + 2, c, 10 });
+		records.add(new long[] { c + 3, c + 3, 10 });
+		records.add(new long[] { c + 4, c, 10 });
+		records.add(new long[] { c + 5, c + 4, 10 });
+		Collections.shuffle(records, random);
+
+		Map<Long, long[]> byId = new HashMap<Long, long[]>();
+		for (long[] record : records) {
+			byId.put(record[0], record);
+		}
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < records.size(); i++) {
+			long[] record = records.get(i);
+			long line = i + 2;
+			if (record[1] == 0) {
+				continue;
+			}
+			long[] parent = byId.get(record[1]);
+			if (parent == null) {
+				expected.add("missing " + line);
+				continue;
+			}
+			if (record[2] > parent[2]) {
+				expected.add("over " + line + " " + (double) parent[2]);
+			}
+			int length = 1;
+			long[] at = parent;
+			while (at != null && at != record && at[1] != 0 && length <= records.size()) {
+				at = byId.get(at[1]);
+				length++;
+			}
+			if (at == record) {
+				expected.add("cycle " + line + " " + length);
+			}
+		}
+		Collections.sort(expected);
+
+		for (long limit : BUDGETS) {
+			MemoryBudget budget = new MemoryBudget(limit);
+			List<String> found = new ArrayList<String>();
+			try (ParentLinks links = new ParentLinks(budget, spillDirectory())) {
+				for (int i = 0; i < records.size(); i++) {
+					long[] record = records.get(i);
+					long line = i + 2;
+					links.add(record[0], record[1], record[2], line * 100, line);
+				}
+				links.report(new ParentLinks.LinkHandler() {
+					@Override
+					public void missingParent(long offset, long lineNumber) {
+						found.add("missing " + lineNumber);
+					}
+
+					@Override
+					public void overParent(long offset, long lineNumber, double parentValue) {
+						found.add("over " + lineNumber + " " + parentValue);
+					}
+
+					@Override
+					public void cycle(long offset, long lineNumber, int length) {
+						found.add("cycle " + lineNumber + " " + length);
+					}
+				});
+			}
+			Collections.sort(found);
+			assertEquals("budget " + limit, expected, found);
+			assertReleased("budget " + limit, budget);
+		}
+	}
+
+	private static List<Long> readLongs(Path file) throws IOException {
+		List<Long> values = new ArrayList<Long>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				values.add(in.readLong());
+			}
+		} catch (EOFException e) {
+			return values;
+		}
+	}
+}